@@ -416,7 +416,7 @@ public abstract class AbstractBlockChain {
                 return false;
             } else {
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
-                checkDifficultyTransitions(storedPrev, block);
+                checkDifficultyTransitions(storedPrev, block, null);
                 connectBlock(block, storedPrev, shouldVerifyTransactions(), filteredTxHashList, filteredTxn);
             }
 
@@ -430,6 +430,59 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /**
+     * <p>Checks a run of headers without adding anything to the chain: the first one must connect to a block we
+     * already have, or to a header in {@code unstoredHeaders}, and each following one to its predecessor. Every header
+     * must have valid proof of work, the difficulty the rules require at its height and pass the checkpoints. This
+     * lets a headers-first download reject a bad chain before fetching any block bodies.</p>
+     *
+     * <p>The verified headers are put into {@code unstoredHeaders}, so the next run can continue from them and
+     * difficulty transitions can look back across headers whose blocks haven't been added yet. The caller decides how
+     * many entries to keep, it needs at least the last {@link NetworkParameters#getInterval()} that aren't stored.</p>
+     *
+     * @return the last header, linked to the chain
+     */
+    StoredBlock verifyHeaders(List<Block> headers, Map<Sha256Hash, StoredBlock> unstoredHeaders)
+            throws BlockStoreException, VerificationException {
+        checkArgument(!headers.isEmpty());
+        lock.lock();
+        try {
+            Block first = headers.get(0);
+            StoredBlock storedPrev = unstoredHeaders.get(first.getPrevBlockHash());
+            if (storedPrev == null)
+                storedPrev = getStoredBlockInCurrentScope(first.getPrevBlockHash());
+            if (storedPrev == null)
+                throw new VerificationException("Headers do not connect to the chain: " + first.getHashAsString() +
+                        " prev " + first.getPrevBlockHash());
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(storedPrev.getHeader().getHash()))
+                    throw new VerificationException("Header " + header.getHashAsString() + " does not follow " +
+                            storedPrev.getHeader().getHashAsString());
+                header.verifyHeader();
+                checkDifficultyTransitions(storedPrev, header, unstoredHeaders);
+                if (!params.passesCheckpoint(storedPrev.getHeight() + 1, header.getHash()))
+                    throw new VerificationException("Header failed checkpoint lockin at " + (storedPrev.getHeight() + 1));
+                storedPrev = storedPrev.build(header);
+                unstoredHeaders.put(header.getHash(), storedPrev);
+            }
+            return storedPrev;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Looks a block up in the store, or amongst headers which have been verified but not stored yet.
+    @Nullable
+    private StoredBlock getStoredBlock(Sha256Hash hash, @Nullable Map<Sha256Hash, StoredBlock> unstoredHeaders)
+            throws BlockStoreException {
+        if (unstoredHeaders != null) {
+            StoredBlock block = unstoredHeaders.get(hash);
+            if (block != null)
+                return block;
+        }
+        return blockStore.get(hash);
+    }
+
     /**
      * Returns the hashes of the currently stored orphan blocks and then deletes them from this objects storage.
      * Used by Peer when a filter exhaustion event has occurred and thus any orphan blocks that have been downloaded
@@ -838,7 +891,8 @@ public abstract class AbstractBlockChain {
     /**
      * Throws an exception if the blocks difficulty is not correct.
      */
-    private void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock) throws BlockStoreException, VerificationException {
+    private void checkDifficultyTransitions(StoredBlock storedPrev, Block nextBlock,
+                                            @Nullable Map<Sha256Hash, StoredBlock> unstoredHeaders) throws BlockStoreException, VerificationException {
         checkState(lock.isHeldByCurrentThread());
         Block prev = storedPrev.getHeader();
         
@@ -849,7 +903,7 @@ public abstract class AbstractBlockChain {
             // This should be a method of the NetworkParameters, which should in turn be using singletons and a subclass
             // for each network type. Then each network can define its own difficulty transition rules.
             if (params.getId().equals(NetworkParameters.ID_TESTNET) && nextBlock.getTime().after(testnetDiffDate)) {
-                checkTestnetDifficulty(storedPrev, prev, nextBlock);
+                checkTestnetDifficulty(storedPrev, prev, nextBlock, unstoredHeaders);
                 return;
             }
 
@@ -864,14 +918,14 @@ public abstract class AbstractBlockChain {
         // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
         // two weeks after the initial block chain download.
         long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
+        StoredBlock cursor = getStoredBlock(prev.getHash(), unstoredHeaders);
         for (int i = 0; i < params.getInterval() - 1; i++) {
             if (cursor == null) {
                 // This should never happen. If it does, it means we are following an incorrect or busted chain.
                 throw new VerificationException(
                         "Difficulty transition point but we did not find a way back to the genesis block.");
             }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+            cursor = getStoredBlock(cursor.getHeader().getPrevBlockHash(), unstoredHeaders);
         }
         long elapsed = System.currentTimeMillis() - now;
         if (elapsed > 50)
@@ -908,7 +962,8 @@ public abstract class AbstractBlockChain {
                     newTargetCompact + " vs " + receivedTargetCompact);
     }
 
-    private void checkTestnetDifficulty(StoredBlock storedPrev, Block prev, Block next) throws VerificationException, BlockStoreException {
+    private void checkTestnetDifficulty(StoredBlock storedPrev, Block prev, Block next,
+                                        @Nullable Map<Sha256Hash, StoredBlock> unstoredHeaders) throws VerificationException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
         // After 15th February 2012 the rules on the testnet change to avoid people running up the difficulty
         // and then leaving, making it too hard to mine a block. On non-difficulty transition points, easy
@@ -923,7 +978,7 @@ public abstract class AbstractBlockChain {
             while (!cursor.getHeader().equals(params.getGenesisBlock()) &&
                    cursor.getHeight() % params.getInterval() != 0 &&
                    cursor.getHeader().getDifficultyTargetAsInteger().equals(params.getMaxTarget()))
-                cursor = cursor.getPrev(blockStore);
+                cursor = getStoredBlock(cursor.getHeader().getPrevBlockHash(), unstoredHeaders);
             BigInteger cursorTarget = cursor.getHeader().getDifficultyTargetAsInteger();
             BigInteger newTarget = next.getDifficultyTargetAsInteger();
             if (!cursorTarget.equals(newTarget))
@@ -20,11 +20,13 @@ package org.bitcoinj.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -49,6 +51,7 @@ public class BitcoinSerializer {
     private NetworkParameters params;
     private boolean parseLazy = false;
     private boolean parseRetain = false;
+    @Nullable private final MessageBufferPool bufferPool;
 
     private static Map<Class<? extends Message>, String> names = new HashMap<Class<? extends Message>, String>();
 
@@ -92,9 +95,25 @@ public class BitcoinSerializer {
      * @param parseRetain      retain the backing byte array of a message for fast reserialization.
      */
     public BitcoinSerializer(NetworkParameters params, boolean parseLazy, boolean parseRetain) {
+        this(params, parseLazy, parseRetain, null);
+    }
+
+    /**
+     * Constructs a BitcoinSerializer with the given behavior.
+     *
+     * @param params           networkParams used to create Messages instances and termining packetMagic
+     * @param parseLazy        deserialize messages in lazy mode.
+     * @param parseRetain      retain the backing byte array of a message for fast reserialization.
+     * @param bufferPool       if not null, blocks and transactions are parsed straight out of the buffer they arrive in
+     *                         or out of a pooled array, instead of a fresh copy. Only used when neither parseLazy nor
+     *                         parseRetain is set, as those keep the array for later.
+     */
+    public BitcoinSerializer(NetworkParameters params, boolean parseLazy, boolean parseRetain,
+                             @Nullable MessageBufferPool bufferPool) {
         this.params = params;
         this.parseLazy = parseLazy;
         this.parseRetain = parseRetain;
+        this.bufferPool = parseLazy || parseRetain ? null : bufferPool;
     }
 
     /**
@@ -102,23 +121,27 @@ public class BitcoinSerializer {
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+        writeHeader(name, message, header);
+        out.write(header);
+        out.write(message);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+    }
+
+    private void writeHeader(String name, byte[] message, byte[] out) {
+        uint32ToByteArrayBE(params.getPacketMagic(), out, 0);
 
         // The header array is initialized to zero by Java so we don't have to worry about
         // NULL terminating the string here.
         for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+            out[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
         }
 
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
+        Utils.uint32ToByteArrayLE(message.length, out, 4 + COMMAND_LEN);
 
         byte[] hash = doubleDigest(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
-
-        if (log.isDebugEnabled())
-            log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+        System.arraycopy(hash, 0, out, 4 + COMMAND_LEN + 4, 4);
     }
 
     /**
@@ -132,6 +155,28 @@ public class BitcoinSerializer {
         serialize(name, message.bitcoinSerialize(), out);
     }
 
+    /**
+     * Returns the message as it goes on the wire, header and all. The buffer can be written to any number of peers
+     * with {@link PeerSocketHandler#sendMessage(ByteBuffer, boolean)}, so a message relayed to many peers need only be
+     * serialized and checksummed once. It must be treated as immutable: writers only ever take views of it, so a
+     * change to its contents would reach every peer it is still queued for. It isn't made read only, because the
+     * blocking client can only write buffers that expose their backing array without copying them first.
+     */
+    public ByteBuffer serializeToBuffer(Message message) {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        byte[] payload = message.unsafeBitcoinSerialize();
+        int headerLength = 4 + COMMAND_LEN + 4 + 4 /* checksum */;
+        byte[] bytes = new byte[headerLength + payload.length];
+        writeHeader(name, payload, bytes);
+        System.arraycopy(payload, 0, bytes, headerLength, payload.length);
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, HEX.encode(bytes));
+        return ByteBuffer.wrap(bytes);
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
@@ -169,6 +214,8 @@ public class BitcoinSerializer {
      * {@link BitcoinSerializer#deserializeHeader}.
      */
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
+        if (bufferPool != null && (header.command.equals("block") || header.command.equals("tx")))
+            return deserializePooledPayload(header, in);
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
 
@@ -194,6 +241,63 @@ public class BitcoinSerializer {
         }
     }
 
+    // Parses a block or transaction without copying the payload into an array of its own. Eagerly parsed messages
+    // copy out everything they keep, so the array is free for reuse as soon as the message has been constructed.
+    private Message deserializePooledPayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
+        MessageBufferPool.Buffer buffer = null;
+        byte[] payload;
+        int offset;
+        if (in.hasArray()) {
+            if (in.remaining() < header.size)
+                throw new BufferUnderflowException();
+            payload = in.array();
+            offset = in.arrayOffset() + in.position();
+            in.position(in.position() + header.size);
+        } else {
+            buffer = bufferPool.acquire(header.size);
+            payload = buffer.array();
+            offset = 0;
+            in.get(payload, 0, header.size);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Received {} byte '{}' message: {}", header.size, header.command,
+                    HEX.encode(Arrays.copyOfRange(payload, offset, offset + header.size)));
+        }
+        try {
+            byte[] hash = doubleDigest(payload, offset, header.size);
+            if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
+                    header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
+                throw new ProtocolException("Checksum failed to verify, actual " +
+                        HEX.encode(hash) +
+                        " vs " + HEX.encode(header.checksum));
+            }
+            try {
+                Message message;
+                if (header.command.equals("block")) {
+                    message = new Block(params, payload, offset, false, false, header.size);
+                } else {
+                    Transaction tx = new Transaction(params, payload, offset, null, false, false, header.size);
+                    tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
+                    message = tx;
+                }
+                message.setChecksum(header.checksum);
+                return message;
+            } catch (Exception e) {
+                throw new ProtocolException("Error deserializing message " +
+                        HEX.encode(Arrays.copyOfRange(payload, offset, offset + header.size)) + "\n", e);
+            }
+        } finally {
+            if (buffer != null)
+                buffer.release();
+        }
+    }
+
+    /** Returns the pool payloads are parsed from, or null if every message gets its own array. */
+    @Nullable
+    public MessageBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
     private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
         Message message;
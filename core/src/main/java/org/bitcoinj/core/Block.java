@@ -37,8 +37,6 @@ import java.util.LinkedList;
 import java.util.List;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
-import static org.bitcoinj.core.Utils.doubleDigest;
-import static org.bitcoinj.core.Utils.doubleDigestTwoBuffers;
 
 /**
  * <p>A block is a group of transactions, and is one of the fundamental data structures of the Bitcoin system.
@@ -89,11 +87,18 @@ public class Block extends Message {
     /** Stores the hash of the block. If null, getHash() will recalculate it. */
     private transient Sha256Hash hash;
 
+    /** The merkle tree of the transactions. If null, getMerkleTree() will rebuild it. */
+    @Nullable private transient MerkleTree merkleTree;
+
     private transient boolean headerParsed;
     private transient boolean transactionsParsed;
 
     private transient boolean headerBytesValid;
     private transient boolean transactionBytesValid;
+
+    // Set by StreamingBlockParser for blocks whose transactions it has already checked, so verifyTransactions() has
+    // nothing left to do. Cleared as soon as the block is changed.
+    private transient boolean transactionsVerified;
     
     // Blocks can be encoded in a way that will use more bytes than is optimal (due to VarInts having multiple encodings)
     // MAX_BLOCK_SIZE must be compared to the optimal encoding, not the actual encoding, so when parsing, we keep track
@@ -133,6 +138,12 @@ public class Block extends Message {
         super(params, payloadBytes, 0, parseLazy, parseRetain, length);
     }
 
+    /** Construct a block object from the Bitcoin wire format, starting at the given offset into the array. */
+    Block(NetworkParameters params, byte[] payloadBytes, int offset, boolean parseLazy, boolean parseRetain, int length)
+            throws ProtocolException {
+        super(params, payloadBytes, offset, parseLazy, parseRetain, length);
+    }
+
 
     /**
      * Construct a block initialized with all the given fields.
@@ -191,7 +202,7 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(payload, offset, cursor)));
+        hash = Sha256Hash.createDoubleReversed(payload, offset, cursor - offset);
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -203,7 +214,8 @@ public class Block extends Message {
 
         cursor = offset + HEADER_SIZE;
         optimalEncodingMessageSize = HEADER_SIZE;
-        if (payload.length == cursor) {
+        // The payload may be followed by unrelated bytes, so use the length when it's known.
+        if (cursor == (length == UNKNOWN_LENGTH ? payload.length : offset + length)) {
             // This message is just a header, it has no transactions.
             transactionsParsed = true;
             transactionBytesValid = false;
@@ -484,6 +496,7 @@ public class Block extends Message {
     private void unCacheHeader() {
         maybeParseHeader();
         headerBytesValid = false;
+        transactionsVerified = false;
         if (!transactionBytesValid)
             payload = null;
         hash = null;
@@ -501,6 +514,7 @@ public class Block extends Message {
         unCacheHeader();
         // Clear merkleRoot last as it may end up being parsed during unCacheHeader().
         merkleRoot = null;
+        merkleTree = null;
     }
 
     /**
@@ -511,7 +525,8 @@ public class Block extends Message {
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(doubleDigest(bos.toByteArray())));
+            byte[] header = bos.toByteArray();
+            return Sha256Hash.createDoubleReversed(header, 0, header.length);
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -693,11 +708,14 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
+        return getMerkleTree().getRoot();
     }
 
-    private List<byte[]> buildMerkleTree() {
+    /**
+     * Returns the merkle tree of this block's transactions, building it if necessary. The tree is kept until the
+     * transactions change, so that proofs for a block being served to many peers can be made from it.
+     */
+    MerkleTree getMerkleTree() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -728,28 +746,16 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
+        //
+        // The whole tree is kept, see MerkleTree for how it is stored.
         maybeParseTransactions();
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
-        int levelOffset = 0; // Offset in the list where the currently processed level starts.
-        // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
-            // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
-            // Move to the next level.
-            levelOffset += levelSize;
+        if (merkleTree == null) {
+            List<Sha256Hash> leaves = new ArrayList<Sha256Hash>(transactions.size());
+            for (Transaction t : transactions)
+                leaves.add(t.getHash());
+            merkleTree = MerkleTree.build(leaves);
         }
-        return tree;
+        return merkleTree;
     }
 
     private void checkTransactions() throws VerificationException {
@@ -792,6 +798,8 @@ public class Block extends Message {
         // an invalid block, but if we didn't validate this then an untrusted man-in-the-middle could obtain the next
         // valid block from the network and simply replace the transactions in it with their own fictional
         // transactions that reference spent or non-existant inputs.
+        if (transactionsVerified)
+            return;
         if (transactions.isEmpty())
             throw new VerificationException("Block had no transactions");
         maybeParseTransactions();
@@ -804,6 +812,11 @@ public class Block extends Message {
             transaction.verify();
         }
 
+    /** Records that the transactions have passed the checks of {@link #verifyTransactions()} already. */
+    void setTransactionsVerified() {
+        transactionsVerified = true;
+    }
+
     /**
      * Verifies both the header and that the transactions hash to the merkle root.
      */
@@ -0,0 +1,592 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Downloads full blocks from several peers at once. Block hashes are given to {@link #download(List)} in chain
+ * order and cut into windows of {@link #getWindowSize()} blocks. Every peer registered with {@link #addPeer(Peer)} is
+ * kept busy with up to {@link #getWindowsPerPeer()} outstanding getdata windows, so the next window is already on the
+ * wire while the previous one is arriving. Blocks are buffered until everything before them has arrived, then added to
+ * the {@link AbstractBlockChain} strictly in order. The adding is done without holding the scheduler's lock, by whichever
+ * network thread delivered a block while nobody else was adding, so one slow block doesn't hold up every peer's
+ * callbacks and the futures returned by {@link #download(List)} are completed without the lock held either.</p>
+ *
+ * <p>A window that isn't complete within the stall timeout, or that a peer answers with notfound, is taken away from
+ * that peer and handed to another one. The caller is expected to run {@link #checkForStalls()} periodically,
+ * {@link PeerGroup} does so on its executor.</p>
+ *
+ * <p>Only full blocks are fetched this way. Filtered blocks are still downloaded from a single peer, because the Bloom
+ * filter exhaustion handling in {@link Peer} relies on receiving them in order from the peer that has the filter.</p>
+ */
+public class BlockDownloadScheduler {
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadScheduler.class);
+
+    /** The default number of blocks requested with one getdata message. */
+    public static final int DEFAULT_WINDOW_SIZE = 16;
+    /** The default number of windows a single peer may have outstanding. */
+    public static final int DEFAULT_WINDOWS_PER_PEER = 2;
+    /** The default limit on how far ahead of the chain head blocks are requested, which bounds the reorder buffer. */
+    public static final int DEFAULT_MAX_LOOKAHEAD = 1024;
+    /** The default time a peer gets to deliver a window before it is re-assigned. */
+    public static final long DEFAULT_STALL_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final AbstractBlockChain chain;
+    private final int windowSize;
+    private final int windowsPerPeer;
+    private final int maxLookahead;
+    private final long stallTimeoutMillis;
+
+    private final ReentrantLock lock = Threading.lock("blockdownloadscheduler");
+    // All windows that haven't been fully added to the chain yet, in chain order.
+    @GuardedBy("lock") private final LinkedList<Window> windows = new LinkedList<Window>();
+    // Windows waiting for a peer, in chain order.
+    @GuardedBy("lock") private final LinkedList<Window> unassigned = new LinkedList<Window>();
+    @GuardedBy("lock") private final Map<Peer, PeerState> peers = new LinkedHashMap<Peer, PeerState>();
+    @GuardedBy("lock") private final LinkedList<Batch> batches = new LinkedList<Batch>();
+    // Sequence number of the next block handed to download() and of the next block to be added to the chain.
+    @GuardedBy("lock") private long nextSequence;
+    @GuardedBy("lock") private long nextAdded;
+    // Blocks taken out of their windows in chain order, waiting to be added to the chain.
+    @GuardedBy("lock") private final LinkedList<Block> readyBlocks = new LinkedList<Block>();
+    // Set while a thread is adding readyBlocks to the chain, so that no other thread starts doing so as well.
+    @GuardedBy("lock") private boolean adding;
+
+    /** A contiguous range of blocks which is requested from one peer at a time. */
+    private static class Window {
+        final long start;
+        final List<Sha256Hash> hashes;
+        final Block[] blocks;
+        int received;
+        int delivered;
+        @Nullable Request request;
+        // Peers which let this window stall, so it goes elsewhere if possible.
+        final Set<Peer> stalledPeers = new HashSet<Peer>();
+
+        Window(long start, List<Sha256Hash> hashes) {
+            this.start = start;
+            this.hashes = hashes;
+            this.blocks = new Block[hashes.size()];
+        }
+
+        boolean isComplete() {
+            return received == hashes.size();
+        }
+
+        boolean isMissing(int index) {
+            return index >= delivered && blocks[index] == null;
+        }
+    }
+
+    /** One attempt at fetching the missing blocks of a window from a peer. */
+    private static class Request {
+        final Window window;
+        final Peer peer;
+        final long requestTimeMillis;
+        final List<ListenableFuture<Block>> futures = new ArrayList<ListenableFuture<Block>>();
+
+        Request(Window window, Peer peer, long requestTimeMillis) {
+            this.window = window;
+            this.peer = peer;
+            this.requestTimeMillis = requestTimeMillis;
+        }
+
+        void cancel() {
+            for (ListenableFuture<Block> future : futures)
+                future.cancel(false);
+        }
+    }
+
+    private static class PeerState {
+        final List<Window> windows = new LinkedList<Window>();
+        long blocksReceived;
+        long bytesReceived;
+        int stalls;
+        long busyMillis;
+        long busySinceMillis;
+
+        long getBusyMillis(long now) {
+            return windows.isEmpty() ? busyMillis : busyMillis + now - busySinceMillis;
+        }
+    }
+
+    private static class Batch {
+        final long end;
+        final int size;
+        final SettableFuture<Integer> future = SettableFuture.create();
+
+        Batch(long end, int size) {
+            this.end = end;
+            this.size = size;
+        }
+    }
+
+    /** Throughput statistics of one peer, as returned by {@link #getPeerStats()}. */
+    public static class PeerStats {
+        private final long blocksReceived;
+        private final long bytesReceived;
+        private final int stalls;
+        private final int windowsInFlight;
+        private final long busyMillis;
+
+        private PeerStats(long blocksReceived, long bytesReceived, int stalls, int windowsInFlight, long busyMillis) {
+            this.blocksReceived = blocksReceived;
+            this.bytesReceived = bytesReceived;
+            this.stalls = stalls;
+            this.windowsInFlight = windowsInFlight;
+            this.busyMillis = busyMillis;
+        }
+
+        /** Returns the number of requested blocks the peer delivered. */
+        public long getBlocksReceived() {
+            return blocksReceived;
+        }
+
+        /** Returns the serialized size of the requested blocks the peer delivered. */
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        /** Returns how many times a window had to be taken away from the peer. */
+        public int getStalls() {
+            return stalls;
+        }
+
+        /** Returns the number of windows currently requested from the peer. */
+        public int getWindowsInFlight() {
+            return windowsInFlight;
+        }
+
+        /** Returns the download rate of the peer, counting only the time it had requests outstanding. */
+        public long getBytesPerSecond() {
+            return busyMillis == 0 ? 0 : bytesReceived * 1000 / busyMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d blocks, %d bytes, %d bytes/sec, %d stalls, %d windows in flight",
+                    blocksReceived, bytesReceived, getBytesPerSecond(), stalls, windowsInFlight);
+        }
+    }
+
+    /** Creates a scheduler which adds blocks to the given chain, using the default tuning parameters. */
+    public BlockDownloadScheduler(AbstractBlockChain chain) {
+        this(chain, DEFAULT_WINDOW_SIZE, DEFAULT_WINDOWS_PER_PEER, DEFAULT_MAX_LOOKAHEAD, DEFAULT_STALL_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Creates a scheduler which adds blocks to the given chain.
+     *
+     * @param windowSize number of blocks requested with one getdata message
+     * @param windowsPerPeer number of windows each peer may have outstanding
+     * @param maxLookahead how many blocks past the next one to add to the chain may be requested
+     * @param stallTimeoutMillis how long a peer gets to deliver a window before it is given to another peer
+     */
+    public BlockDownloadScheduler(AbstractBlockChain chain, int windowSize, int windowsPerPeer, int maxLookahead,
+                                  long stallTimeoutMillis) {
+        checkArgument(windowSize > 0);
+        checkArgument(windowsPerPeer > 0);
+        checkArgument(maxLookahead >= windowSize);
+        checkArgument(stallTimeoutMillis > 0);
+        this.chain = checkNotNull(chain);
+        this.windowSize = windowSize;
+        this.windowsPerPeer = windowsPerPeer;
+        this.maxLookahead = maxLookahead;
+        this.stallTimeoutMillis = stallTimeoutMillis;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getWindowsPerPeer() {
+        return windowsPerPeer;
+    }
+
+    /** Makes the peer available for downloading blocks from. */
+    public void addPeer(Peer peer) {
+        lock.lock();
+        try {
+            if (peers.containsKey(peer))
+                return;
+            peers.put(peer, new PeerState());
+            assignWindows();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stops using the peer, for instance because it disconnected. Its outstanding windows go to other peers. */
+    public void removePeer(Peer peer) {
+        lock.lock();
+        try {
+            PeerState state = peers.remove(peer);
+            if (state == null)
+                return;
+            for (Window window : new ArrayList<Window>(state.windows))
+                reassign(window);
+            for (Window window : windows)
+                window.stalledPeers.remove(peer);
+            assignWindows();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Downloads the given blocks and adds them to the chain in the given order, after any blocks passed to earlier
+     * calls. The returned future completes with the number of blocks once the last of them has been added, or fails
+     * if the chain rejected one of them.
+     */
+    public ListenableFuture<Integer> download(List<Sha256Hash> blockHashes) {
+        if (blockHashes.isEmpty())
+            return Futures.immediateFuture(0);
+        lock.lock();
+        try {
+            for (int i = 0; i < blockHashes.size(); i += windowSize) {
+                List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(
+                        blockHashes.subList(i, Math.min(i + windowSize, blockHashes.size())));
+                Window window = new Window(nextSequence, hashes);
+                nextSequence += hashes.size();
+                windows.add(window);
+                unassigned.add(window);
+            }
+            Batch batch = new Batch(nextSequence, blockHashes.size());
+            batches.add(batch);
+            assignWindows();
+            return batch.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of blocks passed to {@link #download(List)} which haven't been added to the chain yet. */
+    public long getPendingBlocks() {
+        lock.lock();
+        try {
+            return nextSequence - nextAdded;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns a snapshot of the download statistics of every peer currently in use. */
+    public Map<Peer, PeerStats> getPeerStats() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            ImmutableMap.Builder<Peer, PeerStats> result = ImmutableMap.builder();
+            for (Map.Entry<Peer, PeerState> entry : peers.entrySet()) {
+                PeerState state = entry.getValue();
+                result.put(entry.getKey(), new PeerStats(state.blocksReceived, state.bytesReceived, state.stalls,
+                        state.windows.size(), state.getBusyMillis(now)));
+            }
+            return result.build();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Re-assigns every window which has been outstanding for longer than the stall timeout. */
+    public void checkForStalls() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            for (Window window : windows) {
+                Request request = window.request;
+                if (request == null || now - request.requestTimeMillis < stallTimeoutMillis)
+                    continue;
+                log.info("{}: Stalled on blocks {} to {}, re-assigning", request.peer, window.start,
+                        window.start + window.hashes.size() - 1);
+                peers.get(request.peer).stalls++;
+                window.stalledPeers.add(request.peer);
+                reassign(window);
+            }
+            assignWindows();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes the window away from its peer and puts it back in the queue.
+    @GuardedBy("lock")
+    private void reassign(Window window) {
+        Request request = window.request;
+        if (request != null) {
+            window.request = null;
+            releaseWindow(request);
+            // Clearing window.request first makes the callbacks fired by this ignore the cancellation.
+            request.cancel();
+        }
+        if (window.isComplete() || unassigned.contains(window))
+            return;
+        ListIterator<Window> it = unassigned.listIterator();
+        while (it.hasNext()) {
+            if (it.next().start > window.start) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(window);
+    }
+
+    @GuardedBy("lock")
+    private void releaseWindow(Request request) {
+        PeerState state = peers.get(request.peer);
+        if (state == null)
+            return;
+        state.windows.remove(request.window);
+        if (state.windows.isEmpty())
+            state.busyMillis += Utils.currentTimeMillis() - state.busySinceMillis;
+    }
+
+    @GuardedBy("lock")
+    private void assignWindows() {
+        boolean assigned = true;
+        while (assigned && !unassigned.isEmpty()) {
+            assigned = false;
+            // Round robin, so that every peer gets a share before anyone gets a second window.
+            for (Map.Entry<Peer, PeerState> entry : peers.entrySet()) {
+                if (entry.getValue().windows.size() >= windowsPerPeer)
+                    continue;
+                Window window = takeWindowFor(entry.getKey());
+                if (window == null)
+                    continue;
+                request(window, entry.getKey(), entry.getValue());
+                assigned = true;
+            }
+        }
+    }
+
+    @GuardedBy("lock")
+    @Nullable
+    private Window takeWindowFor(Peer peer) {
+        Iterator<Window> it = unassigned.iterator();
+        while (it.hasNext()) {
+            Window window = it.next();
+            // Windows are in order, so if this one is too far ahead all the others are as well.
+            if (window.start >= nextAdded + maxLookahead)
+                return null;
+            // Prefer not to give a window back to a peer which stalled on it, unless they all did.
+            if (window.stalledPeers.contains(peer) && !window.stalledPeers.containsAll(peers.keySet()))
+                continue;
+            it.remove();
+            return window;
+        }
+        return null;
+    }
+
+    @GuardedBy("lock")
+    private void request(final Window window, Peer peer, PeerState state) {
+        final Request request = new Request(window, peer, Utils.currentTimeMillis());
+        window.request = request;
+        if (state.windows.isEmpty())
+            state.busySinceMillis = request.requestTimeMillis;
+        state.windows.add(window);
+        List<Sha256Hash> missing = new ArrayList<Sha256Hash>();
+        final List<Integer> indexes = new ArrayList<Integer>();
+        for (int i = 0; i < window.hashes.size(); i++) {
+            if (window.isMissing(i)) {
+                missing.add(window.hashes.get(i));
+                indexes.add(i);
+            }
+        }
+        log.debug("{}: Requesting {} blocks starting at {}", peer, missing.size(), window.start);
+        request.futures.addAll(peer.getBlocks(missing));
+        for (int i = 0; i < request.futures.size(); i++) {
+            final int index = indexes.get(i);
+            Futures.addCallback(request.futures.get(i), new FutureCallback<Block>() {
+                @Override
+                public void onSuccess(Block block) {
+                    blockArrived(request, index, block);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    requestFailed(request);
+                }
+            }, Threading.SAME_THREAD);
+        }
+    }
+
+    private void blockArrived(Request request, int index, Block block) {
+        boolean consume;
+        lock.lock();
+        try {
+            Window window = request.window;
+            PeerState state = peers.get(request.peer);
+            if (state != null) {
+                state.blocksReceived++;
+                state.bytesReceived += block.getMessageSize();
+            }
+            // Blocks arriving after the window was re-assigned are still welcome.
+            if (!window.isMissing(index))
+                return;
+            window.blocks[index] = block;
+            window.received++;
+            if (window.isComplete()) {
+                if (window.request != null) {
+                    Request current = window.request;
+                    window.request = null;
+                    releaseWindow(current);
+                    current.cancel();
+                }
+                unassigned.remove(window);
+            }
+            takeReadyBlocks();
+            assignWindows();
+            consume = !adding && !readyBlocks.isEmpty();
+            if (consume)
+                adding = true;
+        } finally {
+            lock.unlock();
+        }
+        if (consume)
+            addReadyBlocks();
+    }
+
+    private void requestFailed(Request request) {
+        lock.lock();
+        try {
+            // Either the peer told us it doesn't have the block or the request was cancelled by us.
+            if (request.window.request != request)
+                return;
+            log.info("{}: Failed to get blocks starting at {}, re-assigning", request.peer, request.window.start);
+            request.window.stalledPeers.add(request.peer);
+            reassign(request.window);
+            assignWindows();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves the blocks that are next in chain order out of their windows and onto readyBlocks.
+    @GuardedBy("lock")
+    private void takeReadyBlocks() {
+        while (!windows.isEmpty()) {
+            Window window = windows.getFirst();
+            while (window.delivered < window.hashes.size() && window.blocks[window.delivered] != null) {
+                readyBlocks.add(window.blocks[window.delivered]);
+                window.blocks[window.delivered] = null;
+                window.delivered++;
+            }
+            if (window.delivered < window.hashes.size())
+                break;
+            windows.removeFirst();
+        }
+    }
+
+    // Adds readyBlocks to the chain one at a time until there are none left. Only called by the thread which set
+    // adding, and never with the lock held, as the chain takes its own lock and runs wallet and listener code.
+    private void addReadyBlocks() {
+        checkState(!lock.isHeldByCurrentThread());
+        while (true) {
+            Block block;
+            lock.lock();
+            try {
+                block = readyBlocks.poll();
+                if (block == null) {
+                    adding = false;
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            Exception failure = null;
+            try {
+                if (!chain.add(block))
+                    log.warn("Downloaded block {} does not connect to the chain", block.getHashAsString());
+            } catch (VerificationException e) {
+                failure = e;
+            } catch (PrunedException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                // Let the next block to arrive try again.
+                lock.lock();
+                try {
+                    readyBlocks.addFirst(block);
+                    adding = false;
+                } finally {
+                    lock.unlock();
+                }
+                throw e;
+            }
+            List<Batch> finished = new ArrayList<Batch>();
+            lock.lock();
+            try {
+                if (failure != null) {
+                    finished.addAll(abort(failure));
+                } else {
+                    nextAdded++;
+                    while (!batches.isEmpty() && batches.getFirst().end <= nextAdded)
+                        finished.add(batches.removeFirst());
+                    // The lookahead is measured from the chain, so there may be room for another window now.
+                    assignWindows();
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Batch batch : finished) {
+                if (failure != null)
+                    batch.future.setException(failure);
+                else
+                    batch.future.set(batch.size);
+            }
+        }
+    }
+
+    // Drops everything that is still queued and returns the downloads waiting for it, which the caller must fail once
+    // the lock is released.
+    @GuardedBy("lock")
+    private List<Batch> abort(Exception e) {
+        log.error("Failed to add downloaded block to the chain, abandoning " + (nextSequence - nextAdded - 1) +
+                " queued blocks", e);
+        for (Window window : windows) {
+            if (window.request != null) {
+                Request request = window.request;
+                window.request = null;
+                releaseWindow(request);
+                request.cancel();
+            }
+        }
+        windows.clear();
+        unassigned.clear();
+        readyBlocks.clear();
+        nextAdded = nextSequence;
+        List<Batch> failed = new ArrayList<Batch>(batches);
+        batches.clear();
+        return failed;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.utils.Threading;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Catches the chain up headers first. Headers are fetched from a single peer in batches of
+ * {@link HeadersMessage#MAX_HEADERS} and every batch is checked in bulk for linkage, proof of work, difficulty and
+ * checkpoints before any of its blocks are requested. The bodies of a verified batch are then fetched from all peers in
+ * parallel by a {@link BlockDownloadScheduler}, while the next batch of headers is already on its way. Compared to the
+ * getblocks/inv dance this needs one round trip per two thousand blocks, and a peer feeding us a bogus chain is caught
+ * before we spend bandwidth on it.</p>
+ *
+ * <p>To bound memory use, the headers following a batch are only requested once the bodies of the batch before it have
+ * been added to the chain, so at most two batches are queued at any time.</p>
+ *
+ * <p>Instances are single use and are normally created by {@link PeerGroup#downloadBlockChainHeadersFirst()}.</p>
+ */
+public class HeadersFirstDownload {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstDownload.class);
+
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final BlockDownloadScheduler scheduler;
+    private final Peer peer;
+    private final SettableFuture<Integer> future = SettableFuture.create();
+    private final AtomicInteger blocksQueued = new AtomicInteger();
+
+    // Only one getheaders is outstanding at a time, so the fields below are never touched by two threads at once.
+    // Headers which have been verified but whose blocks may not be in the chain yet. Enough are kept to look back one
+    // difficulty interval from the newest batch.
+    private final Map<Sha256Hash, StoredBlock> unstoredHeaders;
+    @Nullable private ListenableFuture<Integer> lastBatch;
+    private boolean started;
+
+    /**
+     * Creates a download which takes headers from the given peer and block bodies from the peers known to the
+     * scheduler, adding the blocks to the given chain.
+     */
+    public HeadersFirstDownload(NetworkParameters params, AbstractBlockChain chain, BlockDownloadScheduler scheduler,
+                                Peer peer) {
+        this.params = checkNotNull(params);
+        this.chain = checkNotNull(chain);
+        this.scheduler = checkNotNull(scheduler);
+        this.peer = checkNotNull(peer);
+        final int maxUnstored = params.getInterval() + 2 * HeadersMessage.MAX_HEADERS;
+        this.unstoredHeaders = new LinkedHashMap<Sha256Hash, StoredBlock>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
+                return size() > maxUnstored;
+            }
+        };
+    }
+
+    /**
+     * Starts downloading from the current chain head. The returned future completes with the number of blocks added
+     * once the peer has no more headers to give and all the blocks are in the chain. It fails if the headers don't
+     * verify, in which case the peer is disconnected, if the chain rejects a block, or if the peer goes away.
+     */
+    public ListenableFuture<Integer> start() {
+        checkState(!started, "Already started");
+        started = true;
+        log.info("{}: Starting headers first download from height {}", peer, chain.getBestChainHeight());
+        requestHeaders(Peer.buildBlockLocator(params, chain.getBlockStore(), chain.getChainHead()));
+        return future;
+    }
+
+    /** Returns the future returned by {@link #start()}. */
+    public ListenableFuture<Integer> getFuture() {
+        return future;
+    }
+
+    private void requestHeaders(List<Sha256Hash> blockLocator) {
+        Futures.addCallback(peer.getHeaders(blockLocator, Sha256Hash.ZERO_HASH), new FutureCallback<HeadersMessage>() {
+            @Override
+            public void onSuccess(HeadersMessage result) {
+                processHeaders(result.getBlockHeaders());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.setException(t);
+            }
+        }, Threading.SAME_THREAD);
+    }
+
+    private void processHeaders(List<Block> headers) {
+        if (future.isDone())
+            return;
+        if (headers.isEmpty()) {
+            finishAfter(lastBatch);
+            return;
+        }
+        StoredBlock last;
+        try {
+            last = chain.verifyHeaders(headers, unstoredHeaders);
+        } catch (VerificationException e) {
+            log.warn("{}: Sent headers which failed verification, disconnecting", peer, e);
+            peer.close();
+            future.setException(e);
+            return;
+        } catch (BlockStoreException e) {
+            future.setException(e);
+            return;
+        }
+        log.info("{}: Verified headers up to height {}, fetching {} blocks", peer, last.getHeight(), headers.size());
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(headers.size());
+        for (Block header : headers)
+            hashes.add(header.getHash());
+        ListenableFuture<Integer> batch = scheduler.download(hashes);
+        blocksQueued.addAndGet(hashes.size());
+        ListenableFuture<Integer> previousBatch = lastBatch;
+        lastBatch = batch;
+        Futures.addCallback(batch, new FutureCallback<Integer>() {
+            @Override
+            public void onSuccess(Integer result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.setException(t);
+            }
+        }, Threading.SAME_THREAD);
+
+        if (headers.size() < HeadersMessage.MAX_HEADERS) {
+            // A short batch means the peer has nothing more.
+            finishAfter(batch);
+            return;
+        }
+        final List<Sha256Hash> locator = Collections.singletonList(last.getHeader().getHash());
+        Runnable requestNext = new Runnable() {
+            @Override
+            public void run() {
+                if (!future.isDone())
+                    requestHeaders(locator);
+            }
+        };
+        if (previousBatch == null)
+            requestNext.run();
+        else
+            previousBatch.addListener(requestNext, Threading.SAME_THREAD);
+    }
+
+    private void finishAfter(@Nullable ListenableFuture<Integer> batch) {
+        if (batch == null) {
+            log.info("{}: Headers first download finished, chain already up to date", peer);
+            future.set(0);
+            return;
+        }
+        Futures.addCallback(batch, new FutureCallback<Integer>() {
+            @Override
+            public void onSuccess(Integer result) {
+                log.info("{}: Headers first download finished, added {} blocks", peer, blocksQueued.get());
+                future.set(blocksQueued.get());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                future.setException(t);
+            }
+        }, Threading.SAME_THREAD);
+    }
+}
@@ -24,12 +24,12 @@ import javax.annotation.Nullable;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -43,10 +43,14 @@ import static com.google.common.base.Preconditions.checkState;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Satoshi clients memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>Every peer's inv processing goes through here, so the pool is split into shards by transaction hash, each with
+ * its own lock. Lookups ({@link #maybeWasSeen(Sha256Hash)}, {@link #numBroadcastPeers(Sha256Hash)} and
+ * {@link #get(Sha256Hash)}) take no lock at all. When a shard goes over its share of the entry or byte budget the
+ * oldest entries in it are forgotten first.</p>
  */
 public class MemoryPool {
     private static final Logger log = LoggerFactory.getLogger(MemoryPool.class);
-    protected ReentrantLock lock = Threading.lock("mempool");
 
     // For each transaction we may have seen:
     //   - only its hash in an inv packet
@@ -64,40 +68,81 @@ public class MemoryPool {
         }
     }
     private static class Entry {
-        // Invariants: one of the two fields must be null, to indicate which is used.
-        Set<PeerAddress> addresses;
+        final Sha256Hash hash;
+        // Invariants: one of the two fields must be null, to indicate which is used. Both are written with the shard
+        // lock held but read without it, so tx is always set before addresses is cleared.
+        //
+        // The peers that announced the hash. The array is replaced rather than modified, so readers can use it as is.
+        volatile PeerAddress[] addresses;
         // We keep a weak reference to the transaction. This means that if no other bit of code finds the transaction
         // worth keeping around it will drop out of memory and we will, at some point, forget about it, which means
         // both addresses and tx.get() will be null. When this happens the WeakTransactionReference appears in the queue
         // allowing us to delete the associated entry (the tx itself has already gone away).
-        WeakTransactionReference tx;
+        volatile WeakTransactionReference tx;
+        // Set once the entry has been taken out of its shard's map, guarded by the shard lock.
+        boolean removed;
+
+        Entry(Sha256Hash hash) {
+            this.hash = hash;
+        }
     }
-    private LinkedHashMap<Sha256Hash, Entry> memoryPool;
+
+    // Rough heap cost of an entry (map node, hash, Entry, reference and queue slot) and of each announcing peer on top
+    // of that. The PeerAddress objects themselves belong to the peers.
+    private static final int ENTRY_BYTES = 160;
+    private static final int ADDRESS_BYTES = 8;
+
+    private static class Shard {
+        final ReentrantLock lock = Threading.lock("mempool");
+        final ConcurrentHashMap<Sha256Hash, Entry> entries = new ConcurrentHashMap<Sha256Hash, Entry>(16, 0.75f, 1);
+        // Entries oldest first. Ones removed from the map some other way than eviction stay here until they are
+        // reached or the queue is compacted.
+        ArrayDeque<Entry> order = new ArrayDeque<Entry>();
+        long bytes;
+    }
+    private final Shard[] shards;
+    private final int maxEntriesPerShard;
+    private final long maxBytesPerShard;
 
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the MemoryPool is the
     // only thing that is tracking the transaction anymore. We check it from time to time and delete memoryPool entries
     // corresponding to expired transactions. In this way memory usage of the system is in line with however many
     // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<Transaction> referenceQueue;
+    // if our peers flood us with invs but the size and byte limits cap this.
+    private final ReferenceQueue<Transaction> referenceQueue;
 
     /** The max size of a memory pool created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
 
+    // Shards are only worth having when each one still holds a decent number of entries.
+    private static final int MAX_SHARDS = 16;
+    private static final int MIN_ENTRIES_PER_SHARD = 64;
+
     /**
      * Creates a memory pool that will track at most the given number of transactions (allowing you to bound memory
      * usage).
      * @param size Max number of transactions to track. The pool will fill up to this size then stop growing.
      */
     public MemoryPool(final int size) {
-        memoryPool = new LinkedHashMap<Sha256Hash, Entry>() {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Entry> entry) {
-                // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
-                // of some kind of DoS attack.
-                return size() > size;
-            }
-        };
+        this(size, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a memory pool that will track at most the given number of transactions, and stop growing once its
+     * entries take up roughly the given number of bytes. Only the pool's own bookkeeping is counted, as the
+     * transactions themselves are only weakly referenced: a hash announced by many peers costs more than one announced
+     * by a single peer.
+     * @param size Max number of transactions to track.
+     * @param maxBytes Max number of bytes the tracking may use.
+     */
+    public MemoryPool(final int size, final long maxBytes) {
+        checkArgument(size > 0 && maxBytes > 0);
+        int numShards = Integer.highestOneBit(Math.max(1, Math.min(MAX_SHARDS, size / MIN_ENTRIES_PER_SHARD)));
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++)
+            shards[i] = new Shard();
+        maxEntriesPerShard = (size + numShards - 1) / numShards;
+        maxBytesPerShard = maxBytes == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, maxBytes / numShards);
         referenceQueue = new ReferenceQueue<Transaction>();
     }
 
@@ -109,57 +154,101 @@ public class MemoryPool {
         this(MAX_SIZE);
     }
 
+    private Shard shardFor(Sha256Hash hash) {
+        // The map inside the shard hashes on the low bits, so pick the shard with the high ones.
+        return shards[(hash.hashCode() >>> 24) & (shards.length - 1)];
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * memoryPool entries - it means we downloaded the transaction and sent it to various event listeners, none of
      * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
-     * are relevant to any of our wallets.
+     * are relevant to any of our wallets. Must be called without holding any shard lock, as it takes them.
      */
     private void cleanPool() {
-        lock.lock();
-        try {
-            Reference<? extends Transaction> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakTransactionReference txRef = (WeakTransactionReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
-                memoryPool.remove(txRef.hash);
+        Reference<? extends Transaction> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakTransactionReference txRef = (WeakTransactionReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed.
+            Shard shard = shardFor(txRef.hash);
+            shard.lock.lock();
+            try {
+                Entry entry = shard.entries.get(txRef.hash);
+                if (entry != null && entry.tx == txRef)
+                    remove(shard, entry);
+            } finally {
+                shard.lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
+    private void add(Shard shard, Entry entry) {
+        checkState(shard.lock.isHeldByCurrentThread());
+        shard.entries.put(entry.hash, entry);
+        shard.order.addLast(entry);
+        shard.bytes += entryBytes(entry);
+        evict(shard);
+        // Entries removed by cleanPool pile up in the queue if nothing is being evicted, so drop them now and then.
+        if (shard.order.size() > 2 * shard.entries.size() + MIN_ENTRIES_PER_SHARD) {
+            ArrayDeque<Entry> live = new ArrayDeque<Entry>(shard.entries.size());
+            for (Entry e : shard.order)
+                if (!e.removed)
+                    live.addLast(e);
+            shard.order = live;
+        }
+    }
+
+    private void evict(Shard shard) {
+        // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
+        // of some kind of DoS attack.
+        while (shard.entries.size() > maxEntriesPerShard || shard.bytes > maxBytesPerShard) {
+            Entry eldest = shard.order.pollFirst();
+            if (eldest == null)
+                break;
+            if (!eldest.removed)
+                remove(shard, eldest);
+        }
+    }
+
+    private void remove(Shard shard, Entry entry) {
+        checkState(shard.lock.isHeldByCurrentThread());
+        shard.entries.remove(entry.hash);
+        shard.bytes -= entryBytes(entry);
+        entry.removed = true;
+    }
+
+    private static long entryBytes(Entry entry) {
+        PeerAddress[] addresses = entry.addresses;
+        return ENTRY_BYTES + (addresses == null ? 0 : addresses.length * ADDRESS_BYTES);
+    }
+
     /**
      * Returns the number of peers that have seen the given hash recently.
      */
     public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
-        try {
-            cleanPool();
-            Entry entry = memoryPool.get(txHash);
-            if (entry == null) {
-                // No such TX known.
+        Entry entry = shardFor(txHash).entries.get(txHash);
+        if (entry == null) {
+            // No such TX known.
+            return 0;
+        }
+        // Read the addresses first: they are only cleared after the transaction has been set.
+        PeerAddress[] addresses = entry.addresses;
+        WeakTransactionReference txRef = entry.tx;
+        if (txRef == null) {
+            // We've seen at least one peer announce with an inv.
+            checkNotNull(addresses);
+            return addresses.length;
+        } else {
+            final Transaction tx = txRef.get();
+            if (tx == null) {
+                // We previously downloaded this transaction, but nothing cared about it so the garbage collector threw
+                // it away. We also deleted the set that tracked which peers had seen it. Treat this case as a zero,
+                // cleanPool will delete it from the map.
                 return 0;
-            } else if (entry.tx == null) {
-                // We've seen at least one peer announce with an inv.
-                checkNotNull(entry.addresses);
-                return entry.addresses.size();
             } else {
-                final Transaction tx = entry.tx.get();
-                if (tx == null) {
-                    // We previously downloaded this transaction, but nothing cared about it so the garbage collector threw
-                    // it away. We also deleted the set that tracked which peers had seen it. Treat this case as a zero and
-                    // just delete it from the map.
-                    memoryPool.remove(txHash);
-                    return 0;
-                } else {
-                    checkState(entry.addresses == null);
-                    return tx.getConfidence().numBroadcastPeers();
-                }
+                return tx.getConfidence().numBroadcastPeers();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -169,48 +258,55 @@ public class MemoryPool {
      * not mark it as such.
      */
     public Transaction intern(Transaction tx) {
-        lock.lock();
+        cleanPool();
+        Shard shard = shardFor(tx.getHash());
+        shard.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(tx.getHash());
-            if (entry != null) {
-                // This TX or its hash have been previously interned.
-                if (entry.tx != null) {
-                    // We already interned it (but may have thrown it away).
-                    checkState(entry.addresses == null);
-                    // We only want one canonical object instance for a transaction no matter how many times it is
-                    // deserialized.
-                    Transaction transaction = entry.tx.get();
-                    if (transaction != null) {
-                        // We saw it before and kept it around. Hand back the canonical copy.
-                        tx = transaction;
-                    }
-                    return tx;
-                } else {
-                    // We received a transaction that we have previously seen announced but not downloaded until now.
-                    checkNotNull(entry.addresses);
-                    entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                    Set<PeerAddress> addrs = entry.addresses;
-                    entry.addresses = null;
-                    TransactionConfidence confidence = tx.getConfidence();
-                    log.debug("Adding tx [{}] {} to the memory pool",
-                            confidence.numBroadcastPeers(), tx.getHashAsString());
-                    for (PeerAddress a : addrs) {
-                        markBroadcast(a, tx);
-                    }
-                    return tx;
+            return intern(shard, tx);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    private Transaction intern(Shard shard, Transaction tx) {
+        Entry entry = shard.entries.get(tx.getHash());
+        if (entry != null) {
+            // This TX or its hash have been previously interned.
+            if (entry.tx != null) {
+                // We already interned it (but may have thrown it away).
+                checkState(entry.addresses == null);
+                // We only want one canonical object instance for a transaction no matter how many times it is
+                // deserialized.
+                Transaction transaction = entry.tx.get();
+                if (transaction != null) {
+                    // We saw it before and kept it around. Hand back the canonical copy.
+                    tx = transaction;
                 }
+                return tx;
             } else {
-                // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
-                // dependencies of a relevant transaction (see Peer.downloadDependencies).
-                log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
-                entry = new Entry();
+                // We received a transaction that we have previously seen announced but not downloaded until now.
+                PeerAddress[] addrs = checkNotNull(entry.addresses);
+                TransactionConfidence confidence = tx.getConfidence();
+                log.debug("Adding tx [{}] {} to the memory pool",
+                        confidence.numBroadcastPeers(), tx.getHashAsString());
+                // Move the peers over before publishing the transaction, so lock-free readers never see a count
+                // that goes backwards.
+                for (PeerAddress a : addrs) {
+                    markBroadcast(shard, a, tx);
+                }
                 entry.tx = new WeakTransactionReference(tx, referenceQueue);
-                memoryPool.put(tx.getHash(), entry);
+                entry.addresses = null;
+                shard.bytes -= addrs.length * ADDRESS_BYTES;
                 return tx;
             }
-        } finally {
-            lock.unlock();
+        } else {
+            // This often happens when we are downloading a Bloom filtered chain, or recursively downloading
+            // dependencies of a relevant transaction (see Peer.downloadDependencies).
+            log.debug("Provided with a downloaded transaction we didn't see announced yet: {}", tx.getHashAsString());
+            entry = new Entry(tx.getHash());
+            entry.tx = new WeakTransactionReference(tx, referenceQueue);
+            add(shard, entry);
+            return tx;
         }
     }
 
@@ -221,13 +317,15 @@ public class MemoryPool {
      * @return An object that is semantically the same TX but may be a different object instance.
      */
     public Transaction seen(Transaction tx, PeerAddress byPeer) {
-        lock.lock();
+        cleanPool();
+        Shard shard = shardFor(tx.getHash());
+        shard.lock.lock();
         try {
-            final Transaction interned = intern(tx);
-            markBroadcast(byPeer, interned);
+            final Transaction interned = intern(shard, tx);
+            markBroadcast(shard, byPeer, interned);
             return interned;
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
         }
     }
 
@@ -236,17 +334,18 @@ public class MemoryPool {
      * confidence of the pre-existing transaction or will just keep a record of the address for future usage.
      */
     public void seen(Sha256Hash hash, PeerAddress byPeer) {
-        lock.lock();
+        cleanPool();
+        Shard shard = shardFor(hash);
+        shard.lock.lock();
         try {
-            cleanPool();
-            Entry entry = memoryPool.get(hash);
+            Entry entry = shard.entries.get(hash);
             if (entry != null) {
                 // This TX or its hash have been previously announced.
                 if (entry.tx != null) {
                     checkState(entry.addresses == null);
                     Transaction tx = entry.tx.get();
                     if (tx != null) {
-                        markBroadcast(byPeer, tx);
+                        markBroadcast(shard, byPeer, tx);
                         log.debug("{}: Peer announced transaction we have seen before [{}] {}",
                                 byPeer, tx.getConfidence().numBroadcastPeers(), tx.getHashAsString());
                     } else {
@@ -254,27 +353,31 @@ public class MemoryPool {
                         // because nothing found it interesting enough to keep around. So do nothing.
                     }
                 } else {
-                    checkNotNull(entry.addresses);
-                    entry.addresses.add(byPeer);
+                    PeerAddress[] addresses = checkNotNull(entry.addresses);
+                    if (!Arrays.asList(addresses).contains(byPeer)) {
+                        addresses = Arrays.copyOf(addresses, addresses.length + 1);
+                        addresses[addresses.length - 1] = byPeer;
+                        entry.addresses = addresses;
+                        shard.bytes += ADDRESS_BYTES;
+                        evict(shard);
+                    }
                     log.debug("{}: Peer announced transaction we have seen announced before [{}] {}",
-                            byPeer, entry.addresses.size(), hash);
+                            byPeer, addresses.length, hash);
                 }
             } else {
                 // This TX has never been seen before.
-                entry = new Entry();
-                // TODO: Using hashsets here is inefficient compared to just having an array.
-                entry.addresses = new HashSet<PeerAddress>();
-                entry.addresses.add(byPeer);
-                memoryPool.put(hash, entry);
+                entry = new Entry(hash);
+                entry.addresses = new PeerAddress[] { byPeer };
+                add(shard, entry);
                 log.info("{}: Peer announced new transaction [1] {}", byPeer, hash);
             }
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
         }
     }
 
-    private void markBroadcast(PeerAddress byPeer, Transaction tx) {
-        checkState(lock.isHeldByCurrentThread());
+    private void markBroadcast(Shard shard, PeerAddress byPeer, Transaction tx) {
+        checkState(shard.lock.isHeldByCurrentThread());
         final TransactionConfidence confidence = tx.getConfidence();
         if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
@@ -287,18 +390,11 @@ public class MemoryPool {
      */
     @Nullable
     public Transaction get(Sha256Hash hash) {
-        lock.lock();
-        try {
-            Entry entry = memoryPool.get(hash);
-            if (entry == null) return null;  // Unknown.
-            if (entry.tx == null) return null;  // Seen but only in advertisements.
-            if (entry.tx.get() == null) return null;  // Was downloaded but garbage collected.
-            Transaction tx = entry.tx.get();
-            checkNotNull(tx);
-            return tx;
-        } finally {
-            lock.unlock();
-        }
+        Entry entry = shardFor(hash).entries.get(hash);
+        if (entry == null) return null;  // Unknown.
+        WeakTransactionReference txRef = entry.tx;
+        if (txRef == null) return null;  // Seen but only in advertisements.
+        return txRef.get();  // Null if it was downloaded but garbage collected.
     }
 
     /**
@@ -307,12 +403,14 @@ public class MemoryPool {
      * collector and wasSeen() will return false - it does not keep a permanent record of every hash ever broadcast.
      */
     public boolean maybeWasSeen(Sha256Hash hash) {
-        lock.lock();
-        try {
-            Entry entry = memoryPool.get(hash);
-            return entry != null;
-        } finally {
-            lock.unlock();
-        }
+        return shardFor(hash).entries.containsKey(hash);
+    }
+
+    /** Returns the number of transactions and announced hashes currently tracked. */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards)
+            size += shard.entries.size();
+        return size;
     }
 }
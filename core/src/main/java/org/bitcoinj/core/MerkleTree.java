@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+/**
+ * <p>The complete merkle tree of a block's transactions, as described in {@link Block}. Every node of every level is
+ * kept, 32 bytes each and in wire byte order, in one flat array, so that once built the tree can answer for the root
+ * and for any interior node, which is what {@link PartialMerkleTree}s are made of, without hashing anything again.</p>
+ *
+ * <p>Levels wide enough to be worth it are hashed in parallel. Trees are immutable and safe to share between
+ * threads.</p>
+ */
+class MerkleTree {
+    // Below this many pairs a level is hashed on the calling thread, as handing work to other threads costs more.
+    private static final int MIN_PAIRS_PER_TASK = 256;
+
+    private final int leafCount;
+    // Every level, leaves first and root last.
+    private final byte[] nodes;
+    // The index of the first node of each level.
+    private final int[] levelStarts;
+
+    private MerkleTree(int leafCount, byte[] nodes, int[] levelStarts) {
+        this.leafCount = leafCount;
+        this.nodes = nodes;
+        this.levelStarts = levelStarts;
+    }
+
+    /** Builds the tree over the given transaction hashes, hashing wide levels on {@link Threading#THREAD_POOL}. */
+    static MerkleTree build(List<Sha256Hash> leaves) {
+        return build(leaves, Threading.THREAD_POOL);
+    }
+
+    /** Builds the tree over the given transaction hashes, hashing wide levels on the given executor. */
+    static MerkleTree build(List<Sha256Hash> leaves, Executor executor) {
+        int leafCount = leaves.size();
+        checkArgument(leafCount > 0, "A merkle tree needs at least one leaf");
+        int height = 0;
+        int totalNodes = leafCount;
+        for (int width = leafCount; width > 1; width = (width + 1) / 2) {
+            height++;
+            totalNodes += (width + 1) / 2;
+        }
+        int[] levelStarts = new int[height + 1];
+        for (int level = 1, width = leafCount; level <= height; level++, width = (width + 1) / 2)
+            levelStarts[level] = levelStarts[level - 1] + width;
+        byte[] nodes = new byte[totalNodes * 32];
+        int pos = 0;
+        for (Sha256Hash leaf : leaves) {
+            // Sha256Hash holds hashes in big endian form, but they are hashed together in wire order.
+            byte[] bytes = leaf.getBytes();
+            for (int i = 0; i < 32; i++)
+                nodes[pos + i] = bytes[31 - i];
+            pos += 32;
+        }
+        for (int level = 1, width = leafCount; level <= height; level++, width = (width + 1) / 2)
+            hashLevel(nodes, levelStarts[level - 1], width, levelStarts[level], executor);
+        return new MerkleTree(leafCount, nodes, levelStarts);
+    }
+
+    // Hashes the pairs of the level of the given width into the level above it. Where the width is odd, the last node
+    // is paired with itself.
+    private static void hashLevel(final byte[] nodes, final int childStart, final int childWidth, final int parentStart,
+                                  Executor executor) {
+        int pairs = (childWidth + 1) / 2;
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (pairs < MIN_PAIRS_PER_TASK * 2 || processors == 1) {
+            hashPairs(nodes, childStart, childWidth, parentStart, 0, pairs);
+            return;
+        }
+        int perTask = Math.max(MIN_PAIRS_PER_TASK, (pairs + processors - 1) / processors);
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+        for (int start = 0; start < pairs; start += perTask) {
+            final int from = start, to = Math.min(pairs, start + perTask);
+            tasks.add(new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    hashPairs(nodes, childStart, childWidth, parentStart, from, to);
+                }
+            }, null));
+        }
+        for (int i = 1; i < tasks.size(); i++)
+            executor.execute(tasks.get(i));
+        tasks.get(0).run();
+        try {
+            for (FutureTask<Void> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static void hashPairs(byte[] nodes, int childStart, int childWidth, int parentStart, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int left = childStart + i * 2;
+            int right = childStart + Math.min(i * 2 + 1, childWidth - 1);
+            Utils.doubleDigestTwoBuffers(nodes, left * 32, 32, nodes, right * 32, 32, nodes, (parentStart + i) * 32);
+        }
+    }
+
+    /** Returns the number of transactions the tree was built over. */
+    int getLeafCount() {
+        return leafCount;
+    }
+
+    /** Returns the number of levels above the leaves. */
+    int getHeight() {
+        return levelStarts.length - 1;
+    }
+
+    /** Returns the number of nodes at the given height, where the leaves are at height zero. */
+    int getWidth(int height) {
+        return (leafCount + (1 << height) - 1) >> height;
+    }
+
+    /** Returns the node at the given height and position, in big endian form like {@link Transaction#getHash()}. */
+    Sha256Hash getHash(int height, int pos) {
+        checkElementIndex(height, levelStarts.length);
+        checkElementIndex(pos, getWidth(height));
+        int start = (levelStarts[height] + pos) * 32;
+        byte[] bytes = new byte[32];
+        for (int i = 0; i < 32; i++)
+            bytes[i] = nodes[start + 31 - i];
+        return new Sha256Hash(bytes);
+    }
+
+    /** Returns the merkle root, in big endian form like {@link Block#getMerkleRoot()}. */
+    Sha256Hash getRoot() {
+        return getHash(getHeight(), 0);
+    }
+}
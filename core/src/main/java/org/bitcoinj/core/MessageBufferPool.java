@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A pool of byte arrays for holding message payloads while they are read and parsed, so that receiving a block
+ * doesn't mean allocating (and soon after collecting) megabytes of arrays for every peer that sends it. Arrays come
+ * in power of two sizes from 4 kilobytes up to {@link Message#MAX_SIZE}, and are handed out wrapped in a reference
+ * counted {@link Buffer}. The array goes back to the pool when the last reference is released, so it must not be
+ * touched after that.</p>
+ *
+ * <p>At most {@link #getMaxPooledBytes()} bytes of idle arrays are kept, anything beyond that is left to the garbage
+ * collector. The pool is thread safe and is meant to be shared between all the peers of a {@link PeerGroup}, see
+ * {@link PeerGroup#setMessageBufferPool(MessageBufferPool)}.</p>
+ */
+public class MessageBufferPool {
+    /** The default limit on the number of bytes held by idle arrays. */
+    public static final long DEFAULT_MAX_POOLED_BYTES = 16 * 1024 * 1024;
+
+    private static final int MIN_SIZE_SHIFT = 12;
+
+    private final long maxPooledBytes;
+    private final List<ConcurrentLinkedQueue<byte[]>> free;
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final AtomicLong bytesAllocated = new AtomicLong();
+    private final AtomicLong bytesReused = new AtomicLong();
+
+    public MessageBufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES);
+    }
+
+    /**
+     * @param maxPooledBytes how many bytes of idle arrays may be kept for reuse
+     */
+    public MessageBufferPool(long maxPooledBytes) {
+        checkArgument(maxPooledBytes >= 0);
+        this.maxPooledBytes = maxPooledBytes;
+        int sizes = sizeClass(Message.MAX_SIZE) + 1;
+        free = new ArrayList<ConcurrentLinkedQueue<byte[]>>(sizes);
+        for (int i = 0; i < sizes; i++)
+            free.add(new ConcurrentLinkedQueue<byte[]>());
+    }
+
+    /**
+     * Returns a buffer whose array is at least the given number of bytes long, holding one reference. The contents of
+     * the array are undefined.
+     */
+    public Buffer acquire(int size) {
+        checkArgument(size >= 0 && size <= Message.MAX_SIZE, "Bad buffer size: %s", size);
+        int sizeClass = sizeClass(size);
+        byte[] array = free.get(sizeClass).poll();
+        if (array != null) {
+            pooledBytes.addAndGet(-array.length);
+            bytesReused.addAndGet(array.length);
+        } else {
+            array = new byte[1 << (sizeClass + MIN_SIZE_SHIFT)];
+            bytesAllocated.addAndGet(array.length);
+        }
+        return new Buffer(array);
+    }
+
+    /** Returns how many bytes of idle arrays the pool may keep. */
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    /** Returns the total size of the arrays this pool has had to allocate. */
+    public long getBytesAllocated() {
+        return bytesAllocated.get();
+    }
+
+    /** Returns the total size of the arrays this pool has handed out again instead of allocating new ones. */
+    public long getBytesReused() {
+        return bytesReused.get();
+    }
+
+    private void recycle(byte[] array) {
+        long pooled;
+        do {
+            pooled = pooledBytes.get();
+            if (pooled + array.length > maxPooledBytes)
+                return;
+        } while (!pooledBytes.compareAndSet(pooled, pooled + array.length));
+        free.get(sizeClass(array.length)).add(array);
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT)
+            return 0;
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SIZE_SHIFT;
+    }
+
+    /** A reference counted array from a {@link MessageBufferPool}. */
+    public class Buffer {
+        private final byte[] array;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        private Buffer(byte[] array) {
+            this.array = array;
+        }
+
+        /** Returns the array, which may be longer than the size asked for. */
+        public byte[] array() {
+            return array;
+        }
+
+        /** Adds a reference, which must be given up with {@link #release()}. */
+        public Buffer retain() {
+            int count;
+            do {
+                count = refCount.get();
+                checkState(count > 0, "Buffer was already released");
+            } while (!refCount.compareAndSet(count, count + 1));
+            return this;
+        }
+
+        /** Gives up a reference, returning the array to the pool if it was the last one. */
+        public void release() {
+            int count = refCount.decrementAndGet();
+            checkState(count >= 0, "Buffer was already released");
+            if (count == 0)
+                recycle(array);
+        }
+    }
+}
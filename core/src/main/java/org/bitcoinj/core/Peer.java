@@ -123,6 +123,8 @@ public class Peer extends PeerSocketHandler {
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
     private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    // Set whilst waiting for the answer to a getHeaders() call.
+    @GuardedBy("lock") @Nullable private SettableFuture<HeadersMessage> headersFuture;
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -276,6 +278,17 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
+        super.connectionClosed();
+        SettableFuture<HeadersMessage> future;
+        lock.lock();
+        try {
+            future = headersFuture;
+            headersFuture = null;
+        } finally {
+            lock.unlock();
+        }
+        if (future != null)
+            future.cancel(false);
         for (final PeerListenerRegistration registration : eventListeners) {
             if (registration.callOnDisconnect)
                 registration.executor.execute(new Runnable() {
@@ -356,7 +369,19 @@ public class Peer extends PeerSocketHandler {
             // we should save them in the wallet so we don't put too much load on the seed nodes and can
             // properly explore the network.
         } else if (m instanceof HeadersMessage) {
-            processHeaders((HeadersMessage) m);
+            SettableFuture<HeadersMessage> future;
+            lock.lock();
+            try {
+                future = headersFuture;
+                headersFuture = null;
+            } finally {
+                lock.unlock();
+            }
+            // Was this requested by getHeaders()?
+            if (future != null)
+                future.set((HeadersMessage) m);
+            else
+                processHeaders((HeadersMessage) m);
         } else if (m instanceof AlertMessage) {
             processAlert((AlertMessage) m);
         } else if (m instanceof VersionMessage) {
@@ -463,6 +488,17 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    @Override
+    protected void blockRejected(Sha256Hash hash, VerificationException e) {
+        // Fail any getBlock() waiting for it, which would otherwise never complete.
+        for (GetDataRequest req : getDataFutures) {
+            if (hash.equals(req.hash)) {
+                req.future.setException(e);
+                getDataFutures.remove(req);
+            }
+        }
+    }
+
     private void processAlert(AlertMessage m) {
         try {
             if (m.isSignatureValid()) {
@@ -571,9 +607,25 @@ public class Peer extends PeerSocketHandler {
             return;
         }
         log.info("{}: Sending {} items gathered from listeners to peer", getAddress(), items.size());
+        // A peer that isn't keeping up with what we already sent it is told we don't have the rest, so that it can
+        // ask someone else rather than have more queued behind the backlog.
+        Set<Sha256Hash> skipped = new HashSet<Sha256Hash>();
         for (Message item : items) {
-            sendMessage(item);
+            if ((item instanceof Block || item instanceof Transaction) && isSendBacklogged())
+                skipped.add(item.getHash());
+            else
+                sendMessage(item);
         }
+        if (skipped.isEmpty())
+            return;
+        log.info("{}: Send backlog of {} bytes, answering notfound for {} items", getAddress(), getBytesQueued(),
+                skipped.size());
+        NotFoundMessage notFound = new NotFoundMessage(params);
+        for (InventoryItem item : getdata.getItems()) {
+            if (skipped.contains(item.hash))
+                notFound.addItem(item);
+        }
+        sendMessage(notFound);
     }
 
     private void processTransaction(Transaction tx) throws VerificationException {
@@ -1143,6 +1195,36 @@ public class Peer extends PeerSocketHandler {
         return sendSingleGetData(getdata);
     }
 
+    /**
+     * Asks the connected peer for all the given blocks with a single getdata message, and returns a future for each
+     * of them in the same order. As with {@link #getBlock(Sha256Hash)}, the blocks are handed to the futures rather
+     * than to the block chain. A future fails if the peer replies that it doesn't have the block, and cancelling it
+     * forgets about the request.
+     */
+    @SuppressWarnings("unchecked")
+    public List<ListenableFuture<Block>> getBlocks(List<Sha256Hash> blockHashes) {
+        // This does not need to be locked.
+        GetDataMessage getdata = new GetDataMessage(params);
+        List<ListenableFuture<Block>> futures = new ArrayList<ListenableFuture<Block>>(blockHashes.size());
+        for (Sha256Hash hash : blockHashes) {
+            getdata.addBlock(hash);
+            final GetDataRequest req = new GetDataRequest();
+            req.future = SettableFuture.create();
+            req.hash = hash;
+            req.future.addListener(new Runnable() {
+                @Override
+                public void run() {
+                    getDataFutures.remove(req);
+                }
+            }, Threading.SAME_THREAD);
+            getDataFutures.add(req);
+            futures.add(req.future);
+        }
+        if (!blockHashes.isEmpty())
+            sendMessage(getdata);
+        return futures;
+    }
+
     /**
      * Asks the connected peer for the given transaction from its memory pool. Transactions in the chain cannot be
      * retrieved this way because peers don't have a transaction ID to transaction-pos-on-disk index, and besides,
@@ -1258,17 +1340,7 @@ public class Peer extends PeerSocketHandler {
         // headers and then request the blocks from that point onwards. "getheaders" does not send us an inv, it just
         // sends us the data we requested in a "headers" message.
 
-        // TODO: Block locators should be abstracted out rather than special cased here.
-        List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
-        // For now we don't do the exponential thinning as suggested here:
-        //
-        //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
-        //
-        // This is because it requires scanning all the block chain headers, which is very slow. Instead we add the top
-        // 100 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
-        // must always put the genesis block as the first entry.
-        BlockStore store = checkNotNull(blockChain).getBlockStore();
-        StoredBlock chainHead = blockChain.getChainHead();
+        StoredBlock chainHead = checkNotNull(blockChain).getChainHead();
         Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
         // Did we already make this request? If so, don't do it again.
         if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
@@ -1278,6 +1350,36 @@ public class Peer extends PeerSocketHandler {
         if (log.isDebugEnabled())
             log.debug("{}: blockChainDownloadLocked({}) current head = {}",
                     toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
+        List<Sha256Hash> blockLocator = buildBlockLocator(params, blockChain.getBlockStore(), chainHead);
+
+        // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
+        // block being solved during chain download.
+        lastGetBlocksBegin = chainHeadHash;
+        lastGetBlocksEnd = toHash;
+
+        if (downloadBlockBodies) {
+            GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
+            sendMessage(message);
+        } else {
+            // Downloading headers for a while instead of full blocks.
+            GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
+            sendMessage(message);
+        }
+    }
+
+    /**
+     * Returns a block locator describing the chain ending at the given block, for use in getblocks and getheaders.
+     */
+    static List<Sha256Hash> buildBlockLocator(NetworkParameters params, BlockStore store, StoredBlock chainHead) {
+        // TODO: Block locators should be abstracted out rather than special cased here.
+        List<Sha256Hash> blockLocator = new ArrayList<Sha256Hash>(51);
+        // For now we don't do the exponential thinning as suggested here:
+        //
+        //   https://en.bitcoin.it/wiki/Protocol_specification#getblocks
+        //
+        // This is because it requires scanning all the block chain headers, which is very slow. Instead we add the top
+        // 100 block headers. If there is a re-org deeper than that, we'll end up downloading the entire chain. We
+        // must always put the genesis block as the first entry.
         StoredBlock cursor = chainHead;
         for (int i = 100; cursor != null && i > 0; i--) {
             blockLocator.add(cursor.getHeader().getHash());
@@ -1291,20 +1393,28 @@ public class Peer extends PeerSocketHandler {
         // Only add the locator if we didn't already do so. If the chain is < 50 blocks we already reached it.
         if (cursor != null)
             blockLocator.add(params.getGenesisBlock().getHash());
+        return blockLocator;
+    }
 
-        // Record that we requested this range of blocks so we can filter out duplicate requests in the event of a
-        // block being solved during chain download.
-        lastGetBlocksBegin = chainHeadHash;
-        lastGetBlocksEnd = toHash;
-
-        if (downloadBlockBodies) {
-            GetBlocksMessage message = new GetBlocksMessage(params, blockLocator, toHash);
-            sendMessage(message);
-        } else {
-            // Downloading headers for a while instead of full blocks.
-            GetHeadersMessage message = new GetHeadersMessage(params, blockLocator, toHash);
-            sendMessage(message);
+    /**
+     * <p>Sends a getheaders for up to {@link HeadersMessage#MAX_HEADERS} headers following the given locator, and
+     * returns a future for the answer. The headers are handed to the future instead of being added to the chain, so
+     * this can be used while blocks are downloaded by other means. Only one such request may be outstanding at a
+     * time.</p>
+     *
+     * <p>The future is cancelled if the peer disconnects before answering.</p>
+     */
+    public ListenableFuture<HeadersMessage> getHeaders(List<Sha256Hash> blockLocator, Sha256Hash stopHash) {
+        SettableFuture<HeadersMessage> future = SettableFuture.create();
+        lock.lock();
+        try {
+            checkState(headersFuture == null, "Already waiting for headers from " + this);
+            headersFuture = future;
+        } finally {
+            lock.unlock();
         }
+        sendMessage(new GetHeadersMessage(params, blockLocator, stopHash));
+        return future;
     }
 
     /**
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Gives each peer that announces a transaction one canonical {@link Entry}, so that every
+ * {@link TransactionConfidence} can record the peers that announced it as a sorted array of shared entries rather
+ * than of its own copies of their addresses. Peers are told apart by IP address and port only, as the time and
+ * services of a {@link PeerAddress} change from one announcement of it to the next.
+ *
+ * <p>Entries are only weakly referenced from here, so once no confidence object refers to a peer any more its entry
+ * is garbage collected and forgotten. Lookups take no lock.</p>
+ */
+class PeerAddressRegistry {
+    /** A peer as recorded by {@link TransactionConfidence}, ordered by id. */
+    static class Entry {
+        final long id;
+        final InetSocketAddress socketAddress;
+        // The address the peer was first registered with, handed back by TransactionConfidence.getBroadcastBy().
+        final PeerAddress address;
+
+        private Entry(long id, InetSocketAddress socketAddress, PeerAddress address) {
+            this.id = id;
+            this.socketAddress = socketAddress;
+            this.address = address;
+        }
+    }
+
+    private static class WeakEntryReference extends WeakReference<Entry> {
+        final InetSocketAddress socketAddress;
+
+        WeakEntryReference(Entry entry, ReferenceQueue<Entry> queue) {
+            super(entry, queue);
+            socketAddress = entry.socketAddress;
+        }
+    }
+
+    private static final ConcurrentHashMap<InetSocketAddress, WeakEntryReference> entries =
+            new ConcurrentHashMap<InetSocketAddress, WeakEntryReference>();
+    // Gets the references of entries nothing uses any more, so that their map entries can be deleted.
+    private static final ReferenceQueue<Entry> referenceQueue = new ReferenceQueue<Entry>();
+    // Ids are never reused, so that entries are always ordered the same way.
+    private static long nextId;
+
+    private PeerAddressRegistry() {}
+
+    /** Returns the entry for the given address, creating one if there is none yet. */
+    static Entry register(PeerAddress address) {
+        cleanUp();
+        InetSocketAddress socketAddress = address.toSocketAddress();
+        Entry entry = find(socketAddress);
+        return entry != null ? entry : registerLocked(socketAddress, address);
+    }
+
+    private static synchronized Entry registerLocked(InetSocketAddress socketAddress, PeerAddress address) {
+        Entry entry = find(socketAddress);
+        if (entry != null)
+            return entry;
+        entry = new Entry(nextId++, socketAddress, address);
+        entries.put(socketAddress, new WeakEntryReference(entry, referenceQueue));
+        return entry;
+    }
+
+    /** Returns the entry for the given address, or null if it doesn't have one. */
+    @Nullable
+    static Entry find(PeerAddress address) {
+        return find(address.toSocketAddress());
+    }
+
+    @Nullable
+    private static Entry find(InetSocketAddress socketAddress) {
+        WeakEntryReference ref = entries.get(socketAddress);
+        return ref == null ? null : ref.get();
+    }
+
+    // Deletes the map entries of peers that have been garbage collected.
+    private static void cleanUp() {
+        Reference<? extends Entry> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            WeakEntryReference entryRef = (WeakEntryReference) ref;
+            // A new entry may already have been registered in its place.
+            entries.remove(entryRef.socketAddress, entryRef);
+        }
+    }
+
+    /** Returns the number of peers with entries, for tests. */
+    static int size() {
+        cleanUp();
+        return entries.size();
+    }
+}
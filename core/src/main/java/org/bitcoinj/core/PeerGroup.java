@@ -127,6 +127,11 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private int maxConnections;
     // Minimum protocol version we will allow ourselves to connect to: require Bloom filtering.
     private volatile int vMinRequiredProtocolVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+    // Shared by new peers to read blocks and transactions into, if set.
+    @Nullable private volatile MessageBufferPool vMessageBufferPool;
+    private volatile boolean vStreamingBlockParsing;
+    // Processes messages from new peers off the network threads, if set.
+    @Nullable private volatile Executor vMessageExecutor;
 
     // Runs a background thread that we use for scheduling pings to our peers, so we can measure their performance
     // and network latency. We ping peers every pingIntervalMsec milliseconds.
@@ -134,12 +139,16 @@ public class PeerGroup implements TransactionBroadcaster {
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
+    /** How often windows handed out by {@link #downloadBlocks(List)} are checked for stalled peers. */
+    private static final long BLOCK_DOWNLOAD_STALL_CHECK_INTERVAL_MSEC = 5000;
 
     @GuardedBy("lock") private boolean useLocalhostPeerWhenPossible = true;
     @GuardedBy("lock") private boolean ipv6Unreachable = false;
 
     private final NetworkParameters params;
     private final AbstractBlockChain chain;
+    // Fetches full blocks from all peers at once, used by downloadBlocks().
+    @Nullable private final BlockDownloadScheduler blockDownloadScheduler;
     @GuardedBy("lock") private long fastCatchupTimeSecs;
     private final CopyOnWriteArrayList<Wallet> wallets;
     private final CopyOnWriteArrayList<PeerFilterProvider> peerFilterProviders;
@@ -316,6 +325,7 @@ public class PeerGroup implements TransactionBroadcaster {
     private PeerGroup(NetworkParameters params, @Nullable AbstractBlockChain chain, ClientConnectionManager connectionManager, @Nullable TorClient torClient) {
         this.params = checkNotNull(params);
         this.chain = chain;
+        this.blockDownloadScheduler = chain == null ? null : new BlockDownloadScheduler(chain);
         fastCatchupTimeSecs = params.getGenesisBlock().getTimeSeconds();
         wallets = new CopyOnWriteArrayList<Wallet>();
         peerFilterProviders = new CopyOnWriteArrayList<PeerFilterProvider>();
@@ -839,6 +849,7 @@ public class PeerGroup implements TransactionBroadcaster {
                 channels.awaitRunning();
                 triggerConnections();
                 setupPinging();
+                setupBlockDownloadStallChecks();
             }
         });
     }
@@ -1140,6 +1151,9 @@ public class PeerGroup implements TransactionBroadcaster {
         Peer peer = new Peer(params, ver, address, chain, memoryPool, downloadTxDependencies);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setMessageBufferPool(vMessageBufferPool);
+        peer.setStreamingBlockParsing(vStreamingBlockParsing);
+        peer.setMessageExecutor(vMessageExecutor);
         pendingPeers.add(peer);
 
         try {
@@ -1211,6 +1225,50 @@ public class PeerGroup implements TransactionBroadcaster {
         }
     }
 
+    /**
+     * <p>Downloads the given full blocks from all connected peers in parallel and adds them to the chain in the given
+     * order, after any blocks passed to earlier calls. This is faster than {@link #startBlockChainDownload} when the
+     * hashes are already known, for instance from headers, because it isn't limited by a single connection.</p>
+     *
+     * <p>The returned future completes with the number of blocks once the last of them is in the chain. Per peer
+     * statistics are available from {@link #getBlockDownloadScheduler()}.</p>
+     */
+    public ListenableFuture<Integer> downloadBlocks(List<Sha256Hash> blockHashes) {
+        checkState(blockDownloadScheduler != null, "PeerGroup was created without a block chain");
+        return blockDownloadScheduler.download(blockHashes);
+    }
+
+    /**
+     * <p>Catches the chain up using a {@link HeadersFirstDownload}: headers come from the download peer and are
+     * verified in batches before the blocks themselves are fetched from all connected peers with
+     * {@link #downloadBlocks(List)}. The returned future completes with the number of blocks added once the download
+     * peer has no more headers.</p>
+     *
+     * <p>Full blocks are downloaded, so this is meant for fully verifying chains or for catching up a wallet after long
+     * downtime where bandwidth matters less than latency. It does not replace {@link #startBlockChainDownload}, which
+     * should still be used afterwards to keep up with new blocks.</p>
+     */
+    public ListenableFuture<Integer> downloadBlockChainHeadersFirst() {
+        checkState(blockDownloadScheduler != null, "PeerGroup was created without a block chain");
+        Peer peer;
+        lock.lock();
+        try {
+            peer = downloadPeer;
+            if (peer == null && !peers.isEmpty())
+                peer = peers.get(0);
+        } finally {
+            lock.unlock();
+        }
+        checkState(peer != null, "No connected peers");
+        return new HeadersFirstDownload(params, chain, blockDownloadScheduler, peer).start();
+    }
+
+    /** Returns the scheduler used by {@link #downloadBlocks(List)}, or null if this PeerGroup has no chain. */
+    @Nullable
+    public BlockDownloadScheduler getBlockDownloadScheduler() {
+        return blockDownloadScheduler;
+    }
+
     protected void handleNewPeer(final Peer peer) {
         int newSize = -1;
         lock.lock();
@@ -1250,6 +1308,8 @@ public class PeerGroup implements TransactionBroadcaster {
         } finally {
             lock.unlock();
         }
+        if (blockDownloadScheduler != null)
+            blockDownloadScheduler.addPeer(peer);
 
         final int fNewSize = newSize;
         for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
@@ -1289,6 +1349,17 @@ public class PeerGroup implements TransactionBroadcaster {
         }, getPingIntervalMsec(), getPingIntervalMsec(), TimeUnit.MILLISECONDS);
     }
 
+    private void setupBlockDownloadStallChecks() {
+        if (blockDownloadScheduler == null)
+            return;
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                blockDownloadScheduler.checkForStalls();
+            }
+        }, BLOCK_DOWNLOAD_STALL_CHECK_INTERVAL_MSEC, BLOCK_DOWNLOAD_STALL_CHECK_INTERVAL_MSEC, TimeUnit.MILLISECONDS);
+    }
+
     private void setDownloadPeer(@Nullable Peer peer) {
         lock.lock();
         try {
@@ -1411,6 +1482,8 @@ public class PeerGroup implements TransactionBroadcaster {
             lock.unlock();
         }
 
+        if (blockDownloadScheduler != null)
+            blockDownloadScheduler.removePeer(peer);
         peer.removeEventListener(peerListener);
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
@@ -1642,6 +1715,53 @@ public class PeerGroup implements TransactionBroadcaster {
         this.vMinRequiredProtocolVersion = minRequiredProtocolVersion;
     }
 
+    /**
+     * Sets a pool that peers connected from now on read received blocks and transactions into, instead of allocating
+     * a new array for each one. Worthwhile when downloading full blocks from many peers. Pass null to go back to
+     * plain arrays.
+     */
+    public void setMessageBufferPool(@Nullable MessageBufferPool pool) {
+        this.vMessageBufferPool = pool;
+    }
+
+    /** Returns the pool set by {@link #setMessageBufferPool(MessageBufferPool)}, or null. */
+    @Nullable
+    public MessageBufferPool getMessageBufferPool() {
+        return vMessageBufferPool;
+    }
+
+    /**
+     * If true, peers connected from now on check large blocks while they are still being received, transaction by
+     * transaction, instead of reading each one into a single array first. This gets to a verdict sooner and keeps
+     * less of each block in memory at once, which matters when downloading full blocks from many peers. Blocks
+     * failing the checks are dropped rather than passed on. Off by default.
+     */
+    public void setStreamingBlockParsing(boolean streamingBlockParsing) {
+        this.vStreamingBlockParsing = streamingBlockParsing;
+    }
+
+    /** Returns whether large blocks are checked as they are received, see {@link #setStreamingBlockParsing(boolean)}. */
+    public boolean isStreamingBlockParsing() {
+        return vStreamingBlockParsing;
+    }
+
+    /**
+     * Sets an executor that peers connected from now on process received messages on, each peer's one at a time and
+     * in order, instead of on the network thread that read them. With a multi-threaded executor the messages of
+     * different peers are processed in parallel, which matters when there are many peers and only a few network
+     * threads, see {@link org.bitcoinj.net.NioClientManager#NioClientManager(int)}. Pass null to go back to processing
+     * on the network threads.
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        this.vMessageExecutor = executor;
+    }
+
+    /** Returns the executor set by {@link #setMessageExecutor(Executor)}, or null. */
+    @Nullable
+    public Executor getMessageExecutor() {
+        return vMessageExecutor;
+    }
+
     /** The minimum protocol version required: defaults to the version required for Bloom filtering. */
     public int getMinRequiredProtocolVersion() {
         return vMinRequiredProtocolVersion;
@@ -18,20 +18,25 @@ package org.bitcoinj.core;
 
 import org.bitcoinj.net.AbstractTimeoutHandler;
 import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.ReadPausable;
 import org.bitcoinj.net.StreamParser;
 import org.bitcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.NotYetConnectedException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -42,7 +47,8 @@ import static com.google.common.base.Preconditions.*;
 public abstract class PeerSocketHandler extends AbstractTimeoutHandler implements StreamParser {
     private static final Logger log = LoggerFactory.getLogger(PeerSocketHandler.class);
 
-    private final BitcoinSerializer serializer;
+    private final NetworkParameters params;
+    private volatile BitcoinSerializer serializer;
     protected PeerAddress peerAddress;
     // If we close() before we know our writeTarget, set this to true to call writeTarget.closeConnection() right away.
     private boolean closePending = false;
@@ -54,26 +60,102 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
     private byte[] largeReadBuffer;
     private int largeReadBufferPos;
+    // Set if largeReadBuffer came from a MessageBufferPool.
+    @Nullable private MessageBufferPool.Buffer largeReadPooledBuffer;
+    // Used instead of largeReadBuffer for blocks when streamingBlockParsing is set.
+    @Nullable private StreamingBlockParser streamingBlockParser;
+    private volatile boolean streamingBlockParsing;
     private BitcoinSerializer.BitcoinPacketHeader header;
+    // If set, received messages are processed on this rather than the network thread, still one at a time and in the
+    // order they arrived.
+    @Nullable private volatile Executor messageExecutor;
+    @GuardedBy("pendingMessages") private final ArrayDeque<PendingMessage> pendingMessages = new ArrayDeque<PendingMessage>();
+    @GuardedBy("pendingMessages") private boolean processingPendingMessages;
+    // Reading from the peer is paused while this many bytes of messages are waiting to be processed, so that a peer
+    // sending faster than we can process can't fill up memory.
+    private static final int MAX_PENDING_MESSAGE_BYTES = 2 * Block.MAX_BLOCK_SIZE;
+
+    /**
+     * How many bytes may be waiting to be sent to a peer before {@link #isSendBacklogged()} says it is falling behind.
+     * The same as the reference client's default send buffer limit.
+     */
+    public static final long MAX_SEND_BACKLOG_BYTES = 1000 * 1000;
+    @GuardedBy("pendingMessages") private long pendingMessageBytes;
+    @GuardedBy("pendingMessages") private boolean readPaused;
+    // Held while telling the write target about readPaused, so that the calls reach it in the order readPaused changed.
+    private final ReentrantLock readPauseLock = Threading.lock("PeerSocketHandler-readPause");
+    @GuardedBy("readPauseLock") private boolean targetReadPaused;
+    private volatile boolean connectionClosed;
+
+    private static class PendingMessage {
+        final Message message;
+        final int size;
+
+        PendingMessage(Message message, int size) {
+            this.message = message;
+            this.size = size;
+        }
+    }
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
-        serializer = new BitcoinSerializer(checkNotNull(params));
+        this.params = checkNotNull(params);
+        serializer = new BitcoinSerializer(params);
         this.peerAddress = new PeerAddress(remoteIp);
     }
 
     public PeerSocketHandler(NetworkParameters params, PeerAddress peerAddress) {
-        serializer = new BitcoinSerializer(checkNotNull(params));
+        this.params = checkNotNull(params);
+        serializer = new BitcoinSerializer(params);
         this.peerAddress = checkNotNull(peerAddress);
     }
 
+    /**
+     * Sets the pool that received blocks and transactions are read into and parsed from, see
+     * {@link BitcoinSerializer#BitcoinSerializer(NetworkParameters, boolean, boolean, MessageBufferPool)}. Must be
+     * called before the connection is opened.
+     */
+    public void setMessageBufferPool(@Nullable MessageBufferPool pool) {
+        serializer = new BitcoinSerializer(params, false, false, pool);
+    }
+
+    /**
+     * If set, blocks too large for the read buffer are parsed and checked as they arrive, by a
+     * {@link StreamingBlockParser}, rather than after being read into an array of their own. Blocks that fail the
+     * checks are logged and dropped instead of being passed to {@link #processMessage(Message)}, and
+     * {@link #blockRejected(Sha256Hash, VerificationException)} is called instead.
+     */
+    public void setStreamingBlockParsing(boolean streamingBlockParsing) {
+        this.streamingBlockParsing = streamingBlockParsing;
+    }
+
+    /**
+     * If set, messages received from the peer are passed to {@link #processMessage(Message)} on the given executor,
+     * instead of on the network thread that read and parsed them. They are still processed one at a time and in the
+     * order they arrived, but the network thread can get on with other connections in the meantime, and the messages
+     * of different peers can be processed in parallel if the executor has more than one thread. Must be called before
+     * the connection is opened.
+     */
+    public void setMessageExecutor(@Nullable Executor executor) {
+        this.messageExecutor = executor;
+    }
+
     /**
      * Sends the given message to the peer. Due to the asynchronousness of network programming, there is no guarantee
      * the peer will have received it. Throws NotYetConnectedException if we are not yet connected to the remote peer.
      * TODO: Maybe use something other than the unchecked NotYetConnectedException here
      */
     public void sendMessage(Message message) throws NotYetConnectedException {
+        sendMessage(serializer.serializeToBuffer(message), !isBulk(message));
+    }
+
+    /**
+     * Sends a message serialized by {@link BitcoinSerializer#serializeToBuffer(Message)}, which may be shared with
+     * other peers, ahead of any bulk data still waiting to be sent if urgent. Otherwise the same as
+     * {@link #sendMessage(Message)}.
+     */
+    public void sendMessage(ByteBuffer serialized, boolean urgent) throws NotYetConnectedException {
         lock.lock();
         try {
             if (writeTarget == null)
@@ -81,16 +163,52 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            writeTarget.writeBytes(serialized, urgent);
         } catch (IOException e) {
             exceptionCaught(e);
         }
     }
 
+    // Blocks, transactions and the like are sent behind the small control messages that keep a connection going.
+    private static boolean isBulk(Message message) {
+        return message instanceof Block || message instanceof FilteredBlock || message instanceof Transaction ||
+                message instanceof HeadersMessage || message instanceof InventoryMessage ||
+                message instanceof AddressMessage || message instanceof UTXOsMessage;
+    }
+
+    /**
+     * Returns true if more than {@link #MAX_SEND_BACKLOG_BYTES} are waiting to be sent to the peer, in which case bulk
+     * data such as blocks and transactions is better sent to someone else or not at all.
+     */
+    public boolean isSendBacklogged() {
+        return getBytesQueued() > MAX_SEND_BACKLOG_BYTES;
+    }
+
+    /** Returns the number of bytes waiting to be sent to the peer, or zero if not connected. */
+    public long getBytesQueued() {
+        MessageWriteTarget target;
+        lock.lock();
+        try {
+            target = writeTarget;
+        } finally {
+            lock.unlock();
+        }
+        return target == null ? 0 : target.getBytesQueued();
+    }
+
+    /** Returns the number of messages waiting to be sent to the peer, or zero if not connected. */
+    public int getMessagesQueued() {
+        MessageWriteTarget target;
+        lock.lock();
+        try {
+            target = writeTarget;
+        } finally {
+            lock.unlock();
+        }
+        return target == null ? 0 : target.getMessagesQueued();
+    }
+
     /**
      * Closes the connection to the peer if one exists, or immediately closes the connection as soon as it opens
      */
@@ -118,6 +236,13 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
      */
     protected abstract void processMessage(Message m) throws Exception;
 
+    /**
+     * Called on the network thread when a block parsed as it arrived (see {@link #setStreamingBlockParsing(boolean)})
+     * fails verification and is dropped, so that anything waiting for it can be told.
+     */
+    protected void blockRejected(Sha256Hash hash, VerificationException e) {
+    }
+
     @Override
     public int receiveBytes(ByteBuffer buff) {
         checkArgument(buff.position() == 0 &&
@@ -125,20 +250,49 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         try {
             // Repeatedly try to deserialize messages until we hit a BufferUnderflowException
             for (int i = 0; true; i++) {
+                // If we are in the middle of streaming a block, feed it the new bytes first
+                if (streamingBlockParser != null) {
+                    // This can only happen in the first iteration
+                    checkState(i == 0);
+                    if (!streamingBlockParser.receive(buff))
+                        return buff.position();
+                    StreamingBlockParser parser = streamingBlockParser;
+                    int size = header.size;
+                    streamingBlockParser = null;
+                    header = null;
+                    if (parser.getBlock() != null) {
+                        dispatchMessage(parser.getBlock(), size);
+                    } else {
+                        log.warn("{}: Received block that failed verification: {}", getAddress(), parser.getFailure().getMessage());
+                        Sha256Hash hash = parser.getHash();
+                        if (hash != null)
+                            blockRejected(hash, parser.getFailure());
+                    }
+                }
                 // If we are in the middle of reading a message, try to fill that one first, before we expect another
                 if (largeReadBuffer != null) {
                     // This can only happen in the first iteration
                     checkState(i == 0);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
+                    int bytesToGet = Math.min(buff.remaining(), header.size - largeReadBufferPos);
                     buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
                     largeReadBufferPos += bytesToGet;
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
+                    if (largeReadBufferPos == header.size) {
                         // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
+                        Message message;
+                        try {
+                            message = serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer, 0, header.size));
+                        } finally {
+                            // The message doesn't refer to the buffer any more, so it can be reused straight away.
+                            if (largeReadPooledBuffer != null)
+                                largeReadPooledBuffer.release();
+                            largeReadPooledBuffer = null;
+                            largeReadBuffer = null;
+                        }
+                        int size = header.size;
                         header = null;
+                        dispatchMessage(message, size);
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
@@ -155,9 +309,25 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                         try {
                             serializer.seekPastMagicBytes(buff);
                             header = serializer.deserializeHeader(buff);
+                            // Don't set aside room for a block no valid one could fill.
+                            if (header.command.equals("block") && header.size > Block.MAX_BLOCK_SIZE)
+                                throw new ProtocolException("Block message of " + header.size +
+                                        " bytes is larger than MAX_BLOCK_SIZE");
+                            if (streamingBlockParsing && header.command.equals("block")) {
+                                streamingBlockParser = new StreamingBlockParser(params, header);
+                                // The header is complete, so there is at least one more byte to come.
+                                checkState(!streamingBlockParser.receive(buff));
+                                return buff.position();
+                            }
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
+                            MessageBufferPool pool = serializer.getBufferPool();
+                            if (pool != null) {
+                                largeReadPooledBuffer = pool.acquire(header.size);
+                                largeReadBuffer = largeReadPooledBuffer.array();
+                            } else {
+                                largeReadBuffer = new byte[header.size];
+                            }
                             largeReadBufferPos = buff.remaining();
                             buff.get(largeReadBuffer, 0, largeReadBufferPos);
                         } catch (BufferUnderflowException e1) {
@@ -175,7 +345,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     return buff.position();
                 }
                 // Process our freshly deserialized message
-                processMessage(message);
+                dispatchMessage(message, buff.position() - preSerializePosition);
             }
         } catch (Exception e) {
             exceptionCaught(e);
@@ -183,6 +353,107 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         }
     }
 
+    private void dispatchMessage(Message message, int size) throws Exception {
+        Executor executor = messageExecutor;
+        if (executor == null) {
+            processMessage(message);
+            return;
+        }
+        boolean pause = false, execute = false;
+        synchronized (pendingMessages) {
+            if (connectionClosed)
+                return;
+            pendingMessages.add(new PendingMessage(message, size));
+            pendingMessageBytes += size;
+            if (!readPaused && pendingMessageBytes >= MAX_PENDING_MESSAGE_BYTES)
+                pause = readPaused = true;
+            if (!processingPendingMessages)
+                execute = processingPendingMessages = true;  // Otherwise the task already running will pick it up.
+        }
+        // The write target is never called with the lock held, see the comment on writeTarget.
+        if (pause)
+            updateReadPaused();
+        if (execute)
+            executor.execute(processPendingMessages);
+    }
+
+    // Brings the write target in line with readPaused. Rather than passing on the value that made the caller want to
+    // pause or resume, which a racing call could overtake, it reads readPaused afresh under readPauseLock.
+    private void updateReadPaused() {
+        MessageWriteTarget target;
+        lock.lock();
+        try {
+            target = writeTarget;
+        } finally {
+            lock.unlock();
+        }
+        if (!(target instanceof ReadPausable))
+            return;
+        readPauseLock.lock();
+        try {
+            boolean paused;
+            synchronized (pendingMessages) {
+                paused = readPaused;
+            }
+            if (paused == targetReadPaused)
+                return;
+            ((ReadPausable) target).setReadPaused(paused);
+            targetReadPaused = paused;
+        } finally {
+            readPauseLock.unlock();
+        }
+    }
+
+    private final Runnable processPendingMessages = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                PendingMessage pending;
+                boolean resume = false;
+                synchronized (pendingMessages) {
+                    pending = connectionClosed ? null : pendingMessages.poll();
+                    if (pending == null) {
+                        pendingMessages.clear();
+                        processingPendingMessages = false;
+                        return;
+                    }
+                    pendingMessageBytes -= pending.size;
+                    // Resume once half the backlog has been worked through, so as not to flip back and forth.
+                    if (readPaused && pendingMessageBytes < MAX_PENDING_MESSAGE_BYTES / 2)
+                        resume = true;
+                    if (resume)
+                        readPaused = false;
+                }
+                if (resume)
+                    updateReadPaused();
+                try {
+                    processMessage(pending.message);
+                } catch (Exception e) {
+                    // The connection is going away, so there's no point processing the rest.
+                    synchronized (pendingMessages) {
+                        pendingMessages.clear();
+                        processingPendingMessages = false;
+                    }
+                    exceptionCaught(e);
+                    return;
+                }
+            }
+        }
+    };
+
+    /**
+     * Called when the connection is closed. Messages received but not yet processed on the executor set by
+     * {@link #setMessageExecutor(Executor)} are thrown away. Subclasses must call this if they override it.
+     */
+    @Override
+    public void connectionClosed() {
+        synchronized (pendingMessages) {
+            connectionClosed = true;
+            pendingMessages.clear();
+            pendingMessageBytes = 0;
+        }
+    }
+
     /**
      * Sets the {@link MessageWriteTarget} used to write messages to the peer. This should almost never be called, it is
      * called automatically by {@link org.bitcoinj.net.NioClient} or
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.DaemonThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Runs the script checks of a {@link FullPrunedBlockChain} on an {@link Executor}. A single ScriptVerifier is meant
+ * to live as long as the chain using it: the executor is never shut down because a block failed to verify, so any
+ * executor can be plugged in, for instance a {@link ThreadPoolExecutor} shared with other work or a fork/join pool.</p>
+ *
+ * <p>Transactions are queued with {@link BlockVerification#add(Transaction, List)} while the rest of the block is
+ * being connected. They are grouped into batches of roughly {@link #getBatchSize()} inputs so that blocks full of small
+ * transactions don't turn into one task per transaction. The inputs of one transaction always end up in the same
+ * batch, as signature hashing temporarily modifies the transaction. As soon as one batch finds an invalid script the
+ * rest of the block's batches are cancelled.</p>
+ *
+ * <p>Per block timing is available from {@link #getLastBlockLatencyMillis()} and
+ * {@link #getAverageBlockLatencyMillis()}.</p>
+ */
+public class ScriptVerifier {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerifier.class);
+
+    /** The default number of inputs which are verified together in one task. */
+    public static final int DEFAULT_BATCH_SIZE = 32;
+
+    private final Executor executor;
+    private final int batchSize;
+
+    private final AtomicLong blocksVerified = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private volatile long lastLatencyNanos;
+
+    /**
+     * Creates a verifier backed by a fixed size pool of daemon threads, one per available processor.
+     */
+    public ScriptVerifier() {
+        this(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new DaemonThreadFactory("Script verification")), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a verifier which runs batches on the given executor. The executor is not owned by this object and will
+     * not be shut down by it.
+     *
+     * @param batchSize number of inputs to accumulate before handing a batch to the executor
+     */
+    public ScriptVerifier(Executor executor, int batchSize) {
+        checkArgument(batchSize > 0);
+        this.executor = checkNotNull(executor);
+        this.batchSize = batchSize;
+    }
+
+    /** Returns the executor batches are submitted to. */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /** Returns the number of inputs which are verified together in one task. */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Starts verifying a new block. Scripts are checked with the given flags.
+     */
+    public BlockVerification newBlockVerification(Set<VerifyFlag> verifyFlags) {
+        return new BlockVerification(verifyFlags);
+    }
+
+    /** Returns the number of blocks whose scripts were all verified successfully. */
+    public long getBlocksVerified() {
+        return blocksVerified.get();
+    }
+
+    /**
+     * Returns the time between the first transaction of the most recent successfully verified block being queued and
+     * the last of its scripts finishing verification.
+     */
+    public long getLastBlockLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastLatencyNanos);
+    }
+
+    /** Returns the average of {@link #getLastBlockLatencyMillis()} over all successfully verified blocks. */
+    public long getAverageBlockLatencyMillis() {
+        long blocks = blocksVerified.get();
+        if (blocks == 0)
+            return 0;
+        return TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos.get() / blocks);
+    }
+
+    private static class QueuedTransaction {
+        final Transaction tx;
+        final List<Script> prevOutScripts;
+
+        QueuedTransaction(Transaction tx, List<Script> prevOutScripts) {
+            this.tx = tx;
+            this.prevOutScripts = prevOutScripts;
+        }
+    }
+
+    /**
+     * The script checks of a single block. Not thread safe: it's meant to be driven by the thread connecting the
+     * block, whilst the batches themselves run on the executor.
+     */
+    public class BlockVerification {
+        private final Set<VerifyFlag> verifyFlags;
+        private final CompletionService<VerificationException> completionService;
+        private final List<Future<VerificationException>> futures = new ArrayList<Future<VerificationException>>();
+        private List<QueuedTransaction> batch = new ArrayList<QueuedTransaction>();
+        private int batchInputs;
+        private volatile boolean cancelled;
+        private boolean finished;
+        private long startNanos;
+
+        private BlockVerification(Set<VerifyFlag> verifyFlags) {
+            this.verifyFlags = verifyFlags;
+            this.completionService = new ExecutorCompletionService<VerificationException>(executor);
+        }
+
+        /**
+         * Queues the scripts of a transaction for verification. Because correctly spending modifies the transaction
+         * whilst it runs, the caller must be done with the transaction before handing it over.
+         *
+         * @param prevOutScripts the scripts of the outputs being spent, in input order
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts) {
+            checkState(!finished);
+            if (startNanos == 0)
+                startNanos = System.nanoTime();
+            batch.add(new QueuedTransaction(tx, prevOutScripts));
+            batchInputs += tx.getInputs().size();
+            if (batchInputs >= batchSize)
+                submitBatch();
+        }
+
+        private void submitBatch() {
+            if (batch.isEmpty())
+                return;
+            final List<QueuedTransaction> transactions = batch;
+            batch = new ArrayList<QueuedTransaction>();
+            batchInputs = 0;
+            futures.add(completionService.submit(new Callable<VerificationException>() {
+                @Nullable
+                @Override
+                public VerificationException call() throws Exception {
+                    return verify(transactions);
+                }
+            }));
+        }
+
+        @Nullable
+        private VerificationException verify(List<QueuedTransaction> transactions) {
+            for (QueuedTransaction queued : transactions) {
+                if (cancelled)
+                    return null;
+                Transaction tx = queued.tx;
+                try {
+                    ListIterator<Script> prevOutIt = queued.prevOutScripts.listIterator();
+                    for (int index = 0; index < tx.getInputs().size(); index++) {
+                        tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
+                    }
+                } catch (VerificationException e) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Blocks until every queued script has been verified. If any of them fails, the remaining work for this block
+         * is cancelled and the first failure found is thrown.
+         */
+        public void await() throws VerificationException {
+            checkState(!finished);
+            submitBatch();
+            finished = true;
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    VerificationException e;
+                    try {
+                        e = completionService.take().get();
+                    } catch (InterruptedException thrownE) {
+                        throw new RuntimeException(thrownE); // Shouldn't happen
+                    } catch (ExecutionException thrownE) {
+                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+                    }
+                    if (e != null)
+                        throw e;
+                }
+            } catch (VerificationException e) {
+                cancel();
+                throw e;
+            }
+            if (startNanos != 0) {
+                long latency = System.nanoTime() - startNanos;
+                lastLatencyNanos = latency;
+                totalLatencyNanos.addAndGet(latency);
+            }
+            blocksVerified.incrementAndGet();
+        }
+
+        /**
+         * Abandons verification of this block, for instance because it failed some other check. Batches which have
+         * not started yet are cancelled and running ones stop at the next transaction boundary.
+         */
+        public void cancel() {
+            finished = true;
+            cancelled = true;
+            batch.clear();
+            for (Future<VerificationException> future : futures)
+                future.cancel(false);
+        }
+    }
+}
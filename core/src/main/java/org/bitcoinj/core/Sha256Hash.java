@@ -24,8 +24,6 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -58,19 +56,39 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * Calculates the (one-time) hash of contents and returns it as a new wrapped hash.
      */
     public static Sha256Hash create(byte[] contents) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            return new Sha256Hash(digest.digest(contents));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        return new Sha256Hash(Utils.singleDigest(contents, 0, contents.length));
     }
 
     /**
      * Calculates the hash of the hash of the contents. This is a standard operation in Bitcoin.
      */
     public static Sha256Hash createDouble(byte[] contents) {
-        return new Sha256Hash(Utils.doubleDigest(contents));
+        return createDouble(contents, 0, contents.length);
+    }
+
+    /**
+     * Calculates the hash of the hash of the given byte range. The digest is written straight into the array owned
+     * by the returned object, so the only allocation is the hash itself.
+     */
+    public static Sha256Hash createDouble(byte[] contents, int offset, int length) {
+        byte[] bytes = new byte[32];
+        Utils.doubleDigest(contents, offset, length, bytes, 0);
+        return new Sha256Hash(bytes);
+    }
+
+    /**
+     * Calculates the hash of the hash of the given byte range and returns it byte reversed, which is the form used
+     * for block and transaction hashes. The reversal happens in place, so no intermediate arrays are created.
+     */
+    public static Sha256Hash createDoubleReversed(byte[] contents, int offset, int length) {
+        byte[] bytes = new byte[32];
+        Utils.doubleDigest(contents, offset, length, bytes, 0);
+        for (int i = 0; i < 16; i++) {
+            byte b = bytes[i];
+            bytes[i] = bytes[31 - i];
+            bytes[31 - i] = b;
+        }
+        return new Sha256Hash(bytes);
     }
 
     /**
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.List;
+
+import static org.bitcoinj.core.Utils.uint32ToByteArrayLE;
+
+/**
+ * <p>The parts of a transaction that signature hashes are made of, serialized once so that
+ * {@link Transaction#hashForSignature(int, byte[], byte)} can hash them straight from arrays for every input instead
+ * of blanking, reserializing and restoring the whole transaction each time.</p>
+ *
+ * <p>For the usual SIGHASH_ALL, the bytes hashed for input i are the bytes hashed for input i - 1 up to that input
+ * with only the scripts changed, so the state of the digest part way along the inputs is also saved every
+ * {@link #CHECKPOINT_INTERVAL} inputs. Hashing an input then starts from the nearest checkpoint before it, which
+ * roughly halves the bytes hashed for transactions with many inputs. The rest is inherent in the signature hash
+ * algorithm, which covers every input for every input.</p>
+ *
+ * <p>A cache is immutable. The transaction drops it whenever it changes, except when only input scripts change, as
+ * none of them are part of it.</p>
+ */
+class SigHashCache {
+    static final int CHECKPOINT_INTERVAL = 32;
+
+    private static final byte[] NULL_OUTPUT = {-1, -1, -1, -1, -1, -1, -1, -1, 0};
+    private static final byte[] ONE_INPUT = new VarInt(1).encode();
+
+    private final byte[] version = new byte[4];
+    private final byte[] lockTime = new byte[4];
+    private final int numInputs;
+    // Every input with an empty script: outpoint, a zero script length and sequence number.
+    private final byte[] blankedInputs;
+    // Where each input starts in blankedInputs, plus its length at the end.
+    private final int[] inputStarts;
+    // All the outputs, preceded by their count.
+    private final byte[] outputs;
+    // Where each output starts in outputs.
+    private final int[] outputStarts;
+    // checkpoints[k] has hashed the version, input count and the first k * CHECKPOINT_INTERVAL blanked inputs. Null if
+    // the digest can't be cloned.
+    @Nullable private final MessageDigest[] checkpoints;
+
+    SigHashCache(Transaction tx) {
+        uint32ToByteArrayLE(tx.getVersion(), version, 0);
+        uint32ToByteArrayLE(tx.getLockTime(), lockTime, 0);
+        try {
+            List<TransactionInput> txInputs = tx.getInputs();
+            numInputs = txInputs.size();
+            inputStarts = new int[numInputs + 1];
+            ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(numInputs * 41);
+            for (int i = 0; i < numInputs; i++) {
+                inputStarts[i] = bos.size();
+                TransactionInput input = txInputs.get(i);
+                input.getOutpoint().bitcoinSerialize(bos);
+                bos.write(0);
+                Utils.uint32ToByteStreamLE(input.getSequenceNumber(), bos);
+            }
+            inputStarts[numInputs] = bos.size();
+            blankedInputs = bos.toByteArray();
+
+            List<TransactionOutput> txOutputs = tx.getOutputs();
+            outputStarts = new int[txOutputs.size()];
+            bos = new UnsafeByteArrayOutputStream(txOutputs.size() * 34 + 1);
+            bos.write(new VarInt(txOutputs.size()).encode());
+            for (int i = 0; i < txOutputs.size(); i++) {
+                outputStarts[i] = bos.size();
+                txOutputs.get(i).bitcoinSerialize(bos);
+            }
+            outputs = bos.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        checkpoints = makeCheckpoints();
+    }
+
+    @Nullable
+    private MessageDigest[] makeCheckpoints() {
+        MessageDigest[] checkpoints = new MessageDigest[numInputs / CHECKPOINT_INTERVAL + 1];
+        MessageDigest digest = Utils.newSha256Digest();
+        digest.update(version);
+        digest.update(new VarInt(numInputs).encode());
+        try {
+            for (int k = 0; k < checkpoints.length; k++) {
+                if (k > 0) {
+                    int from = inputStarts[(k - 1) * CHECKPOINT_INTERVAL];
+                    digest.update(blankedInputs, from, inputStarts[k * CHECKPOINT_INTERVAL] - from);
+                }
+                checkpoints[k] = (MessageDigest) digest.clone();
+            }
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+        return checkpoints;
+    }
+
+    /**
+     * Returns the signature hash of the given input, with the connected script already stripped of
+     * OP_CODESEPARATORs, or null for the SIGHASH_SINGLE case where there is no output for the input.
+     */
+    @Nullable
+    Sha256Hash hashForSignature(int inputIndex, byte[] connectedScript, byte sigHashType) {
+        if (inputIndex < 0 || inputIndex >= numInputs)
+            throw new IndexOutOfBoundsException("Input index " + inputIndex + " out of range");
+        int mode = sigHashType & 0x1f;
+        boolean none = mode == Transaction.SigHash.NONE.ordinal() + 1;
+        boolean single = mode == Transaction.SigHash.SINGLE.ordinal() + 1;
+        boolean anyoneCanPay = (sigHashType & Transaction.SIGHASH_ANYONECANPAY_VALUE) == Transaction.SIGHASH_ANYONECANPAY_VALUE;
+        if (single && inputIndex >= outputStarts.length)
+            return null;
+
+        MessageDigest digest;
+        if (anyoneCanPay) {
+            // Only the input being signed is included.
+            digest = Utils.newSha256Digest();
+            digest.update(version);
+            digest.update(ONE_INPUT);
+            updateWithInput(digest, inputIndex, connectedScript);
+        } else if (none || single) {
+            // The other inputs' sequence numbers are zeroed, so none of the blanked inputs can be used as they are.
+            digest = Utils.newSha256Digest();
+            digest.update(version);
+            digest.update(new VarInt(numInputs).encode());
+            byte[] zeroSequence = new byte[4];
+            for (int i = 0; i < numInputs; i++) {
+                if (i == inputIndex) {
+                    updateWithInput(digest, i, connectedScript);
+                } else {
+                    digest.update(blankedInputs, inputStarts[i], inputStarts[i + 1] - inputStarts[i] - 4);
+                    digest.update(zeroSequence);
+                }
+            }
+        } else {
+            digest = startAt(inputIndex);
+            updateWithInput(digest, inputIndex, connectedScript);
+            int from = inputStarts[inputIndex + 1];
+            digest.update(blankedInputs, from, blankedInputs.length - from);
+        }
+
+        if (none) {
+            // No outputs are signed at all.
+            digest.update((byte) 0);
+        } else if (single) {
+            // Only the output at the same index as the input is signed, the ones before it are nulled out and the
+            // ones after it removed.
+            digest.update(new VarInt(inputIndex + 1).encode());
+            for (int i = 0; i < inputIndex; i++)
+                digest.update(NULL_OUTPUT);
+            int start = outputStarts[inputIndex];
+            int end = inputIndex + 1 < outputStarts.length ? outputStarts[inputIndex + 1] : outputs.length;
+            digest.update(outputs, start, end - start);
+        } else {
+            digest.update(outputs);
+        }
+        digest.update(lockTime);
+        // The hash type is an unsigned char, but is written as four bytes.
+        byte[] type = new byte[4];
+        uint32ToByteArrayLE(0x000000ff & sigHashType, type, 0);
+        digest.update(type);
+
+        byte[] hash = new byte[32];
+        try {
+            digest.digest(hash, 0, 32);
+            digest.update(hash, 0, 32);
+            digest.digest(hash, 0, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        // Note that this is NOT reversed to ensure it will be signed correctly. If it were to be printed out
+        // however then we would expect that it is IS reversed.
+        return new Sha256Hash(hash);
+    }
+
+    // Returns a digest that has hashed everything before the given input in the SIGHASH_ALL serialization.
+    private MessageDigest startAt(int inputIndex) {
+        MessageDigest digest;
+        int from;
+        if (checkpoints != null) {
+            int k = inputIndex / CHECKPOINT_INTERVAL;
+            try {
+                digest = (MessageDigest) checkpoints[k].clone();
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);  // Cannot happen, it was cloned before.
+            }
+            from = inputStarts[k * CHECKPOINT_INTERVAL];
+        } else {
+            digest = Utils.newSha256Digest();
+            digest.update(version);
+            digest.update(new VarInt(numInputs).encode());
+            from = 0;
+        }
+        digest.update(blankedInputs, from, inputStarts[inputIndex] - from);
+        return digest;
+    }
+
+    // Hashes the input with the connected script in place of its own.
+    private void updateWithInput(MessageDigest digest, int inputIndex, byte[] connectedScript) {
+        int start = inputStarts[inputIndex];
+        // The outpoint.
+        digest.update(blankedInputs, start, 36);
+        digest.update(new VarInt(connectedScript.length).encode());
+        digest.update(connectedScript);
+        // The sequence number, after the zero script length.
+        digest.update(blankedInputs, start + 37, 4);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bitcoinj.core.Utils.HEX;
+
+/**
+ * <p>Parses and checks a "block" message while it is still arriving, instead of waiting for the whole payload to be
+ * read into one array. The header is checked as soon as its 80 bytes are in, then each transaction is parsed,
+ * verified and folded into the merkle root as soon as its bytes are. Only a window a little bigger than the largest
+ * transaction seen is kept, so a megabyte block doesn't need a megabyte array per peer.</p>
+ *
+ * <p>The checks are those of {@link Block#verify()}: the size limit is checked against the message header up front,
+ * and the rest as the parts they cover arrive. If any of them fails the rest of the message is read and thrown away,
+ * and {@link #getFailure()} says why. A block that passes is marked as verified, so that
+ * {@link Block#verifyTransactions()} doesn't repeat the work when it is added to the chain. Used by {@link PeerSocketHandler} for blocks that don't fit in its read
+ * buffer, see {@link PeerGroup#setStreamingBlockParsing(boolean)}.</p>
+ */
+class StreamingBlockParser {
+    private static final int INITIAL_WINDOW_SIZE = 64 * 1024;
+
+    private final NetworkParameters params;
+    private final BitcoinSerializer.BitcoinPacketHeader header;
+    private final MessageDigest checksumDigest = Utils.newSha256Digest();
+    private int received;
+
+    // Bytes received but not yet parsed are window[windowStart, windowEnd). Everything after windowEnd is zero, so a
+    // parse attempt that runs off the end of what we have reads zeros rather than stale lengths from earlier data.
+    private byte[] window;
+    private int windowStart, windowEnd;
+    // Don't try to parse the next transaction again until this many bytes are available: a transaction that didn't
+    // fit in the window would otherwise be re-parsed for every read.
+    private int retryAt;
+
+    private Block blockHeader;
+    private long numTransactions = -1;
+    private final List<Transaction> transactions = new ArrayList<Transaction>();
+    private int sigOps;
+    // The left hand node waiting for its sibling at each level of the merkle tree, in wire byte order.
+    private final List<byte[]> merkleNodes = new ArrayList<byte[]>();
+
+    @Nullable private Block block;
+    @Nullable private VerificationException failure;
+
+    /**
+     * @throws ProtocolException if the message is larger than {@link Block#MAX_BLOCK_SIZE}
+     */
+    StreamingBlockParser(NetworkParameters params, BitcoinSerializer.BitcoinPacketHeader header)
+            throws ProtocolException {
+        if (header.size > Block.MAX_BLOCK_SIZE)
+            throw new ProtocolException("Block message of " + header.size + " bytes is larger than MAX_BLOCK_SIZE");
+        this.params = params;
+        this.header = header;
+        window = new byte[Math.min(header.size, INITIAL_WINDOW_SIZE)];
+    }
+
+    /**
+     * Reads as much of the message as the buffer holds, checking whatever can be checked so far. Returns true once the
+     * whole message has been read, after which {@link #getBlock()} or {@link #getFailure()} has the verdict.
+     *
+     * @throws ProtocolException if the message can't be parsed or its checksum doesn't match
+     */
+    boolean receive(ByteBuffer buff) throws ProtocolException {
+        int bytesToGet = Math.min(buff.remaining(), header.size - received);
+        append(buff, bytesToGet);
+        received += bytesToGet;
+        if (failure == null) {
+            try {
+                parseAvailable();
+            } catch (VerificationException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            // Nothing more will be parsed, the remaining bytes only count towards the checksum.
+            Arrays.fill(window, 0, windowEnd, (byte) 0);
+            windowStart = windowEnd = 0;
+        }
+        if (received < header.size)
+            return false;
+        checkChecksum();
+        if (failure == null) {
+            try {
+                finish();
+            } catch (VerificationException e) {
+                failure = e;
+            }
+        }
+        window = null;
+        return true;
+    }
+
+    /** Returns the block once the whole message has been read and checked, or null if it failed a check. */
+    @Nullable
+    Block getBlock() {
+        return block;
+    }
+
+    /** Returns the hash of the block once its header has been read, or null. */
+    @Nullable
+    Sha256Hash getHash() {
+        return blockHeader == null ? null : blockHeader.getHash();
+    }
+
+    /** Returns the reason the block was rejected, or null. */
+    @Nullable
+    VerificationException getFailure() {
+        return failure;
+    }
+
+    private void append(ByteBuffer buff, int length) {
+        if (window.length - windowEnd < length) {
+            int live = windowEnd - windowStart;
+            if (window.length - live >= length) {
+                System.arraycopy(window, windowStart, window, 0, live);
+                Arrays.fill(window, live, windowEnd, (byte) 0);
+            } else {
+                byte[] bigger = new byte[Math.min(Math.max(window.length * 2, live + length), header.size)];
+                System.arraycopy(window, windowStart, bigger, 0, live);
+                window = bigger;
+            }
+            windowStart = 0;
+            windowEnd = live;
+        }
+        buff.get(window, windowEnd, length);
+        checksumDigest.update(window, windowEnd, length);
+        windowEnd += length;
+    }
+
+    private void parseAvailable() throws ProtocolException, VerificationException {
+        boolean complete = received == header.size;
+        while (true) {
+            int available = windowEnd - windowStart;
+            if (blockHeader == null) {
+                if (available < Block.HEADER_SIZE) {
+                    if (complete)
+                        throw new ProtocolException("Block message of " + header.size + " bytes is too short");
+                    return;
+                }
+                byte[] headerBytes = Arrays.copyOfRange(window, windowStart, windowStart + Block.HEADER_SIZE);
+                blockHeader = new Block(params, headerBytes, false, false, Block.HEADER_SIZE);
+                windowStart += Block.HEADER_SIZE;
+                blockHeader.verifyHeader();
+            } else if (numTransactions < 0) {
+                if (available == 0 || available < varIntSize(window[windowStart]))
+                    return;
+                VarInt count = new VarInt(window, windowStart);
+                windowStart += count.getOriginalSizeInBytes();
+                if (count.value < 0 || count.value > header.size)
+                    throw new ProtocolException("Bad transaction count: " + count.value);
+                numTransactions = count.value;
+                if (numTransactions == 0)
+                    throw new VerificationException("Block had no transactions");
+            } else if (transactions.size() < numTransactions) {
+                if (available < retryAt && !complete)
+                    return;
+                if (!parseTransaction(available, complete))
+                    return;
+            } else {
+                // Any bytes after the last transaction are ignored, as Block does.
+                return;
+            }
+        }
+    }
+
+    // Returns false if the transaction isn't all there yet.
+    private boolean parseTransaction(int available, boolean complete) throws ProtocolException, VerificationException {
+        Transaction tx;
+        try {
+            tx = new Transaction(params, window, windowStart, null, false, false, Message.UNKNOWN_LENGTH);
+        } catch (ProtocolException e) {
+            if (complete)
+                throw e;
+            retryAt = available * 2;
+            return false;
+        }
+        int size = tx.getMessageSize();
+        if (size > available) {
+            if (complete)
+                throw new ProtocolException("Block message ends in the middle of a transaction");
+            retryAt = available * 2;
+            return false;
+        }
+        retryAt = 0;
+        byte[] hash = new byte[32];
+        Utils.doubleDigest(window, windowStart, size, hash, 0);
+        tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
+        tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+        windowStart += size;
+
+        // The same checks as Block.verifyTransactions(), one transaction at a time.
+        int index = transactions.size();
+        if (index == 0 && !tx.isCoinBase())
+            throw new VerificationException("First tx is not coinbase");
+        if (index > 0 && tx.isCoinBase())
+            throw new VerificationException("TX " + index + " is coinbase when it should not be.");
+        tx.verify();
+        sigOps += tx.getSigOpCount();
+        if (sigOps > Block.MAX_BLOCK_SIGOPS)
+            throw new VerificationException("Block had too many Signature Operations");
+        addMerkleLeaf(hash);
+        transactions.add(tx);
+        return true;
+    }
+
+    private void addMerkleLeaf(byte[] hash) {
+        byte[] node = hash;
+        for (int level = 0; ; level++) {
+            if (level == merkleNodes.size()) {
+                merkleNodes.add(node);
+                return;
+            }
+            byte[] left = merkleNodes.get(level);
+            if (left == null) {
+                merkleNodes.set(level, node);
+                return;
+            }
+            merkleNodes.set(level, null);
+            node = Utils.doubleDigestTwoBuffers(left, 0, 32, node, 0, 32);
+        }
+    }
+
+    // Completes the tree the way Block.buildMerkleTree() does, repeating the last node of any level of odd size.
+    private Sha256Hash calculateMerkleRoot() {
+        byte[] carry = null;
+        int level = 0;
+        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2, level++) {
+            byte[] left = level < merkleNodes.size() ? merkleNodes.get(level) : null;
+            if (left != null && carry != null)
+                carry = Utils.doubleDigestTwoBuffers(left, 0, 32, carry, 0, 32);
+            else if (left != null)
+                carry = Utils.doubleDigestTwoBuffers(left, 0, 32, left, 0, 32);
+            else if (carry != null)
+                carry = Utils.doubleDigestTwoBuffers(carry, 0, 32, carry, 0, 32);
+        }
+        byte[] root = carry != null ? carry : merkleNodes.get(level);
+        return new Sha256Hash(Utils.reverseBytes(root));
+    }
+
+    private void checkChecksum() throws ProtocolException {
+        byte[] hash = new byte[32];
+        try {
+            checksumDigest.digest(hash, 0, 32);
+            checksumDigest.update(hash, 0, 32);
+            checksumDigest.digest(hash, 0, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
+                header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
+            throw new ProtocolException("Checksum failed to verify, actual " +
+                    HEX.encode(hash) +
+                    " vs " + HEX.encode(header.checksum));
+        }
+    }
+
+    private void finish() throws VerificationException {
+        if (numTransactions < 0) {
+            // Only a header was sent, which the block chain will reject as it would any other.
+            block = blockHeader;
+            return;
+        }
+        Sha256Hash merkleRoot = calculateMerkleRoot();
+        if (!merkleRoot.equals(blockHeader.getMerkleRoot()))
+            throw new VerificationException("Merkle hashes do not match: " + merkleRoot + " vs " + blockHeader.getMerkleRoot());
+        block = new Block(params, blockHeader.getVersion(), blockHeader.getPrevBlockHash(), merkleRoot,
+                blockHeader.getTimeSeconds(), blockHeader.getDifficultyTarget(), blockHeader.getNonce(), transactions);
+        block.setTransactionsVerified();
+    }
+
+    private static int varIntSize(byte first) {
+        switch (first & 0xFF) {
+            case 0xFD: return 3;
+            case 0xFE: return 5;
+            case 0xFF: return 9;
+            default: return 1;
+        }
+    }
+}
@@ -27,7 +27,10 @@ import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 
@@ -118,12 +121,25 @@ public class TransactionBroadcast {
             numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
             numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
             Collections.shuffle(peers, random);
+            // Peers still working through a backlog of what we sent them earlier would be slow to pass the
+            // transaction on, so only use them if there aren't enough others.
+            List<Peer> backlogged = new ArrayList<Peer>();
+            for (Iterator<Peer> it = peers.iterator(); it.hasNext(); ) {
+                Peer peer = it.next();
+                if (peer.isSendBacklogged()) {
+                    backlogged.add(peer);
+                    it.remove();
+                }
+            }
+            peers.addAll(backlogged);
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool and sending to {} peers, will wait for {}: {}",
                     numConnected, tx.getHashAsString(), numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
+            // Serialize the transaction just once, all the peers can share the same bytes.
+            ByteBuffer serialized = new BitcoinSerializer(pinnedTx.getParams()).serializeToBuffer(pinnedTx);
             for (Peer peer : peers) {
                 try {
-                    peer.sendMessage(pinnedTx);
+                    peer.sendMessage(serialized, false);
                     // We don't record the peer as having seen the tx in the memory pool because we want to track only
                     // how many peers announced to us.
                 } catch (Exception e) {
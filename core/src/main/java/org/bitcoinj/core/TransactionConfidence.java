@@ -17,18 +17,23 @@
 
 package org.bitcoinj.core;
 
-import com.google.common.collect.Sets;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.ListIterator;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -61,18 +66,36 @@ import static com.google.common.base.Preconditions.*;
  * To make a copy that won't be changed, use {@link org.bitcoinj.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable {
-    private static final long serialVersionUID = 4577920141400556444L;
+    private static final long serialVersionUID = -3441453536787306357L;
 
     /**
      * The peers that have announced the transaction to us. Network nodes don't have stable identities, so we use
      * IP address as an approximation. It's obviously vulnerable to being gamed if we allow arbitrary people to connect
      * to us, so only peers we explicitly connected to should go here.
+     *
+     * Thousands of transactions can each be announced by a hundred peers, so rather than a list of addresses this is
+     * an array of the peers' shared {@link PeerAddressRegistry} entries, sorted by id. The array is never modified,
+     * only replaced by compare-and-set. It is written out as addresses, as ids only mean something within one process.
      */
-    private CopyOnWriteArrayList<PeerAddress> broadcastBy;
+    private transient volatile PeerAddressRegistry.Entry[] broadcastBy;
+    private static final AtomicReferenceFieldUpdater<TransactionConfidence, PeerAddressRegistry.Entry[]> broadcastByUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(TransactionConfidence.class, PeerAddressRegistry.Entry[].class,
+                    "broadcastBy");
+    private static final PeerAddressRegistry.Entry[] NO_PEERS = new PeerAddressRegistry.Entry[0];
     /** The Transaction that this confidence object is associated with. */
     private final Transaction transaction;
     // Lazily created listeners array.
-    private transient CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
+    private transient CopyOnWriteArrayList<Registration> listeners;
+
+    private static class Registration extends ListenerRegistration<Listener> {
+        // Set while a SEEN_PEERS run of the listener is waiting on its executor, so that one is enough however many
+        // peers announce the transaction in the meantime.
+        final AtomicBoolean seenPeersQueued = new AtomicBoolean();
+
+        Registration(Listener listener, Executor executor) {
+            super(listener, executor);
+        }
+    }
 
     // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
     private int depth;
@@ -137,8 +160,8 @@ public class TransactionConfidence implements Serializable {
 
     public TransactionConfidence(Transaction tx) {
         // Assume a default number of peers for our set.
-        broadcastBy = new CopyOnWriteArrayList<PeerAddress>();
-        listeners = new CopyOnWriteArrayList<ListenerRegistration<Listener>>();
+        broadcastBy = NO_PEERS;
+        listeners = new CopyOnWriteArrayList<Registration>();
         transaction = tx;
     }
 
@@ -189,7 +212,7 @@ public class TransactionConfidence implements Serializable {
      */
     public void addEventListener(Listener listener, Executor executor) {
         checkNotNull(listener);
-        listeners.addIfAbsent(new ListenerRegistration<Listener>(listener, executor));
+        listeners.addIfAbsent(new Registration(listener, executor));
     }
 
     /**
@@ -266,11 +289,24 @@ public class TransactionConfidence implements Serializable {
      *
      * @param address IP address of the peer, used as a proxy for identity.
      */
-    public synchronized boolean markBroadcastBy(PeerAddress address) {
-        if (!broadcastBy.addIfAbsent(address))
-            return false;  // Duplicate.
-        if (getConfidenceType() == ConfidenceType.UNKNOWN) {
-            this.confidenceType = ConfidenceType.PENDING;
+    public boolean markBroadcastBy(PeerAddress address) {
+        PeerAddressRegistry.Entry peer = PeerAddressRegistry.register(address);
+        PeerAddressRegistry.Entry[] current, updated;
+        do {
+            current = broadcastBy;
+            int pos = indexOf(current, peer.id);
+            if (pos >= 0)
+                return false;  // Duplicate.
+            pos = -pos - 1;
+            updated = new PeerAddressRegistry.Entry[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, pos);
+            updated[pos] = peer;
+            System.arraycopy(current, pos, updated, pos + 1, current.length - pos);
+        } while (!broadcastByUpdater.compareAndSet(this, current, updated));
+        synchronized (this) {
+            if (getConfidenceType() == ConfidenceType.UNKNOWN) {
+                this.confidenceType = ConfidenceType.PENDING;
+            }
         }
         return true;
     }
@@ -279,20 +315,40 @@ public class TransactionConfidence implements Serializable {
      * Returns how many peers have been passed to {@link TransactionConfidence#markBroadcastBy}.
      */
     public int numBroadcastPeers() {
-        return broadcastBy.size();
+        return broadcastBy.length;
     }
 
     /**
      * Returns a snapshot of {@link PeerAddress}es that announced the transaction.
      */
     public Set<PeerAddress> getBroadcastBy() {
-        ListIterator<PeerAddress> iterator = broadcastBy.listIterator();
-        return Sets.newHashSet(iterator);
+        PeerAddressRegistry.Entry[] peers = broadcastBy;
+        Set<PeerAddress> addresses = new HashSet<PeerAddress>(peers.length * 2);
+        for (PeerAddressRegistry.Entry peer : peers)
+            addresses.add(peer.address);
+        return addresses;
     }
 
     /** Returns true if the given address has been seen via markBroadcastBy() */
     public boolean wasBroadcastBy(PeerAddress address) {
-        return broadcastBy.contains(address);
+        PeerAddressRegistry.Entry peer = PeerAddressRegistry.find(address);
+        return peer != null && indexOf(broadcastBy, peer.id) >= 0;
+    }
+
+    // Binary search by id, returning the same as Arrays.binarySearch.
+    private static int indexOf(PeerAddressRegistry.Entry[] peers, long id) {
+        int low = 0, high = peers.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = peers[mid].id;
+            if (midId < id)
+                low = mid + 1;
+            else if (midId > id)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
     }
 
     @Override
@@ -385,7 +441,7 @@ public class TransactionConfidence implements Serializable {
         TransactionConfidence c = new TransactionConfidence(transaction);
         // There is no point in this sync block, it's just to help FindBugs.
         synchronized (c) {
-            c.broadcastBy.addAll(broadcastBy);
+            c.broadcastBy = broadcastBy;
             c.confidenceType = confidenceType;
             c.overridingTransaction = overridingTransaction;
             c.appearedAtChainHeight = appearedAtChainHeight;
@@ -400,16 +456,37 @@ public class TransactionConfidence implements Serializable {
      * explicitly, more precise control is available. Note that this will run the listeners on the user code thread.
      */
     public void queueListeners(final Listener.ChangeReason reason) {
-        for (final ListenerRegistration<Listener> registration : listeners) {
+        final boolean seenPeers = reason == Listener.ChangeReason.SEEN_PEERS;
+        for (final Registration registration : listeners) {
+            // A listener that hasn't run yet for earlier announcements will see this one's peer count too.
+            if (seenPeers && !registration.seenPeersQueued.compareAndSet(false, true))
+                continue;
             registration.executor.execute(new Runnable() {
                 @Override
                 public void run() {
+                    // Cleared before the listener reads anything, so no announcement can go unnoticed.
+                    if (seenPeers)
+                        registration.seenPeersQueued.set(false);
                     registration.listener.onConfidenceChanged(transaction, reason);
                 }
             });
         }
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(new ArrayList<PeerAddress>(getBroadcastBy()));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        broadcastBy = NO_PEERS;
+        listeners = new CopyOnWriteArrayList<Registration>();
+        for (PeerAddress address : (ArrayList<PeerAddress>) in.readObject())
+            markBroadcastBy(address);
+    }
+
     /**
      * The source of a transaction tries to identify where it came from originally. For instance, did we download it
      * from the peer to peer network, or make it ourselves, or receive it via Bluetooth, or import it from another app,
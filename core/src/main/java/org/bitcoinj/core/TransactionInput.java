@@ -247,7 +247,13 @@ public class TransactionInput extends ChildMessage implements Serializable {
      * @param scriptBytes the scriptBytes to set
      */
     void setScriptBytes(byte[] scriptBytes) {
+        // Signature hashes blank every input script, so the parent's signature hash cache outlives the change. Signing
+        // sets each input's script in turn after hashing it, and would otherwise rebuild the cache for every input.
+        Transaction parentTransaction = getParentTransaction();
+        SigHashCache sigHashCache = parentTransaction != null ? parentTransaction.sigHashCache : null;
         unCache();
+        if (sigHashCache != null)
+            parentTransaction.sigHashCache = sigHashCache;
         this.scriptSig = null;
         int oldLength = length;
         this.scriptBytes = scriptBytes;
@@ -33,6 +33,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
@@ -50,14 +52,20 @@ import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterrup
  * To enable debug logging from the library, run with -Dbitcoinj.logging=true on your command line.
  */
 public class Utils {
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+    // MessageDigest objects are not thread safe. Rather than serializing every hashing thread on a single shared
+    // instance, each thread gets its own digest along with a scratch buffer for the intermediate hash.
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newSha256Digest();
         }
-    }
+    };
+    private static final ThreadLocal<byte[]> digestScratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[32];
+        }
+    };
 
     /** The string that prefixes all text messages signed using Bitcoin keys. */
     public static final String BITCOIN_SIGNED_MESSAGE_HEADER = "Bitcoin Signed Message:\n";
@@ -141,6 +149,18 @@ public class Utils {
         }
     }
 
+    /**
+     * Returns a new SHA-256 MessageDigest instance. Instances are not thread safe, so don't share them between threads
+     * without external locking.
+     */
+    public static MessageDigest newSha256Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
     /**
      * See {@link Utils#doubleDigest(byte[], int, int)}.
      */
@@ -153,20 +173,38 @@ public class Utils {
      * standard procedure in Bitcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        byte[] out = new byte[32];
+        doubleDigest(input, offset, length, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the given byte range and writes the 32 byte result into {@code out} at
+     * {@code outOffset}. Nothing is allocated, which makes this suitable for hashing in tight loops.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        finishDoubleDigest(digest, out, outOffset);
+    }
+
+    /**
+     * Calculates the double SHA-256 hash of the remaining bytes of the given buffer and writes the 32 byte result
+     * into {@code out} at {@code outOffset}. The buffer's position is advanced to its limit.
+     */
+    public static void doubleDigest(ByteBuffer input, byte[] out, int outOffset) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input);
+        finishDoubleDigest(digest, out, outOffset);
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input, offset, length);
+        return digest.digest();
     }
 
     /**
@@ -174,12 +212,33 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
+        byte[] out = new byte[32];
+        doubleDigestTwoBuffers(input1, offset1, length1, input2, offset2, length2, out, 0);
+        return out;
+    }
+
+    /**
+     * Calculates SHA256(SHA256(byte range 1 + byte range 2)) and writes the 32 byte result into {@code out} at
+     * {@code outOffset}.
+     */
+    public static void doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
+                                              byte[] input2, int offset2, int length2,
+                                              byte[] out, int outOffset) {
+        MessageDigest digest = Utils.digest.get();
+        digest.reset();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        finishDoubleDigest(digest, out, outOffset);
+    }
+
+    private static void finishDoubleDigest(MessageDigest digest, byte[] out, int outOffset) {
+        byte[] first = digestScratch.get();
+        try {
+            digest.digest(first, 0, 32);
+            digest.update(first, 0, 32);
+            digest.digest(out, outOffset, 32);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, we always ask for exactly 32 bytes.
         }
     }
 
@@ -268,16 +327,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = singleDigest(input, 0, input.length);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
@@ -54,6 +54,7 @@ import org.spongycastle.crypto.params.KeyParameter;
 import javax.annotation.Nullable;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
@@ -138,6 +139,47 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // All transactions together.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // The outputs belonging to our keys of every transaction in the unspent and pending pools, kept in step with the
+    // pools so that balances and coin selection needn't walk every output and look up its key. Outputs stay in here
+    // until their transaction leaves both pools, so check TransactionOutput.isAvailableForSpending() when reading.
+    @GuardedBy("lock") private final Map<Sha256Hash, List<TransactionOutput>> spendCandidates;
+    // Set when keys are added, as outputs we already have may now be ours. The index is then rebuilt on next use.
+    private transient volatile boolean spendCandidatesStale;
+    // Balances computed from the index, cleared whenever the pools, spent flags or confidences change.
+    @GuardedBy("lock") @Nullable private transient Coin estimatedBalance;
+    @GuardedBy("lock") @Nullable private transient Coin availableBalance;
+
+    // Incremented, under the lock, whenever something a WalletSnapshot records may have changed.
+    private transient volatile long vVersion;
+    @Nullable private transient volatile WalletSnapshot vSnapshot;
+    // If set, reads from other threads are served from vSnapshot rather than waiting for the lock.
+    private transient volatile boolean vSnapshotReads;
+
+    // Bloom filter elements for the outputs of every transaction in the unspent, spent and pending pools, serialized
+    // when the transaction enters the pools, and the filters last built from them. Filters are extended with the
+    // elements added since, and only rebuilt when their parameters change or too many elements have gone stale.
+    // See getBloomFilter(int, double, long).
+    @GuardedBy("lock") private transient Map<Sha256Hash, List<byte[]>> bloomOutPoints;
+    @GuardedBy("lock") private transient int bloomOutPointCount;
+    @GuardedBy("lock") private transient List<Sha256Hash> bloomOutPointsAdded;
+    @GuardedBy("lock") private transient Set<Sha256Hash> bloomOutPointsMaybeRemoved;
+    @GuardedBy("lock") private transient int bloomOutPointsRemoved;
+    @GuardedBy("lock") @Nullable private transient BloomFilter outPointFilter;
+    @GuardedBy("lock") @Nullable private transient BloomFilter keyFilter;
+    @GuardedBy("lock") private transient int keyFilterElements;
+    @GuardedBy("lock") private transient int outPointFilterSize;
+    @GuardedBy("lock") private transient double outPointFilterFalsePositiveRate;
+    @GuardedBy("lock") private transient long outPointFilterTweak;
+    // Set when watched scripts change or keys are imported, which can change the elements of any transaction.
+    private transient volatile boolean bloomFilterStale;
+    // Outputs of transactions in the pools that are of a filterable type but aren't ours, keyed by the public key or
+    // script hash they pay to, so that deriving an HD key only reworks the transactions that pay to it. The keys each
+    // such transaction pays to are kept too, to drop its entries when it leaves the pools.
+    @GuardedBy("lock") private transient SetMultimap<ByteString, Sha256Hash> bloomUnmatchedOutputs;
+    @GuardedBy("lock") private transient Map<Sha256Hash, List<ByteString>> bloomUnmatchedPayees;
+    // HD keys derived since the filter was last brought up to date. They can make outputs we already have ours.
+    private transient Queue<DeterministicKey> bloomDerivedKeys;
+
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
     // then it actually does confirm and does so within the same network session, remote peers will not resend us
@@ -250,11 +292,12 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         if (this.keychain.numKeys() == 0)
             this.keychain.createAndActivateNewHDChain();
         watchedScripts = Sets.newHashSet();
-        unspent = new HashMap<Sha256Hash, Transaction>();
-        spent = new HashMap<Sha256Hash, Transaction>();
-        pending = new HashMap<Sha256Hash, Transaction>();
-        dead = new HashMap<Sha256Hash, Transaction>();
+        unspent = new PoolMap(true, true);
+        spent = new PoolMap(false, true);
+        pending = new PoolMap(true, true);
+        dead = new PoolMap(false, false);
         transactions = new HashMap<Sha256Hash, Transaction>();
+        spendCandidates = new HashMap<Sha256Hash, List<TransactionOutput>>();
         eventListeners = new CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>>();
         extensions = new HashMap<String, WalletExtension>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
@@ -278,6 +321,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        invalidateAvailableBalance();
                         checkBalanceFuturesLocked(null);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
@@ -288,6 +332,29 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             }
         };
         acceptRiskyTransactions = false;
+        keychain.addEventListener(new AbstractKeyChainEventListener() {
+            @Override
+            public void onKeysAdded(List<ECKey> keys) {
+                spendCandidatesStale = true;
+                // A transaction we already have may pay to a key only just derived by an HD chain, in an output that
+                // wasn't ours when its elements were worked out. Transactions paying to the key are rechecked, other
+                // keys can change anything.
+                for (ECKey key : keys) {
+                    if (key instanceof DeterministicKey)
+                        bloomDerivedKeys.add((DeterministicKey) key);
+                    else
+                        bloomFilterStale = true;
+                }
+            }
+        }, Threading.SAME_THREAD);
+        spendCandidatesStale = true;
+        bloomOutPoints = new HashMap<Sha256Hash, List<byte[]>>();
+        bloomOutPointsAdded = new ArrayList<Sha256Hash>();
+        bloomOutPointsMaybeRemoved = new HashSet<Sha256Hash>();
+        bloomUnmatchedOutputs = HashMultimap.create();
+        bloomUnmatchedPayees = new HashMap<Sha256Hash, List<ByteString>>();
+        bloomDerivedKeys = new ConcurrentLinkedQueue<DeterministicKey>();
+        bloomFilterStale = true;
     }
 
     public NetworkParameters getNetworkParameters() {
@@ -767,6 +834,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             keychainLock.unlock();
         }
         if (added > 0) {
+            bloomFilterStale = true;
             queueOnScriptsChanged(scripts, true);
             saveNow();
         }
@@ -812,6 +880,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
                 watchedScripts.remove(script);
             }
+            bloomFilterStale = true;
 
             queueOnScriptsChanged(scripts, false);
             saveNow();
@@ -1391,6 +1460,22 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 }
             }
 
+            Set<TransactionOutput> scanned = scanForSpendCandidates();
+            LinkedList<TransactionOutput> indexed = calculateAllSpendCandidates(false);
+            if (scanned.size() != indexed.size() || !scanned.containsAll(indexed)) {
+                log.error("Spend candidate index is out of date: {} outputs indexed, {} found by scanning",
+                        indexed.size(), scanned.size());
+                success = false;
+            }
+            if (estimatedBalance != null) {
+                Coin value = Coin.ZERO;
+                for (TransactionOutput out : scanned) value = value.add(out.getValue());
+                if (!value.equals(estimatedBalance)) {
+                    log.error("Cached balance {} differs from actual balance {}", estimatedBalance, value);
+                    success = false;
+                }
+            }
+
             if (!success) {
                 try {
                     log.error(toString());
@@ -1754,6 +1839,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
 
         onWalletChangedSuppressions--;
+        invalidateBalances();
 
         // Side chains don't affect confidence.
         if (bestChain) {
@@ -1771,7 +1857,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
         //    listeners.
         if (!insideReorg && bestChain) {
-            Coin newBalance = getBalance();  // This is slow.
+            Coin newBalance = getBalance();
             log.info("Balance is now: " + newBalance.toFriendlyString());
             if (!wasPending) {
                 int diff = valueDifference.signum();
@@ -1823,6 +1909,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
+            // Depth affects which coins are selectable.
+            invalidateAvailableBalance();
             // TODO: Clarify the code below.
             // Notify all the BUILDING transactions of the new block.
             // This is so that they can update their depth.
@@ -2040,6 +2128,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Our caller changed the spent flags of the transaction, even if it stays in the same pool.
+        invalidateBalances();
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2250,6 +2340,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
+        if (vSnapshotReads && !lock.isHeldByCurrentThread())
+            return getSnapshot().getTransactions(includeDead);
         lock.lock();
         try {
             Set<Transaction> all = new HashSet<Transaction>();
@@ -2264,6 +2356,56 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    /**
+     * <p>Returns an immutable view of the transaction pools and balances. If the wallet has changed since the last
+     * snapshot was taken a new one is made, unless another thread is busy changing the wallet, in which case the last
+     * snapshot is returned rather than waiting. Only the very first call may have to wait for the wallet lock.</p>
+     *
+     * <p>Snapshots are cheap to read but cost a copy of the pools to make, which happens at most once per change to
+     * the wallet and only when someone asks.</p>
+     */
+    public WalletSnapshot getSnapshot() {
+        WalletSnapshot snapshot = vSnapshot;
+        if (snapshot != null && snapshot.getVersion() == vVersion && !spendCandidatesStale)
+            return snapshot;
+        if (!lock.tryLock()) {
+            if (snapshot != null)
+                return snapshot;
+            lock.lock();
+        }
+        try {
+            snapshot = vSnapshot;
+            if (snapshot == null || snapshot.getVersion() != vVersion || spendCandidatesStale) {
+                // The balances may rebuild the spend candidate index, which changes the version, so get them first.
+                Coin estimated = getBalance(BalanceType.ESTIMATED);
+                Coin available = getBalance(BalanceType.AVAILABLE);
+                snapshot = new WalletSnapshot(vVersion, unspent, spent, pending, dead, estimated, available,
+                        lastBlockSeenHash, lastBlockSeenHeight);
+                vSnapshot = snapshot;
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * If set to true, {@link #getBalance(BalanceType)}, {@link #getTransactions(boolean)},
+     * {@link #getRecentTransactions(int, boolean)} and {@link #getTransaction(Sha256Hash)} answer from
+     * {@link #getSnapshot()} instead of taking the wallet lock, so they return straight away even while the wallet is
+     * processing blocks. The price is that their answers may be slightly out of date until the wallet is idle again.
+     * Calls from inside the wallet, such as from an event listener running on the same thread, always see the current
+     * state. Off by default.
+     */
+    public void setSnapshotReads(boolean snapshotReads) {
+        vSnapshotReads = snapshotReads;
+    }
+
+    /** Returns whether snapshot reads are enabled, see {@link #setSnapshotReads(boolean)}. */
+    public boolean isSnapshotReads() {
+        return vSnapshotReads;
+    }
+
     /**
      * Returns a set of all WalletTransactions in the wallet.
      */
@@ -2345,6 +2487,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * depending on how the wallet is implemented (eg if backed by a database).
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+        if (vSnapshotReads && !lock.isHeldByCurrentThread())
+            return getSnapshot().getRecentTransactions(numTransactions, includeDead);
         lock.lock();
         try {
             checkArgument(numTransactions >= 0);
@@ -2374,6 +2518,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
+        if (vSnapshotReads && !lock.isHeldByCurrentThread())
+            return getSnapshot().getTransaction(hash);
         lock.lock();
         try {
             return transactions.get(hash);
@@ -2463,13 +2609,12 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             boolean dirty = false;
-            for (Iterator<Transaction> i = pending.values().iterator(); i.hasNext();) {
-                Transaction tx = i.next();
+            for (Transaction tx : new ArrayList<Transaction>(pending.values())) {
                 if (isTransactionRisky(tx, null) && !acceptRiskyTransactions) {
                     log.debug("Found risky transaction {} in wallet during cleanup.", tx.getHashAsString());
                     if (!tx.isAnyOutputSpent()) {
                         tx.disconnectInputs();
-                        i.remove();
+                        pending.remove(tx.getHash());
                         transactions.remove(tx.getHash());
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
@@ -2695,6 +2840,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             this.lastBlockSeenHash = lastBlockSeenHash;
+            vVersion++;
         } finally {
             lock.unlock();
         }
@@ -2704,6 +2850,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             this.lastBlockSeenHeight = lastBlockSeenHeight;
+            vVersion++;
         } finally {
             lock.unlock();
         }
@@ -2836,15 +2983,24 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
+        if (vSnapshotReads && !lock.isHeldByCurrentThread())
+            return getSnapshot().getBalance(balanceType);
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE) {
-                return getBalance(coinSelector);
+                // Only the default selector is known to depend on nothing but the wallet contents and confidences.
+                if (coinSelector.getClass() != DefaultCoinSelector.class)
+                    return getBalance(coinSelector);
+                if (availableBalance == null)
+                    availableBalance = getBalance(coinSelector);
+                return availableBalance;
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                if (estimatedBalance == null) {
+                    Coin value = Coin.ZERO;
+                    for (TransactionOutput out : calculateAllSpendCandidates(false)) value = value.add(out.getValue());
+                    estimatedBalance = value;
+                }
+                return estimatedBalance;
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -3600,14 +3756,15 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public LinkedList<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
+            if (spendCandidatesStale)
+                rebuildSpendCandidates();
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (List<TransactionOutput> outputs : spendCandidates.values()) {
                 // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
+                if (excludeImmatureCoinbases && !outputs.get(0).getParentTransaction().isMature()) continue;
+                for (TransactionOutput output : outputs) {
+                    if (output.isAvailableForSpending())
+                        candidates.add(output);
                 }
             }
             return candidates;
@@ -3616,6 +3773,107 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    // The slow way to compute calculateAllSpendCandidates(false), used to check the index.
+    private Set<TransactionOutput> scanForSpendCandidates() {
+        // Outputs with the same value and script are equal, so compare them by identity.
+        Set<TransactionOutput> candidates = Sets.newIdentityHashSet();
+        for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (!output.isAvailableForSpending()) continue;
+                if (!output.isMine(this)) continue;
+                candidates.add(output);
+            }
+        }
+        return candidates;
+    }
+
+    private void indexSpendCandidates(Transaction tx) {
+        List<TransactionOutput> mine = Lists.newArrayList();
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.isMine(this))
+                mine.add(output);
+        }
+        if (mine.isEmpty())
+            spendCandidates.remove(tx.getHash());
+        else
+            spendCandidates.put(tx.getHash(), mine);
+    }
+
+    private void rebuildSpendCandidates() {
+        // Clear the flag first, so keys added while we're rebuilding cause another rebuild.
+        spendCandidatesStale = false;
+        spendCandidates.clear();
+        for (Transaction tx : Iterables.concat(unspent.values(), pending.values()))
+            indexSpendCandidates(tx);
+        invalidateBalances();
+    }
+
+    private void invalidateBalances() {
+        estimatedBalance = null;
+        invalidateAvailableBalance();
+    }
+
+    private void invalidateAvailableBalance() {
+        availableBalance = null;
+        vVersion++;
+    }
+
+    /**
+     * A transaction pool which keeps {@link #spendCandidates} and the Bloom filter elements up to date if asked to, and
+     * clears the cached balances whenever its contents change. Iterators don't do any of that, so remove from the map
+     * directly.
+     */
+    private class PoolMap extends HashMap<Sha256Hash, Transaction> {
+        private static final long serialVersionUID = 1L;
+        private final boolean indexed;
+        private final boolean live;
+
+        /**
+         * @param indexed whether the pool's transactions belong in {@link #spendCandidates}
+         * @param live whether the pool's transactions belong in the Bloom filter
+         */
+        PoolMap(boolean indexed, boolean live) {
+            this.indexed = indexed;
+            this.live = live;
+        }
+
+        @Override
+        public Transaction put(Sha256Hash hash, Transaction tx) {
+            Transaction old = super.put(hash, tx);
+            if (indexed)
+                indexSpendCandidates(tx);
+            if (live)
+                addBloomOutPoints(tx);
+            else
+                bloomOutPointsMaybeRemoved.add(hash);
+            invalidateBalances();
+            return old;
+        }
+
+        @Override
+        public Transaction remove(Object hash) {
+            Transaction old = super.remove(hash);
+            if (old != null) {
+                if (indexed)
+                    spendCandidates.remove(hash);
+                if (live)
+                    bloomOutPointsMaybeRemoved.add(old.getHash());
+                invalidateBalances();
+            }
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            if (indexed)
+                spendCandidates.keySet().removeAll(keySet());
+            if (live)
+                bloomOutPointsMaybeRemoved.addAll(keySet());
+            super.clear();
+            invalidateBalances();
+        }
+    }
+
     /** Returns the {@link CoinSelector} object which controls which outputs can be spent by this wallet. */
     public CoinSelector getCoinSelector() {
         lock.lock();
@@ -3636,6 +3894,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            invalidateAvailableBalance();
         } finally {
             lock.unlock();
         }
@@ -3806,6 +4065,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 }
                 notifyNewBestBlock(block);
             }
+            invalidateBalances();
             checkState(isConsistent());
             final Coin balance = getBalance();
             log.info("post-reorg balance is {}", balance.toFriendlyString());
@@ -3858,20 +4118,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     @Override
     public int getBloomFilterElementCount() {
-        int size = 0;
-        for (Transaction tx : getTransactions(false)) {
-            for (TransactionOutput out : tx.getOutputs()) {
-                try {
-                    if (isTxOutputBloomFilterable(out))
-                        size++;
-                } catch (ScriptException e) {
-                    // If it is ours, we parsed the script correctly, so this shouldn't happen.
-                    throw new RuntimeException(e);
-                }
-            }
-        }
+        lock.lock();
         keychainLock.lock();
         try {
+            updateBloomOutPoints();
+            int size = bloomOutPointCount;
             size += keychain.getBloomFilterElementCount();
             // Some scripts may have more than one bloom element.  That should normally be okay, because under-counting
             // just increases false-positive rate.
@@ -3879,6 +4130,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             return size;
         } finally {
             keychainLock.unlock();
+            lock.unlock();
         }
     }
 
@@ -3925,31 +4177,52 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         keychainLock.lock();
         try {
-            BloomFilter filter = keychain.getBloomFilter(size, falsePositiveRate, nTweak);
-
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
+            updateBloomOutPoints();
+            boolean sameParameters = outPointFilter != null && size == outPointFilterSize &&
+                    falsePositiveRate == outPointFilterFalsePositiveRate && nTweak == outPointFilterTweak;
+            // Elements of transactions that have gone are still in the filter. Start afresh once they'd noticeably
+            // raise the false positive rate.
+            if (!sameParameters || bloomOutPointsRemoved > bloomOutPointCount / 4) {
+                outPointFilter = new BloomFilter(size, falsePositiveRate, nTweak);
+                for (List<byte[]> elements : bloomOutPoints.values())
+                    for (byte[] element : elements)
+                        outPointFilter.insert(element);
+                outPointFilterSize = size;
+                outPointFilterFalsePositiveRate = falsePositiveRate;
+                outPointFilterTweak = nTweak;
+                bloomOutPointsRemoved = 0;
+                if (!sameParameters)
+                    keyFilter = null;
+            } else {
+                for (Sha256Hash hash : bloomOutPointsAdded) {
+                    List<byte[]> elements = bloomOutPoints.get(hash);
+                    if (elements != null)
+                        for (byte[] element : elements)
+                            outPointFilter.insert(element);
                 }
             }
-            for (Transaction tx : getTransactions(false)) {
-                for (int i = 0; i < tx.getOutputs().size(); i++) {
-                    TransactionOutput out = tx.getOutputs().get(i);
-                    try {
-                        if (isTxOutputBloomFilterable(out)) {
-                            TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
-                            filter.insert(outPoint.bitcoinSerialize());
+            bloomOutPointsAdded.clear();
+
+            // Keys are only ever added, so the key filter only needs redoing when there are more.
+            int keyElements = keychain.getBloomFilterElementCount();
+            if (keyFilter == null || keyElements != keyFilterElements) {
+                keyFilter = keychain.getBloomFilter(size, falsePositiveRate, nTweak);
+                for (Script script : watchedScripts) {
+                    for (ScriptChunk chunk : script.getChunks()) {
+                        // Only add long (at least 64 bit) data to the bloom filter.
+                        // If any long constants become popular in scripts, we will need logic
+                        // here to exclude them.
+                        if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
+                            keyFilter.insert(chunk.data);
                         }
-                    } catch (ScriptException e) {
-                        throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
                     }
                 }
+                keyFilterElements = keyElements;
             }
+
+            BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+            filter.merge(keyFilter);
+            filter.merge(outPointFilter);
             return filter;
         } finally {
             keychainLock.unlock();
@@ -3957,6 +4230,130 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    // Brings bloomOutPoints up to date with the pools.
+    private void updateBloomOutPoints() {
+        checkState(lock.isHeldByCurrentThread());
+        if (bloomFilterStale) {
+            bloomFilterStale = false;
+            bloomDerivedKeys.clear();
+            bloomOutPoints.clear();
+            bloomOutPointCount = 0;
+            bloomOutPointsMaybeRemoved.clear();
+            bloomUnmatchedOutputs.clear();
+            bloomUnmatchedPayees.clear();
+            for (Transaction tx : Iterables.concat(unspent.values(), spent.values(), pending.values()))
+                addBloomOutPoints(tx);
+            outPointFilter = null;
+            keyFilter = null;
+            return;
+        }
+        List<ByteString> payees = Lists.newArrayList();
+        List<DeterministicKey> notReady = Lists.newArrayList();
+        DeterministicKey key;
+        while ((key = bloomDerivedKeys.poll()) != null) {
+            if (!addPayees(key, payees))
+                notReady.add(key);
+        }
+        bloomDerivedKeys.addAll(notReady);
+        Set<Sha256Hash> recheck = new HashSet<Sha256Hash>();
+        for (ByteString payee : payees)
+            recheck.addAll(bloomUnmatchedOutputs.get(payee));
+        for (Sha256Hash hash : recheck) {
+            Transaction tx = unspent.get(hash);
+            if (tx == null)
+                tx = pending.get(hash);
+            if (tx == null)
+                tx = spent.get(hash);
+            // Transactions that have left the pools are dropped below.
+            if (tx != null)
+                putBloomOutPoints(tx);
+        }
+        for (Sha256Hash hash : bloomOutPointsMaybeRemoved) {
+            if (unspent.containsKey(hash) || spent.containsKey(hash) || pending.containsKey(hash))
+                continue;
+            List<byte[]> elements = bloomOutPoints.remove(hash);
+            if (elements != null) {
+                bloomOutPointCount -= elements.size();
+                bloomOutPointsRemoved += elements.size();
+            }
+            removeUnmatchedOutputs(hash);
+        }
+        bloomOutPointsMaybeRemoved.clear();
+    }
+
+    private void addBloomOutPoints(Transaction tx) {
+        // A full rebuild is coming, which will pick this transaction up.
+        if (bloomFilterStale || bloomOutPoints.containsKey(tx.getHash()))
+            return;
+        putBloomOutPoints(tx);
+    }
+
+    // Works out the elements of the transaction afresh, replacing any it had before.
+    private void putBloomOutPoints(Transaction tx) {
+        Sha256Hash hash = tx.getHash();
+        List<ByteString> unmatched = Lists.newArrayList();
+        List<byte[]> elements = bloomOutPointsOf(tx, unmatched);
+        removeUnmatchedOutputs(hash);
+        if (!unmatched.isEmpty()) {
+            bloomUnmatchedPayees.put(hash, unmatched);
+            for (ByteString payee : unmatched)
+                bloomUnmatchedOutputs.put(payee, hash);
+        }
+        List<byte[]> old = bloomOutPoints.put(hash, elements);
+        int oldSize = old == null ? 0 : old.size();
+        if (elements.size() != oldSize) {
+            // Re-inserting the elements already in the filter doesn't change it.
+            bloomOutPointCount += elements.size() - oldSize;
+            bloomOutPointsAdded.add(hash);
+        }
+    }
+
+    private void removeUnmatchedOutputs(Sha256Hash hash) {
+        List<ByteString> payees = bloomUnmatchedPayees.remove(hash);
+        if (payees != null)
+            for (ByteString payee : payees)
+                bloomUnmatchedOutputs.remove(payee, hash);
+    }
+
+    // Returns the elements of the outputs of tx that are ours, and adds the public key or script hash paid to by every
+    // other output of a filterable type to unmatched.
+    private List<byte[]> bloomOutPointsOf(Transaction tx, List<ByteString> unmatched) {
+        List<byte[]> elements = Lists.newArrayList();
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            TransactionOutput out = tx.getOutputs().get(i);
+            try {
+                Script script = out.getScriptPubKey();
+                if (isTxOutputBloomFilterable(out))
+                    elements.add(new TransactionOutPoint(params, i, tx).bitcoinSerialize());
+                else if (script.isSentToRawPubKey())
+                    unmatched.add(ByteString.copyFrom(script.getPubKey()));
+                else if (script.isPayToScriptHash())
+                    unmatched.add(ByteString.copyFrom(script.getPubKeyHash()));
+            } catch (ScriptException e) {
+                throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
+            }
+        }
+        return elements;
+    }
+
+    // Adds what an output paying to the given HD key is keyed by in bloomUnmatchedOutputs: the key itself, and the
+    // script hash of its married P2SH script if it belongs to a married chain. Returns false if its chain doesn't know
+    // that script yet, in which case outputs paying to it only become ours once it does.
+    private boolean addPayees(DeterministicKey key, List<ByteString> payees) {
+        checkState(keychainLock.isHeldByCurrentThread());
+        payees.add(ByteString.copyFrom(key.getPubKey()));
+        for (DeterministicKeyChain chain : keychain.getDeterministicKeyChains()) {
+            if (chain.isMarried() && chain.findKeyFromPubKey(key.getPubKey()) != null) {
+                Script redeemScript = chain.getRedeemData(key).redeemScript;
+                byte[] scriptHash = ScriptBuilder.createP2SHOutputScript(redeemScript).getPubKeyHash();
+                if (keychain.findRedeemDataFromScriptHash(scriptHash) == null)
+                    return false;
+                payees.add(ByteString.copyFrom(scriptHash));
+            }
+        }
+        return true;
+    }
+
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
         boolean isScriptTypeSupported = out.getScriptPubKey().isSentToRawPubKey() || out.getScriptPubKey().isPayToScriptHash();
         return (out.isMine(this) && isScriptTypeSupported) ||
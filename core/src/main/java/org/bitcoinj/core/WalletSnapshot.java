@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import com.google.common.collect.ImmutableMap;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>An immutable view of the transaction pools and balances of a {@link Wallet} at one point in time, as returned by
+ * {@link Wallet#getSnapshot()}. Reading from a snapshot never takes the wallet lock, so it doesn't have to wait for
+ * the wallet to finish processing a block.</p>
+ *
+ * <p>The snapshot fixes which transactions are in which pool and what the balances were. The {@link Transaction}
+ * objects themselves are shared with the wallet, so their confidences may have moved on since the snapshot was
+ * taken.</p>
+ */
+public class WalletSnapshot {
+    private final long version;
+    private final ImmutableMap<Sha256Hash, Transaction> unspent;
+    private final ImmutableMap<Sha256Hash, Transaction> spent;
+    private final ImmutableMap<Sha256Hash, Transaction> pending;
+    private final ImmutableMap<Sha256Hash, Transaction> dead;
+    private final Coin estimatedBalance;
+    private final Coin availableBalance;
+    @Nullable private final Sha256Hash lastBlockSeenHash;
+    private final int lastBlockSeenHeight;
+
+    WalletSnapshot(long version, Map<Sha256Hash, Transaction> unspent, Map<Sha256Hash, Transaction> spent,
+                   Map<Sha256Hash, Transaction> pending, Map<Sha256Hash, Transaction> dead, Coin estimatedBalance,
+                   Coin availableBalance, @Nullable Sha256Hash lastBlockSeenHash, int lastBlockSeenHeight) {
+        this.version = version;
+        this.unspent = ImmutableMap.copyOf(unspent);
+        this.spent = ImmutableMap.copyOf(spent);
+        this.pending = ImmutableMap.copyOf(pending);
+        this.dead = ImmutableMap.copyOf(dead);
+        this.estimatedBalance = checkNotNull(estimatedBalance);
+        this.availableBalance = checkNotNull(availableBalance);
+        this.lastBlockSeenHash = lastBlockSeenHash;
+        this.lastBlockSeenHeight = lastBlockSeenHeight;
+    }
+
+    /**
+     * Returns a number which grows whenever the wallet changes. Two snapshots with the same version have the same
+     * contents.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /** Returns the balance of the given type, as {@link Wallet#getBalance(Wallet.BalanceType)} would have. */
+    public Coin getBalance(Wallet.BalanceType balanceType) {
+        switch (balanceType) {
+            case AVAILABLE:
+                return availableBalance;
+            case ESTIMATED:
+                return estimatedBalance;
+            default:
+                throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
+    /** Returns the transactions in the given pool. */
+    public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
+        switch (pool) {
+            case UNSPENT:
+                return unspent;
+            case SPENT:
+                return spent;
+            case PENDING:
+                return pending;
+            case DEAD:
+                return dead;
+            default:
+                throw new RuntimeException("Unknown wallet transaction type " + pool);
+        }
+    }
+
+    /**
+     * Returns a set of all transactions in the snapshot.
+     * @param includeDead     If true, transactions that were overridden by a double spend are included.
+     */
+    public Set<Transaction> getTransactions(boolean includeDead) {
+        Set<Transaction> all = new HashSet<Transaction>();
+        all.addAll(unspent.values());
+        all.addAll(spent.values());
+        all.addAll(pending.values());
+        if (includeDead)
+            all.addAll(dead.values());
+        return all;
+    }
+
+    /** Returns the transaction with the given hash, or null if there is none. */
+    @Nullable
+    public Transaction getTransaction(Sha256Hash hash) {
+        Transaction tx = unspent.get(hash);
+        if (tx == null)
+            tx = spent.get(hash);
+        if (tx == null)
+            tx = pending.get(hash);
+        if (tx == null)
+            tx = dead.get(hash);
+        return tx;
+    }
+
+    /**
+     * Returns up to the given number of transactions, most recently updated first, or all of them if the number is
+     * zero. See {@link Wallet#getRecentTransactions(int, boolean)}.
+     */
+    public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+        checkArgument(numTransactions >= 0);
+        ArrayList<Transaction> all = new ArrayList<Transaction>(getTransactions(includeDead));
+        Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
+        if (numTransactions > 0 && numTransactions < all.size())
+            all.subList(numTransactions, all.size()).clear();
+        return all;
+    }
+
+    /** Returns the hash of the last block the wallet had seen when the snapshot was taken. */
+    @Nullable
+    public Sha256Hash getLastBlockSeenHash() {
+        return lastBlockSeenHash;
+    }
+
+    /** Returns the height of the last block the wallet had seen when the snapshot was taken. */
+    public int getLastBlockSeenHeight() {
+        return lastBlockSeenHeight;
+    }
+}
@@ -18,6 +18,7 @@ package org.bitcoinj.crypto;
 
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.Utils;
+import org.bitcoinj.utils.Threading;
 import com.google.common.collect.ImmutableList;
 import org.spongycastle.crypto.macs.HMac;
 import org.spongycastle.math.ec.ECPoint;
@@ -25,7 +26,12 @@ import org.spongycastle.math.ec.ECPoint;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
@@ -46,6 +52,9 @@ public final class HDKeyDerivation {
      */
     public static final int MAX_CHILD_DERIVATION_ATTEMPTS = 100;
 
+    /** Bulk derivations of fewer keys than this per processor aren't worth spreading over threads. */
+    private static final int MIN_KEYS_PER_TASK = 16;
+
     public static final HMac MASTER_HMAC_SHA512 = HDUtils.createHmacSha512Digest("Bitcoin seed".getBytes());
 
     /**
@@ -125,43 +134,124 @@ public final class HDKeyDerivation {
      * if the resulting derived key is invalid (eg. private key == 0).
      */
     public static DeterministicKey deriveChildKey(DeterministicKey parent, ChildNumber childNumber) throws HDDerivationException {
-        if (parent.isPubKeyOnly()) {
+        return deriveChildKey(new Parent(parent), childNumber);
+    }
+
+    private static DeterministicKey deriveChildKey(Parent parent, ChildNumber childNumber) throws HDDerivationException {
+        if (parent.key.isPubKeyOnly()) {
             RawKeyBytes rawKey = deriveChildKeyBytesFromPublic(parent, childNumber, PublicDeriveMode.NORMAL);
             return new DeterministicKey(
-                    HDUtils.append(parent.getPath(), childNumber),
+                    HDUtils.append(parent.key.getPath(), childNumber),
                     rawKey.chainCode,
                     new LazyECPoint(ECKey.CURVE.getCurve(), rawKey.keyBytes),
                     null,
-                    parent);
+                    parent.key);
         } else {
             RawKeyBytes rawKey = deriveChildKeyBytesFromPrivate(parent, childNumber);
             return new DeterministicKey(
-                    HDUtils.append(parent.getPath(), childNumber),
+                    HDUtils.append(parent.key.getPath(), childNumber),
                     rawKey.chainCode,
                     new BigInteger(1, rawKey.keyBytes),
-                    parent);
+                    parent.key);
         }
     }
 
+    /**
+     * Derives <code>count</code> keys starting at the "extended" child number, ie. with the 0x80000000 bit specifying
+     * whether to use hardened derivation or not. Children for which derivation fails are skipped, so the result is the
+     * same as calling {@link #deriveThisOrNextChildKey(DeterministicKey, int)} repeatedly, each time with the number
+     * after the previous child. Large batches are split into ranges which are derived in parallel on
+     * {@link Threading#THREAD_POOL}.
+     */
+    public static List<DeterministicKey> deriveChildKeys(DeterministicKey parent, int childNumber, int count) {
+        return deriveChildKeys(parent, childNumber, count, Threading.THREAD_POOL);
+    }
+
+    /**
+     * Like {@link #deriveChildKeys(DeterministicKey, int, int)}, but derives the ranges on the given executor. The
+     * calling thread derives the first range itself.
+     */
+    public static List<DeterministicKey> deriveChildKeys(DeterministicKey parent, int childNumber, int count,
+                                                         Executor executor) {
+        checkArgument(count >= 0);
+        ChildNumber first = new ChildNumber(childNumber);
+        // Work out the parent's public key and serialization once, rather than for every child.
+        Parent p = new Parent(parent);
+        List<DeterministicKey> result = new ArrayList<DeterministicKey>(count);
+        int next = first.num();
+        int failures = 0;
+        while (result.size() < count) {
+            int wanted = count - result.size();
+            for (DeterministicKey key : deriveChildKeyRange(p, next, wanted, first.isHardened(), executor)) {
+                if (key != null)
+                    result.add(key);
+                else if (++failures >= MAX_CHILD_DERIVATION_ATTEMPTS)
+                    throw new HDDerivationException("Maximum number of child derivation attempts reached, this is probably an indication of a bug.");
+            }
+            next += wanted;
+        }
+        return result;
+    }
+
+    // Derives the children numbered from first to first + count - 1. Those that can't be derived are left null.
+    private static DeterministicKey[] deriveChildKeyRange(final Parent parent, final int first, int count,
+                                                          final boolean hardened, Executor executor) {
+        final DeterministicKey[] keys = new DeterministicKey[count];
+        int perTask = Math.max(MIN_KEYS_PER_TASK, (count + Runtime.getRuntime().availableProcessors() - 1) /
+                Runtime.getRuntime().availableProcessors());
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+        for (int start = 0; start < count; start += perTask) {
+            final int from = start, to = Math.min(count, start + perTask);
+            tasks.add(new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to; i++) {
+                        try {
+                            keys[i] = deriveChildKey(parent, new ChildNumber(first + i, hardened));
+                        } catch (HDDerivationException ignore) { }
+                    }
+                }
+            }, null));
+        }
+        for (int i = 1; i < tasks.size(); i++)
+            executor.execute(tasks.get(i));
+        tasks.get(0).run();
+        try {
+            for (FutureTask<Void> task : tasks)
+                task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+        return keys;
+    }
+
     public static RawKeyBytes deriveChildKeyBytesFromPrivate(DeterministicKey parent,
                                                               ChildNumber childNumber) throws HDDerivationException {
-        checkArgument(parent.hasPrivKey(), "Parent key must have private key bytes for this method.");
-        byte[] parentPublicKey = ECKey.compressPoint(parent.getPubKeyPoint()).getEncoded();
-        assert parentPublicKey.length == 33 : parentPublicKey.length;
+        return deriveChildKeyBytesFromPrivate(new Parent(parent), childNumber);
+    }
+
+    private static RawKeyBytes deriveChildKeyBytesFromPrivate(Parent parent,
+                                                              ChildNumber childNumber) throws HDDerivationException {
+        checkArgument(parent.key.hasPrivKey(), "Parent key must have private key bytes for this method.");
         ByteBuffer data = ByteBuffer.allocate(37);
         if (childNumber.isHardened()) {
-            data.put(parent.getPrivKeyBytes33());
+            data.put(parent.key.getPrivKeyBytes33());
         } else {
-            data.put(parentPublicKey);
+            data.put(parent.publicKey);
         }
         data.putInt(childNumber.i());
-        byte[] i = HDUtils.hmacSha512(parent.getChainCode(), data.array());
+        byte[] i = HDUtils.hmacSha512(parent.chainCode, data.array());
         assert i.length == 64 : i.length;
         byte[] il = Arrays.copyOfRange(i, 0, 32);
         byte[] chainCode = Arrays.copyOfRange(i, 32, 64);
         BigInteger ilInt = new BigInteger(1, il);
         assertLessThanN(ilInt, "Illegal derived key: I_L >= n");
-        final BigInteger priv = parent.getPrivKey();
+        final BigInteger priv = parent.key.getPrivKey();
         BigInteger ki = priv.add(ilInt).mod(ECKey.CURVE.getN());
         assertNonZero(ki, "Illegal derived key: derived private key equals 0.");
         return new RawKeyBytes(ki.toByteArray(), chainCode);
@@ -173,13 +263,15 @@ public final class HDKeyDerivation {
     }
 
     public static RawKeyBytes deriveChildKeyBytesFromPublic(DeterministicKey parent, ChildNumber childNumber, PublicDeriveMode mode) throws HDDerivationException {
+        return deriveChildKeyBytesFromPublic(new Parent(parent), childNumber, mode);
+    }
+
+    private static RawKeyBytes deriveChildKeyBytesFromPublic(Parent parent, ChildNumber childNumber, PublicDeriveMode mode) throws HDDerivationException {
         checkArgument(!childNumber.isHardened(), "Can't use private derivation with public keys only.");
-        byte[] parentPublicKey = ECKey.compressPoint(parent.getPubKeyPoint()).getEncoded();
-        assert parentPublicKey.length == 33 : parentPublicKey.length;
         ByteBuffer data = ByteBuffer.allocate(37);
-        data.put(parentPublicKey);
+        data.put(parent.publicKey);
         data.putInt(childNumber.i());
-        byte[] i = HDUtils.hmacSha512(parent.getChainCode(), data.array());
+        byte[] i = HDUtils.hmacSha512(parent.chainCode, data.array());
         assert i.length == 64 : i.length;
         byte[] il = Arrays.copyOfRange(i, 0, 32);
         byte[] chainCode = Arrays.copyOfRange(i, 32, 64);
@@ -191,7 +283,7 @@ public final class HDKeyDerivation {
         ECPoint Ki;
         switch (mode) {
             case NORMAL:
-                Ki = G.multiply(ilInt).add(parent.getPubKeyPoint());
+                Ki = G.multiply(ilInt).add(parent.publicPoint);
                 break;
             case WITH_INVERSION:
                 // This trick comes from Gregory Maxwell. Check the homomorphic properties of our curve hold. The
@@ -201,7 +293,7 @@ public final class HDKeyDerivation {
                 Ki = G.multiply(ilInt.add(RAND_INT));
                 BigInteger additiveInverse = RAND_INT.negate().mod(N);
                 Ki = Ki.add(G.multiply(additiveInverse));
-                Ki = Ki.add(parent.getPubKeyPoint());
+                Ki = Ki.add(parent.publicPoint);
                 break;
             default: throw new AssertionError();
         }
@@ -225,6 +317,22 @@ public final class HDKeyDerivation {
             throw new HDDerivationException(errorMessage);
     }
 
+    // The parts of a parent key that every child derivation needs, worked out once.
+    private static class Parent {
+        final DeterministicKey key;
+        final ECPoint publicPoint;
+        final byte[] publicKey;
+        final byte[] chainCode;
+
+        Parent(DeterministicKey key) {
+            this.key = key;
+            this.publicPoint = key.getPubKeyPoint();
+            this.publicKey = ECKey.compressPoint(publicPoint).getEncoded();
+            assert publicKey.length == 33 : publicKey.length;
+            this.chainCode = key.getChainCode();
+        }
+    }
+
     public static class RawKeyBytes {
         public final byte[] keyBytes, chainCode;
 
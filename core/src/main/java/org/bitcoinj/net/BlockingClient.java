@@ -38,7 +38,7 @@ import static com.google.common.base.Preconditions.checkState;
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
  */
-public class BlockingClient implements MessageWriteTarget {
+public class BlockingClient implements MessageWriteTarget, ReadPausable {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -47,6 +47,9 @@ public class BlockingClient implements MessageWriteTarget {
     private final ByteBuffer dbuf;
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    // Guarded by itself, and notified when reading is resumed or the connection closed.
+    private final Object readPauseLock = new Object();
+    private boolean readPaused = false;
 
     /**
      * <p>Creates a new client to the given server address using the given {@link StreamParser} to decode the data.
@@ -62,12 +65,26 @@ public class BlockingClient implements MessageWriteTarget {
      */
     public BlockingClient(final SocketAddress serverAddress, final StreamParser parser,
                           final int connectTimeoutMillis, final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet) throws IOException {
+        this(serverAddress, parser, connectTimeoutMillis, socketFactory, clientSet, 0);
+    }
+
+    /**
+     * <p>Creates a new client as {@link #BlockingClient(SocketAddress, StreamParser, int, SocketFactory, Set)} does,
+     * with the given stack size for its network thread.</p>
+     *
+     * @param threadStackSize The stack size of the network thread in bytes, or 0 for the JVM's default. The JVM may
+     *                        round it up, or ignore it altogether, see {@link Thread#Thread(ThreadGroup, Runnable,
+     *                        String, long)}.
+     */
+    public BlockingClient(final SocketAddress serverAddress, final StreamParser parser,
+                          final int connectTimeoutMillis, final SocketFactory socketFactory,
+                          @Nullable final Set<BlockingClient> clientSet, long threadStackSize) throws IOException {
         // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
         // sure it doesnt get too large or have to call read too often.
-        dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        dbuf = ByteBuffer.allocate(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
         parser.setWriteTarget(this);
         socket = socketFactory.createSocket();
-        Thread t = new Thread() {
+        Runnable loop = new Runnable() {
             @Override
             public void run() {
                 if (clientSet != null)
@@ -77,15 +94,19 @@ public class BlockingClient implements MessageWriteTarget {
                     socket.connect(serverAddress, connectTimeoutMillis);
                     parser.connectionOpened();
                     InputStream stream = socket.getInputStream();
-                    byte[] readBuff = new byte[dbuf.capacity()];
 
                     while (true) {
-                        // TODO Kill the message duplication here
-                        checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-                        int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
+                        synchronized (readPauseLock) {
+                            while (readPaused && !vCloseRequested)
+                                readPauseLock.wait();
+                        }
+                        // Read straight into the buffer the parser is given
+                        checkState(dbuf.remaining() > 0);
+                        int read = stream.read(dbuf.array(), dbuf.arrayOffset() + dbuf.position(),
+                                Math.max(1, Math.min(dbuf.remaining(), stream.available())));
                         if (read == -1)
                             return;
-                        dbuf.put(readBuff, 0, read);
+                        dbuf.position(dbuf.position() + read);
                         // "flip" the buffer - setting the limit to the current position and setting position to 0
                         dbuf.flip();
                         // Use parser.receiveBytes's return value as a double-check that it stopped reading at the right
@@ -111,7 +132,7 @@ public class BlockingClient implements MessageWriteTarget {
                 }
             }
         };
-        t.setName("BlockingClient network thread for " + serverAddress);
+        Thread t = new Thread(null, loop, "BlockingClient network thread for " + serverAddress, threadStackSize);
         t.setDaemon(true);
         t.start();
     }
@@ -125,6 +146,9 @@ public class BlockingClient implements MessageWriteTarget {
         // Closes the channel, triggering an exception in the network-handling thread triggering connectionClosed()
         try {
             vCloseRequested = true;
+            synchronized (readPauseLock) {
+                readPauseLock.notifyAll();
+            }
             socket.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -133,9 +157,26 @@ public class BlockingClient implements MessageWriteTarget {
 
     @Override
     public synchronized void writeBytes(byte[] message) throws IOException {
+        writeBytes(message, 0, message.length);
+    }
+
+    @Override
+    public synchronized void writeBytes(ByteBuffer message, boolean urgent) throws IOException {
+        // Writes go straight to the socket, so there is never anything for an urgent message to go ahead of.
+        ByteBuffer buff = message.duplicate();
+        if (buff.hasArray()) {
+            writeBytes(buff.array(), buff.arrayOffset() + buff.position(), buff.remaining());
+        } else {
+            byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            writeBytes(bytes, 0, bytes.length);
+        }
+    }
+
+    private void writeBytes(byte[] message, int offset, int length) throws IOException {
         try {
             OutputStream stream = socket.getOutputStream();
-            stream.write(message);
+            stream.write(message, offset, length);
             stream.flush();
         } catch (IOException e) {
             log.error("Error writing message to connection, closing connection", e);
@@ -143,4 +184,22 @@ public class BlockingClient implements MessageWriteTarget {
             throw e;
         }
     }
+
+    @Override
+    public long getBytesQueued() {
+        return 0;
+    }
+
+    @Override
+    public int getMessagesQueued() {
+        return 0;
+    }
+
+    @Override
+    public void setReadPaused(boolean paused) {
+        synchronized (readPauseLock) {
+            readPaused = paused;
+            readPauseLock.notifyAll();
+        }
+    }
 }
@@ -26,6 +26,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -34,12 +35,18 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * <p>Generally, using {@link NioClient} and {@link NioClientManager} should be preferred over {@link BlockingClient}
  * and {@link BlockingClientManager} as they scale significantly better, unless you wish to connect over a proxy or use
  * some other network settings that cannot be set using NIO.</p>
+ *
+ * <p>Each connection costs a thread, most of which is its stack. When running many connections this way, for example
+ * through Tor, {@link #setThreadStackSize(long)} can make them much cheaper. Message processing runs on those threads
+ * too, so use small stacks together with {@link org.bitcoinj.core.PeerGroup#setMessageExecutor(java.util.concurrent.Executor)}
+ * to keep deep call chains such as wallet updates off them.</p>
  */
 public class BlockingClientManager extends AbstractIdleService implements ClientConnectionManager {
     private final SocketFactory socketFactory;
     private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
 
     private int connectTimeoutMillis = 1000;
+    private volatile long threadStackSize = 0;
 
     public BlockingClientManager() {
         socketFactory = SocketFactory.getDefault();
@@ -58,7 +65,7 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         if (!isRunning())
             throw new IllegalStateException();
         try {
-            new BlockingClient(serverAddress, parser, connectTimeoutMillis, socketFactory, clients);
+            new BlockingClient(serverAddress, parser, connectTimeoutMillis, socketFactory, clients, threadStackSize);
         } catch (IOException e) {
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
         }
@@ -69,6 +76,20 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         this.connectTimeoutMillis = connectTimeoutMillis;
     }
 
+    /**
+     * Sets the stack size in bytes of the threads started for new connections, or 0 (the default) for the JVM's
+     * default. The JVM treats this as a hint which it may round up or ignore.
+     */
+    public void setThreadStackSize(long threadStackSize) {
+        checkArgument(threadStackSize >= 0);
+        this.threadStackSize = threadStackSize;
+    }
+
+    /** Returns the stack size in bytes of the threads started for new connections, or 0 for the JVM's default. */
+    public long getThreadStackSize() {
+        return threadStackSize;
+    }
+
     @Override
     protected void startUp() throws Exception { }
 
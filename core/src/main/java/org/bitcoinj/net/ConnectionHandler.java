@@ -28,7 +28,7 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
@@ -41,13 +41,19 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements MessageWriteTarget, ReadPausable {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
+    // The most that may be queued before the connection is dropped.
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // The part of it that only urgent messages may use, so that a bulk backlog can't get the connection dropped for
+    // the sake of a ping. Far more than the control messages we send ever need.
+    private static final int URGENT_RESERVE_BYTE_COUNT = 1024 * 1024;
+    // The most buffers handed to the OS in one gathering write.
+    private static final int MAX_BUFFERS_PER_WRITE = 64;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -58,8 +64,14 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") StreamParser parser;
     @GuardedBy("lock") private boolean closeCalled = false;
 
-    @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    // Messages waiting to be written, each a view of its own onto contents that may be shared with other connections.
+    // Urgent messages go ahead of the others, except that a message which has been part written is always finished
+    // first, as its bytes can't be interleaved with any others.
+    @GuardedBy("lock") private final LinkedList<ByteBuffer> urgentWrites = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private final LinkedList<ByteBuffer> bulkWrites = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private boolean bulkWriteStarted = false;
+    @GuardedBy("lock") private long urgentBytesRemaining = 0;
+    @GuardedBy("lock") private long bulkBytesRemaining = 0;
 
     private Set<ConnectionHandler> connectedHandlers;
 
@@ -112,20 +124,40 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound queues as possible into the OS' network buffer, many messages at a time.
+            while (!urgentWrites.isEmpty() || !bulkWrites.isEmpty()) {
+                ByteBuffer[] buffs = nextWrites();
+                long[] remaining = new long[buffs.length];
+                for (int i = 0; i < buffs.length; i++)
+                    remaining[i] = buffs[i].remaining();
+                channel.write(buffs);
+                boolean full = false;
+                for (int i = 0; i < buffs.length && !full; i++) {
+                    ByteBuffer buff = buffs[i];
+                    long written = remaining[i] - buff.remaining();
+                    boolean urgent = urgentWrites.peekFirst() == buff;
+                    if (urgent)
+                        urgentBytesRemaining -= written;
+                    else
+                        bulkBytesRemaining -= written;
+                    if (buff.hasRemaining()) {
+                        if (!urgent && written > 0)
+                            bulkWriteStarted = true;
+                        full = true;
+                    } else if (urgent) {
+                        urgentWrites.pollFirst();
+                    } else {
+                        bulkWrites.pollFirst();
+                        bulkWriteStarted = false;
+                    }
+                }
+                if (full) {
                     setWriteOps();
                     break;
                 }
             }
             // If we are done writing, clear the OP_WRITE interestOps
-            if (bytesToWrite.isEmpty())
+            if (urgentWrites.isEmpty() && bulkWrites.isEmpty())
                 key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
             // Don't bother waking up the selector here, since we're just removing an op, not adding
         } finally {
@@ -133,21 +165,48 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    // Returns the buffers to write next, in the order they must go on the wire.
+    @GuardedBy("lock")
+    private ByteBuffer[] nextWrites() {
+        ArrayList<ByteBuffer> buffs = new ArrayList<ByteBuffer>(
+                Math.min(MAX_BUFFERS_PER_WRITE, urgentWrites.size() + bulkWrites.size()));
+        Iterator<ByteBuffer> bulk = bulkWrites.iterator();
+        if (bulkWriteStarted)
+            buffs.add(bulk.next());
+        for (Iterator<ByteBuffer> urgent = urgentWrites.iterator(); urgent.hasNext() && buffs.size() < MAX_BUFFERS_PER_WRITE; )
+            buffs.add(urgent.next());
+        while (bulk.hasNext() && buffs.size() < MAX_BUFFERS_PER_WRITE)
+            buffs.add(bulk.next());
+        return buffs.toArray(new ByteBuffer[buffs.size()]);
+    }
+
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        writeBytes(ByteBuffer.wrap(message), false);
+    }
+
+    @Override
+    public void writeBytes(ByteBuffer message, boolean urgent) throws IOException {
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
+            // thus we have to buffer outbound messages sometimes. To do this, we use queues of ByteBuffers and just
+            // append to them when we want to send a message. We then let tryWriteBytes() either send the messages or
+            // register our SelectionKey to wakeup when we have free outbound buffer space available. Either way,
+            // everything queued by the time the selector gets to us goes out together.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            int length = message.remaining();
+            int limit = urgent ? OUTBOUND_BUFFER_BYTE_COUNT : OUTBOUND_BUFFER_BYTE_COUNT - URGENT_RESERVE_BYTE_COUNT;
+            if (urgentBytesRemaining + bulkBytesRemaining + length > limit)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            // The message isn't copied, only given a position and limit of its own.
+            if (urgent) {
+                urgentWrites.offer(message.duplicate());
+                urgentBytesRemaining += length;
+            } else {
+                bulkWrites.offer(message.duplicate());
+                bulkBytesRemaining += length;
+            }
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
@@ -163,6 +222,43 @@ class ConnectionHandler implements MessageWriteTarget {
         lock.unlock();
     }
 
+    @Override
+    public long getBytesQueued() {
+        lock.lock();
+        try {
+            return urgentBytesRemaining + bulkBytesRemaining;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getMessagesQueued() {
+        lock.lock();
+        try {
+            return urgentWrites.size() + bulkWrites.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setReadPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (paused)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            else
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            // Refresh the selector to make sure it gets the new interestOps
+            key.selector().wakeup();
+        } catch (CancelledKeyException e) {
+            // The connection is closing anyway.
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     // May NOT be called with lock held
     public void closeConnection() {
@@ -17,15 +17,32 @@
 package org.bitcoinj.net;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * A target to which messages can be written/connection can be closed
  */
 public interface MessageWriteTarget {
     /**
-     * Writes the given bytes to the remote server.
+     * Writes the given bytes to the remote server. The array may be queued as it is, so must not be modified
+     * afterwards.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the remaining bytes of the given buffer to the remote server, without changing the buffer's position. The
+     * contents may be queued as they are and shared with other targets, so must not be modified afterwards. Urgent
+     * messages are sent ahead of any non-urgent ones still waiting to be sent.
+     */
+    void writeBytes(ByteBuffer message, boolean urgent) throws IOException;
+    /**
+     * Returns the number of bytes waiting to be sent, which is always zero for targets that write synchronously.
+     */
+    long getBytesQueued();
+    /**
+     * Returns the number of messages waiting to be sent, or part sent, which is always zero for targets that write
+     * synchronously.
+     */
+    int getMessagesQueued();
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
@@ -24,7 +24,7 @@ import java.nio.ByteBuffer;
 /**
  * Creates a simple connection to a server using a {@link StreamParser} to process data.
  */
-public class NioClient implements MessageWriteTarget {
+public class NioClient implements MessageWriteTarget, ReadPausable {
     private final Handler handler;
     private final NioClientManager manager = new NioClientManager();
 
@@ -108,4 +108,25 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBytes(ByteBuffer message, boolean urgent) throws IOException {
+        handler.writeTarget.writeBytes(message, urgent);
+    }
+
+    @Override
+    public long getBytesQueued() {
+        return handler.writeTarget.getBytesQueued();
+    }
+
+    @Override
+    public int getMessagesQueued() {
+        return handler.writeTarget.getMessagesQueued();
+    }
+
+    @Override
+    public void setReadPaused(boolean paused) {
+        // The handler's target is always a ConnectionHandler.
+        ((ReadPausable) handler.writeTarget).setReadPaused(paused);
+    }
 }
@@ -26,10 +26,14 @@ import java.nio.channels.*;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * single network processing thread by default, or spreads the connections across several threads each with a selector
+ * of its own, see {@link #NioClientManager(int)}.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
@@ -43,6 +47,18 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     }
     final Queue<SocketChannelAndParser> newConnectionChannels = new LinkedBlockingQueue<SocketChannelAndParser>();
 
+    // SocketChannels accepted by a NioServer, which should be registered with OP_READ
+    class SocketChannelAndParserFactory {
+        SocketChannel sc; StreamParserFactory parserFactory;
+        SocketChannelAndParserFactory(SocketChannel sc, StreamParserFactory parserFactory) { this.sc = sc; this.parserFactory = parserFactory; }
+    }
+    final Queue<SocketChannelAndParserFactory> acceptedChannels = new LinkedBlockingQueue<SocketChannelAndParserFactory>();
+
+    // The other selector threads connections are spread across, each a manager of its own. Empty if there is just the
+    // one thread.
+    private final List<NioClientManager> otherSelectors;
+    private final AtomicInteger nextSelector = new AtomicInteger();
+
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
 
@@ -80,11 +96,49 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
+        this(1);
+    }
+
+    /**
+     * Creates a new client manager which uses Java NIO for socket management, with the given number of threads each
+     * running select calls on a selector of its own. New connections are given to the threads in turn, and stay on
+     * the same thread for as long as they are open. Reading and parsing messages happens on these threads, so with
+     * many connections more than one thread spreads that work across cores.
+     */
+    public NioClientManager(int selectorThreads) {
+        checkArgument(selectorThreads > 0, "selectorThreads must be at least one");
         try {
             selector = SelectorProvider.provider().openSelector();
         } catch (IOException e) {
             throw new RuntimeException(e); // Shouldn't ever happen
         }
+        otherSelectors = new ArrayList<NioClientManager>(selectorThreads - 1);
+        for (int i = 1; i < selectorThreads; i++)
+            otherSelectors.add(new NioClientManager());
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+        for (NioClientManager manager : otherSelectors)
+            manager.startAsync();
+        for (NioClientManager manager : otherSelectors)
+            manager.awaitRunning();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        for (NioClientManager manager : otherSelectors)
+            manager.stopAsync();
+        for (NioClientManager manager : otherSelectors)
+            manager.awaitTerminated();
+    }
+
+    // Returns the manager whose turn it is to take a new connection.
+    private NioClientManager nextManager() {
+        if (otherSelectors.isEmpty())
+            return this;
+        int i = (nextSelector.getAndIncrement() & Integer.MAX_VALUE) % (otherSelectors.size() + 1);
+        return i == 0 ? this : otherSelectors.get(i - 1);
     }
 
     @Override
@@ -101,6 +155,9 @@ public class NioClientManager extends AbstractExecutionThreadService implements
                         log.info("SocketChannel was closed before it could be registered");
                     }
                 }
+                SocketChannelAndParserFactory accepted;
+                while ((accepted = acceptedChannels.poll()) != null)
+                    NioServer.registerAcceptedChannel(accepted.sc, selector, accepted.parserFactory);
 
                 selector.select();
 
@@ -137,6 +194,11 @@ public class NioClientManager extends AbstractExecutionThreadService implements
     public void openConnection(SocketAddress serverAddress, StreamParser parser) {
         if (!isRunning())
             throw new IllegalStateException();
+        NioClientManager manager = nextManager();
+        if (manager != this) {
+            manager.openConnection(serverAddress, parser);
+            return;
+        }
         // Create a new connection, give it a parser as an attachment
         try {
             SocketChannel sc = SocketChannel.open();
@@ -153,6 +215,18 @@ public class NioClientManager extends AbstractExecutionThreadService implements
         }
     }
 
+    /**
+     * Hands a channel accepted by a {@link NioServer} to one of this manager's selector threads, which takes care of it
+     * from then on.
+     */
+    void acceptConnection(SocketChannel sc, StreamParserFactory parserFactory) {
+        if (!isRunning())
+            throw new IllegalStateException();
+        NioClientManager manager = nextManager();
+        manager.acceptedChannels.offer(new SocketChannelAndParserFactory(sc, parserFactory));
+        manager.selector.wakeup();
+    }
+
     @Override
     public void triggerShutdown() {
         selector.wakeup();
@@ -160,18 +234,32 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public int getConnectedClientCount() {
-        return connectedHandlers.size();
+        int count = connectedHandlers.size();
+        for (NioClientManager manager : otherSelectors)
+            count += manager.getConnectedClientCount();
+        return count;
     }
 
     @Override
     public void closeConnections(int n) {
-        while (n-- > 0) {
+        n -= closeOwnConnections(n);
+        for (NioClientManager manager : otherSelectors)
+            n -= manager.closeOwnConnections(n);
+    }
+
+    // Closes up to n of the connections on this manager's own selector, returning how many were closed.
+    private int closeOwnConnections(int n) {
+        int closed = 0;
+        while (closed < n) {
             ConnectionHandler handler;
             synchronized (connectedHandlers) {
+                if (connectedHandlers.isEmpty())
+                    break;
                 handler = connectedHandlers.iterator().next();
             }
-            if (handler != null)
-                handler.closeConnection(); // Removes handler from connectedHandlers before returning
+            handler.closeConnection(); // Removes handler from connectedHandlers before returning
+            closed++;
         }
+        return closed;
     }
 }
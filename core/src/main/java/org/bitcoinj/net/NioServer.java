@@ -27,9 +27,14 @@ import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamParser} to
- * process data.
+ * process data. Connections are handled on the listening thread by default, or spread across several threads each with
+ * a selector of its own, see {@link #NioServer(StreamParserFactory, InetSocketAddress, int)}.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -39,24 +44,54 @@ public class NioServer extends AbstractExecutionThreadService {
     private final ServerSocketChannel sc;
     @VisibleForTesting final Selector selector;
 
+    // Threads that accepted connections are spread across along with this one, or null if there are none.
+    @Nullable private final NioClientManager otherSelectors;
+    private final int selectorThreads;
+    private int connectionsAccepted;
+
     // Handle a SelectionKey which was selected
     private void handleKey(Selector selector, SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
-            // Accept a new connection, give it a parser as an attachment
+            // Accept a new connection, and hand it to whichever thread's turn it is
             SocketChannel newChannel = sc.accept();
+            if (newChannel == null)
+                return;
+            if (otherSelectors == null || connectionsAccepted++ % selectorThreads == 0)
+                registerAcceptedChannel(newChannel, selector, parserFactory);
+            else
+                otherSelectors.acceptConnection(newChannel, parserFactory);
+        } else { // Got a closing channel or a channel to a client connection
+            ConnectionHandler.handleKey(key);
+        }
+    }
+
+    // Registers a newly accepted channel with the given selector, giving it a parser as an attachment
+    static void registerAcceptedChannel(SocketChannel newChannel, Selector selector, StreamParserFactory parserFactory) {
+        SelectionKey newKey;
+        try {
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
+            newKey = newChannel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            log.error("Error registering new connection: {}", Throwables.getRootCause(e).getMessage());
+            try {
+                newChannel.close();
+            } catch (IOException e1) {
+                // At this point there isn't much we can do, and we can probably assume the channel is closed
+            }
+            return;
+        }
+        try {
+            ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
+            newKey.attach(handler);
+            handler.parser.connectionOpened();
+        } catch (IOException e) {
+            // This can happen if ConnectionHandler's call to get a new handler returned null
+            log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
             try {
-                ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
-                newKey.attach(handler);
-                handler.parser.connectionOpened();
-            } catch (IOException e) {
-                // This can happen if ConnectionHandler's call to get a new handler returned null
-                log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
                 newKey.channel().close();
+            } catch (IOException e1) {
+                // As above
             }
-        } else { // Got a closing channel or a channel to a client connection
-            ConnectionHandler.handleKey(key);
         }
     }
 
@@ -67,7 +102,23 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress) throws IOException {
+        this(parserFactory, bindAddress, 1);
+    }
+
+    /**
+     * Creates a new server as {@link #NioServer(StreamParserFactory, InetSocketAddress)} does, which spreads the
+     * connections it accepts across the given number of threads, each running select calls on a selector of its own.
+     * Reading and parsing messages happens on these threads, so with many clients more than one thread spreads that
+     * work across cores.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress, int selectorThreads)
+            throws IOException {
+        checkArgument(selectorThreads > 0, "selectorThreads must be at least one");
         this.parserFactory = parserFactory;
+        this.selectorThreads = selectorThreads;
+        this.otherSelectors = selectorThreads > 1 ? new NioClientManager(selectorThreads - 1) : null;
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
@@ -76,6 +127,18 @@ public class NioServer extends AbstractExecutionThreadService {
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
+    @Override
+    protected void startUp() throws Exception {
+        if (otherSelectors != null)
+            otherSelectors.startAsync().awaitRunning();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        if (otherSelectors != null)
+            otherSelectors.stopAsync().awaitTerminated();
+    }
+
     @Override
     protected void run() throws Exception {
         try {
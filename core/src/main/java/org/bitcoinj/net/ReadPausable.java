@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+/**
+ * Implemented by {@link MessageWriteTarget}s that can stop reading from their connection for a while, so that a
+ * {@link StreamParser} which can't keep up can hold the remote end up. Optional: parsers check for it with instanceof
+ * and carry on reading regardless if the target doesn't implement it.
+ */
+public interface ReadPausable {
+    /**
+     * Stops passing received bytes to the {@link StreamParser} if paused, until called again to resume. While paused
+     * nothing is read from the connection, so TCP flow control eventually holds the remote end up too. A read that
+     * was already under way when pausing may still be passed on.
+     */
+    void setReadPaused(boolean paused);
+}
@@ -64,6 +64,39 @@ public class Script {
     /** Max number of sigops allowed in a standard p2sh redeem script */
     public static final int MAX_P2SH_SIGOPS = 15;
 
+    @Nullable private static volatile SignatureCache signatureCache = new SignatureCache();
+
+    /**
+     * Sets the cache consulted by OP_CHECKSIG and OP_CHECKMULTISIG before doing ECDSA verification. Pass null to
+     * always verify signatures from scratch.
+     */
+    public static void setSignatureCache(@Nullable SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    /** Returns the cache of already verified signatures, or null if caching is switched off. */
+    @Nullable
+    public static SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    private static volatile boolean standardScriptFastPath = true;
+
+    /**
+     * Sets whether {@link #correctlySpends(Transaction, long, Script, Set)} checks spends of pay to address, pay to
+     * pubkey and pay to script hash multisig outputs directly by their templates, rather than running them through
+     * the interpreter. The results are the same either way. On by default, switching it off is only useful for
+     * comparing the two.
+     */
+    public static void setStandardScriptFastPath(boolean enabled) {
+        standardScriptFastPath = enabled;
+    }
+
+    /** Returns whether standard scripts are checked by template, see {@link #setStandardScriptFastPath(boolean)}. */
+    public static boolean isStandardScriptFastPath() {
+        return standardScriptFastPath;
+    }
+
     // The program is a set of chunks where each element is either [opcode] or [data, data, data ...]
     protected List<ScriptChunk> chunks;
     // Unfortunately, scripts are not ever re-serialized or canonicalized when used in signature hashing. Thus we
@@ -1252,30 +1285,32 @@ public class Script {
             throw new ScriptException("OP_IF/OP_NOTIF without OP_ENDIF");
     }
 
-    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
-                                        int lastCodeSepLocation, int opcode) throws ScriptException {
-        if (stack.size() < 2)
-            throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
-        byte[] pubKey = stack.pollLast();
-        byte[] sigBytes = stack.pollLast();
-
-        byte[] prog = script.getProgram();
-        byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+    private static boolean verifySignature(Sha256Hash hash, byte[] sigBytes, TransactionSignature sig, byte[] pubKey) {
+        SignatureCache cache = signatureCache;
+        if (cache == null)
+            return ECKey.verify(hash.getBytes(), sig, pubKey);
+        return cache.verify(hash, sigBytes, sig, pubKey);
+    }
 
+    /** Removes pushes of the given signature from the script, as OP_CHECKSIG does before hashing it. */
+    static byte[] removeSignature(byte[] connectedScript, byte[] sigBytes) {
         UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sigBytes.length + 1);
         try {
             writeBytes(outStream, sigBytes);
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen
         }
-        connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
+        return removeAllInstancesOf(connectedScript, outStream.toByteArray());
+    }
 
+    /** Checks a signature as OP_CHECKSIG does, the connected script having had the signature removed already. */
+    static boolean checkSignature(Transaction txContainingThis, int index, byte[] connectedScript, byte[] sigBytes,
+                                  byte[] pubKey) {
         // TODO: Use int for indexes everywhere, we can't have that many inputs/outputs
-        boolean sigValid = false;
         try {
             TransactionSignature sig  = TransactionSignature.decodeFromBitcoin(sigBytes, false);
             Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-            sigValid = ECKey.verify(hash.getBytes(), sig, pubKey);
+            return verifySignature(hash, sigBytes, sig, pubKey);
         } catch (Exception e1) {
             // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
             // Because I can't verify there aren't more, we use a very generic Exception catch
@@ -1284,7 +1319,40 @@ public class Script {
             // signing work to be done inside LocalTransactionSigner.signInputs.
             if (!e1.getMessage().contains("Reached past end of ASN.1 stream"))
                 log.warn("Signature checking failed! {}", e1.toString());
+            return false;
         }
+    }
+
+    /**
+     * Checks one signature against one key as OP_CHECKMULTISIG does, the connected script having had all the
+     * signatures removed already.
+     */
+    static boolean checkMultiSigSignature(Transaction txContainingThis, int index, byte[] connectedScript,
+                                          byte[] sigBytes, byte[] pubKey) {
+        // We could reasonably move the hashing out of the caller's loop, but because signature verification is
+        // significantly more expensive than hashing, its not a big deal.
+        try {
+            TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigBytes, false);
+            Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
+            return verifySignature(hash, sigBytes, sig, pubKey);
+        } catch (Exception e) {
+            // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
+            // Because I can't verify there aren't more, we use a very generic Exception catch
+            return false;
+        }
+    }
+
+    private static void executeCheckSig(Transaction txContainingThis, int index, Script script, LinkedList<byte[]> stack,
+                                        int lastCodeSepLocation, int opcode) throws ScriptException {
+        if (stack.size() < 2)
+            throw new ScriptException("Attempted OP_CHECKSIG(VERIFY) on a stack with size < 2");
+        byte[] pubKey = stack.pollLast();
+        byte[] sigBytes = stack.pollLast();
+
+        byte[] prog = script.getProgram();
+        byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
+        connectedScript = removeSignature(connectedScript, sigBytes);
+        boolean sigValid = checkSignature(txContainingThis, index, connectedScript, sigBytes, pubKey);
 
         if (opcode == OP_CHECKSIG)
             stack.add(sigValid ? new byte[] {1} : new byte[] {0});
@@ -1327,30 +1395,14 @@ public class Script {
         byte[] prog = script.getProgram();
         byte[] connectedScript = Arrays.copyOfRange(prog, lastCodeSepLocation, prog.length);
 
-        for (byte[] sig : sigs) {
-            UnsafeByteArrayOutputStream outStream = new UnsafeByteArrayOutputStream(sig.length + 1);
-            try {
-                writeBytes(outStream, sig);
-            } catch (IOException e) {
-                throw new RuntimeException(e); // Cannot happen
-            }
-            connectedScript = removeAllInstancesOf(connectedScript, outStream.toByteArray());
-        }
+        for (byte[] sig : sigs)
+            connectedScript = removeSignature(connectedScript, sig);
 
         boolean valid = true;
         while (sigs.size() > 0) {
             byte[] pubKey = pubkeys.pollFirst();
-            // We could reasonably move this out of the loop, but because signature verification is significantly
-            // more expensive than hashing, its not a big deal.
-            try {
-                TransactionSignature sig = TransactionSignature.decodeFromBitcoin(sigs.getFirst(), false);
-                Sha256Hash hash = txContainingThis.hashForSignature(index, connectedScript, (byte) sig.sighashFlags);
-                if (ECKey.verify(hash.getBytes(), sig, pubKey))
-                    sigs.pollFirst();
-            } catch (Exception e) {
-                // There is (at least) one exception that could be hit here (EOFException, if the sig is too short)
-                // Because I can't verify there aren't more, we use a very generic Exception catch
-            }
+            if (checkMultiSigSignature(txContainingThis, index, connectedScript, sigs.getFirst(), pubKey))
+                sigs.pollFirst();
 
             if (sigs.size() > pubkeys.size()) {
                 valid = false;
@@ -1396,16 +1448,14 @@ public class Script {
      */
     public void correctlySpends(Transaction txContainingThis, long scriptSigIndex, Script scriptPubKey,
                                 Set<VerifyFlag> verifyFlags) throws ScriptException {
-        // Clone the transaction because executing the script involves editing it, and if we die, we'll leave
-        // the tx half broken (also it's not so thread safe to work on it directly.
-        try {
-            txContainingThis = new Transaction(txContainingThis.getParams(), txContainingThis.bitcoinSerialize());
-        } catch (ProtocolException e) {
-            throw new RuntimeException(e);   // Should not happen unless we were given a totally broken transaction.
-        }
         if (getProgram().length > 10000 || scriptPubKey.getProgram().length > 10000)
             throw new ScriptException("Script larger than 10,000 bytes");
-        
+
+        // Nearly every script is one of a few standard forms, which can be checked without the interpreter.
+        if (standardScriptFastPath && StandardScripts.correctlySpends(txContainingThis, (int) scriptSigIndex, this,
+                scriptPubKey, verifyFlags))
+            return;
+
         LinkedList<byte[]> stack = new LinkedList<byte[]>();
         LinkedList<byte[]> p2shStack = null;
         
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Remembers which (signature hash, public key, signature) triples have already been found to be valid, so that a
+ * transaction checked when it was relayed to us does not need its ECDSA signatures verified again once it shows up in
+ * a block. Only successful verifications are cached, an attacker can therefore not make us reject a valid signature by
+ * feeding us an invalid one first.</p>
+ *
+ * <p>The cache is bounded to a maximum number of entries and is safe to use from multiple threads. {@link Script} uses
+ * the instance set with {@link Script#setSignatureCache(SignatureCache)}.</p>
+ */
+public class SignatureCache {
+    /** Default maximum number of cached signatures, which takes a few megabytes of heap. */
+    public static final int DEFAULT_MAX_SIZE = 50000;
+
+    // Saves creating a digest for every lookup.
+    private static final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return Utils.newSha256Digest();
+        }
+    };
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache holding at most {@link #DEFAULT_MAX_SIZE} signatures. */
+    public SignatureCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /** Creates a cache holding at most the given number of signatures. */
+    public SignatureCache(int maxSize) {
+        checkArgument(maxSize > 0);
+        validSignatures = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    }
+
+    /**
+     * Verifies the signature, consulting the cache first. {@code sigBytes} is the signature as found in the script and
+     * is only used to identify the entry, {@code signature} is its decoded form.
+     */
+    public boolean verify(Sha256Hash sigHash, byte[] sigBytes, ECKey.ECDSASignature signature, byte[] pubKey) {
+        // Fake signatures would poison the cache with entries which are not actually valid.
+        if (ECKey.FAKE_SIGNATURES)
+            return ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        Sha256Hash key = entryKey(sigHash, sigBytes, pubKey);
+        if (validSignatures.getIfPresent(key) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean valid = ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        if (valid)
+            validSignatures.put(key, Boolean.TRUE);
+        return valid;
+    }
+
+    private static Sha256Hash entryKey(Sha256Hash sigHash, byte[] sigBytes, byte[] pubKey) {
+        // The lengths are included so that moving bytes between the signature and the key cannot produce a match.
+        MessageDigest digest = SignatureCache.digest.get();
+        digest.reset();
+        byte[] lengths = new byte[8];
+        Utils.uint32ToByteArrayLE(sigBytes.length, lengths, 0);
+        Utils.uint32ToByteArrayLE(pubKey.length, lengths, 4);
+        digest.update(sigHash.getBytes());
+        digest.update(lengths);
+        digest.update(sigBytes);
+        digest.update(pubKey);
+        return new Sha256Hash(digest.digest());
+    }
+
+    /** Returns the number of signatures currently cached. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Returns how many verifications were answered from the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many verifications had to do the ECDSA work. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Forgets all cached signatures. The hit and miss counters are left alone. */
+    public void clear() {
+        validSignatures.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return "Signature cache: " + size() + " entries, " + getHits() + " hits, " + getMisses() + " misses";
+    }
+}
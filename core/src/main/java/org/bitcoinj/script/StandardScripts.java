@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.script;
+
+import org.bitcoinj.core.ScriptException;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.Utils;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import static org.bitcoinj.script.ScriptOpCodes.OP_CHECKMULTISIG;
+
+/**
+ * <p>Checks spends of the standard output types directly from their templates, without running them through
+ * {@link Script#executeScript(Transaction, long, Script, LinkedList, boolean)}. Nearly every script seen on the
+ * network is pay to address, pay to pubkey or pay to script hash with an m-of-n CHECKMULTISIG redeem script, and for
+ * those the interpreter's stack, chunk walking and opcode dispatch all reduce to a hash comparison and some signature
+ * checks.</p>
+ *
+ * <p>The verdict must always be the one the interpreter would reach. Spends which don't match a template exactly, or
+ * which fail in some way the interpreter would report differently, are left to the interpreter.</p>
+ */
+class StandardScripts {
+    private StandardScripts() {}
+
+    /**
+     * Returns true if the scriptSig correctly spends the scriptPubKey, or false if the pair doesn't match a template
+     * and must be run by the interpreter.
+     *
+     * @throws ScriptException if the pair matches a template but the spend is invalid
+     */
+    static boolean correctlySpends(Transaction txContainingThis, int index, Script scriptSig, Script scriptPubKey,
+                                   Set<Script.VerifyFlag> verifyFlags) throws ScriptException {
+        List<ScriptChunk> sigChunks = scriptSig.getChunks();
+        for (ScriptChunk chunk : sigChunks)
+            if (chunk.isOpCode() || chunk.data == null || chunk.data.length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+                return false;
+        if (scriptPubKey.isSentToAddress())
+            return spendsAddress(txContainingThis, index, sigChunks, scriptPubKey);
+        if (scriptPubKey.isSentToRawPubKey())
+            return spendsRawPubKey(txContainingThis, index, sigChunks, scriptPubKey);
+        if (scriptPubKey.isPayToScriptHash() && verifyFlags.contains(Script.VerifyFlag.P2SH))
+            return spendsMultiSigScriptHash(txContainingThis, index, sigChunks, scriptPubKey);
+        return false;
+    }
+
+    // <sig> <pubkey> against DUP HASH160 <pubkey hash> EQUALVERIFY CHECKSIG
+    private static boolean spendsAddress(Transaction txContainingThis, int index, List<ScriptChunk> sigChunks,
+                                         Script scriptPubKey) throws ScriptException {
+        if (sigChunks.size() != 2)
+            return false;
+        byte[] sigBytes = sigChunks.get(0).data;
+        byte[] pubKey = sigChunks.get(1).data;
+        if (!Arrays.equals(Utils.sha256hash160(pubKey), scriptPubKey.getPubKeyHash()))
+            throw new ScriptException("OP_EQUALVERIFY: non-equal data");
+        checkSig(txContainingThis, index, scriptPubKey, sigBytes, pubKey);
+        return true;
+    }
+
+    // <sig> against <pubkey> CHECKSIG
+    private static boolean spendsRawPubKey(Transaction txContainingThis, int index, List<ScriptChunk> sigChunks,
+                                           Script scriptPubKey) throws ScriptException {
+        if (sigChunks.size() != 1)
+            return false;
+        byte[] pubKey = scriptPubKey.getChunks().get(0).data;
+        if (pubKey.length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+            return false;
+        checkSig(txContainingThis, index, scriptPubKey, sigChunks.get(0).data, pubKey);
+        return true;
+    }
+
+    private static void checkSig(Transaction txContainingThis, int index, Script scriptPubKey, byte[] sigBytes,
+                                 byte[] pubKey) throws ScriptException {
+        byte[] connectedScript = Script.removeSignature(scriptPubKey.getProgram(), sigBytes);
+        if (!Script.checkSignature(txContainingThis, index, connectedScript, sigBytes, pubKey))
+            // The interpreter's stack is empty once the false result has been popped off it.
+            throw new ScriptException("Script resulted in a non-true stack: []");
+    }
+
+    // OP_0 <sig>... <m <pubkey>... n CHECKMULTISIG> against HASH160 <script hash> EQUAL
+    private static boolean spendsMultiSigScriptHash(Transaction txContainingThis, int index,
+                                                    List<ScriptChunk> sigChunks, Script scriptPubKey)
+            throws ScriptException {
+        int numChunks = sigChunks.size();
+        if (numChunks < 3 || sigChunks.get(0).data.length != 0)
+            return false;
+        byte[] redeemBytes = sigChunks.get(numChunks - 1).data;
+        if (!Arrays.equals(Utils.sha256hash160(redeemBytes), scriptPubKey.getPubKeyHash()))
+            return false;
+        Script redeemScript;
+        try {
+            redeemScript = new Script(redeemBytes);
+        } catch (ScriptException e) {
+            return false;
+        }
+        if (!redeemScript.isSentToMultiSig())
+            return false;
+        List<ScriptChunk> redeemChunks = redeemScript.getChunks();
+        if (!redeemChunks.get(redeemChunks.size() - 1).equalsOpCode(OP_CHECKMULTISIG))
+            return false;
+        int sigsRequired = Script.decodeFromOpN(redeemChunks.get(0).opcode);
+        int numKeys = redeemChunks.size() - 3;
+        if (sigsRequired > numKeys || numChunks - 2 != sigsRequired)
+            return false;
+
+        // Signatures and keys in the order OP_CHECKMULTISIG pops them off the stack, which is last first.
+        LinkedList<byte[]> sigs = new LinkedList<byte[]>();
+        for (int i = numChunks - 2; i >= 1; i--)
+            sigs.add(sigChunks.get(i).data);
+        LinkedList<byte[]> pubKeys = new LinkedList<byte[]>();
+        for (int i = numKeys; i >= 1; i--) {
+            byte[] pubKey = redeemChunks.get(i).data;
+            if (pubKey.length > Script.MAX_SCRIPT_ELEMENT_SIZE)
+                return false;
+            pubKeys.add(pubKey);
+        }
+
+        byte[] connectedScript = redeemBytes;
+        for (byte[] sig : sigs)
+            connectedScript = Script.removeSignature(connectedScript, sig);
+        boolean valid = true;
+        while (sigs.size() > 0) {
+            byte[] pubKey = pubKeys.pollFirst();
+            if (Script.checkMultiSigSignature(txContainingThis, index, connectedScript, sigs.getFirst(), pubKey))
+                sigs.pollFirst();
+            if (sigs.size() > pubKeys.size()) {
+                valid = false;
+                break;
+            }
+        }
+        if (!valid)
+            throw new ScriptException("P2SH script execution resulted in a non-true stack");
+        return true;
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredTransactionOutput;
+
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A map of unspent outputs which keeps its contents in direct memory instead of as objects on the heap. Outpoints are
+ * looked up in an {@link OutPointIndex} which points into a slab holding, for each output, its value, height, coinbase
+ * flag and script back to back. The transaction hash and index are part of the key, so they aren't stored twice. An
+ * output costs about 100 bytes plus its script, compared to several hundred for a {@link java.util.HashMap} entry with
+ * its key, value and script objects, and the garbage collector never has to look at any of it.</p>
+ *
+ * <p>Removed outputs leave a hole in the slab, which is reclaimed by compacting the slab once half of it is holes.
+ * Because direct buffers are addressed with ints, the map holds at most about 16 million outputs.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+class CompactOutputMap {
+    private static final int INITIAL_INDEX_CAPACITY = 1 << 12;
+    private static final int INITIAL_SLAB_SIZE = 1 << 16;
+    // Record length, value, height and coinbase flag, followed by the script.
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4 + 1;
+
+    private OutPointIndex index;
+    private ByteBuffer slab;
+    private int slabUsed;
+    private int slabGarbage;
+
+    CompactOutputMap() {
+        index = new OutPointIndex(ByteBuffer.allocateDirect((int) OutPointIndex.bytesFor(INITIAL_INDEX_CAPACITY)), 0, 0);
+        slab = ByteBuffer.allocateDirect(INITIAL_SLAB_SIZE);
+    }
+
+    /** Returns the output at the given outpoint, or null. */
+    @Nullable
+    StoredTransactionOutput get(Sha256Hash hash, long outputIndex) {
+        long value = index.get(hash.getBytes(), outputIndex);
+        return value == 0 ? null : read(hash, outputIndex, (int) (value - 1));
+    }
+
+    /** Adds the output, replacing any output at the same outpoint. */
+    void put(StoredTransactionOutput out) {
+        byte[] script = out.getScriptBytes();
+        int length = RECORD_HEADER_SIZE + script.length;
+        ensureSlabSpace(length);
+        int pos = slabUsed;
+        slab.putInt(pos, length);
+        slab.putLong(pos + 4, out.getValue().value);
+        slab.putInt(pos + 12, out.getHeight());
+        slab.put(pos + 16, (byte) (out.isCoinbase() ? 1 : 0));
+        for (int i = 0; i < script.length; i++)
+            slab.put(pos + RECORD_HEADER_SIZE + i, script[i]);
+        slabUsed += length;
+        if (index.needsRehash())
+            growIndex();
+        long old = index.put(out.getHash().getBytes(), out.getIndex(), pos + 1);
+        if (old != 0)
+            slabGarbage += slab.getInt((int) (old - 1));
+    }
+
+    /** Removes the output at the given outpoint and returns true, or returns false if there was none. */
+    boolean remove(Sha256Hash hash, long outputIndex) {
+        long old = index.remove(hash.getBytes(), outputIndex);
+        if (old == 0)
+            return false;
+        slabGarbage += slab.getInt((int) (old - 1));
+        if (index.needsRehash())
+            growIndex();
+        return true;
+    }
+
+    /** Returns the number of outputs in the map. */
+    int size() {
+        return index.size();
+    }
+
+    private StoredTransactionOutput read(Sha256Hash hash, long outputIndex, int pos) {
+        int length = slab.getInt(pos);
+        byte[] script = new byte[length - RECORD_HEADER_SIZE];
+        for (int i = 0; i < script.length; i++)
+            script[i] = slab.get(pos + RECORD_HEADER_SIZE + i);
+        return new StoredTransactionOutput(hash, outputIndex, Coin.valueOf(slab.getLong(pos + 4)), slab.getInt(pos + 12),
+                slab.get(pos + 16) != 0, script);
+    }
+
+    // Rebuilds the index at a size suiting its contents, dropping tombstones.
+    private void growIndex() {
+        int capacity = index.recommendedCapacity();
+        checkArgument(OutPointIndex.bytesFor(capacity) <= Integer.MAX_VALUE, "Too many unspent outputs");
+        OutPointIndex newIndex = new OutPointIndex(ByteBuffer.allocateDirect((int) OutPointIndex.bytesFor(capacity)), 0, 0);
+        index.copyTo(newIndex);
+        index = newIndex;
+    }
+
+    private void ensureSlabSpace(int length) {
+        if (slabUsed + length <= slab.capacity())
+            return;
+        int live = slabUsed - slabGarbage;
+        long wanted = slab.capacity();
+        // Only compact into a slab of the same size when that frees up a good amount of room, otherwise double it.
+        while (live + length > wanted / 2)
+            wanted *= 2;
+        checkArgument(wanted <= Integer.MAX_VALUE, "Too many unspent outputs");
+        compactInto(ByteBuffer.allocateDirect((int) wanted));
+    }
+
+    // Copies the live records into the new slab, in index order, and points the index at their new positions.
+    private void compactInto(final ByteBuffer newSlab) {
+        final ByteBuffer oldSlab = slab;
+        final int[] used = new int[1];
+        index.replaceValues(new OutPointIndex.ValueMapper() {
+            @Override
+            public long map(byte[] hash, long outputIndex, long value) {
+                int from = (int) (value - 1);
+                int length = oldSlab.getInt(from);
+                int to = used[0];
+                for (int i = 0; i < length; i++)
+                    newSlab.put(to + i, oldSlab.get(from + i));
+                used[0] += length;
+                return to + 1;
+            }
+        });
+        slab = newSlab;
+        slabUsed = used[0];
+        slabGarbage = 0;
+    }
+}
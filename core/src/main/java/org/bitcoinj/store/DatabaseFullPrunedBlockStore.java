@@ -148,6 +148,85 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String password;
     protected String schemaName;
 
+    // Prepared statements of each thread's connection, so the hot queries are only parsed once per connection.
+    private final ThreadLocal<StatementCache> statementCache = new ThreadLocal<StatementCache>();
+    // Unspent output changes made by this thread since beginDatabaseBatchWrite() that are not in the database yet.
+    private final ThreadLocal<BatchWrite> batchWrite = new ThreadLocal<BatchWrite>();
+
+    private static class StatementCache {
+        final Connection connection;
+        final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+        StatementCache(Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    /** Unspent outputs added, removed and read during a batch write, by transaction hash and output index. */
+    private static class BatchWrite {
+        final Map<Sha256Hash, Map<Long, StoredTransactionOutput>> added = new HashMap<Sha256Hash, Map<Long, StoredTransactionOutput>>();
+        final Map<Sha256Hash, Set<Long>> removed = new HashMap<Sha256Hash, Set<Long>>();
+        final Map<Sha256Hash, Map<Long, StoredTransactionOutput>> read = new HashMap<Sha256Hash, Map<Long, StoredTransactionOutput>>();
+        // Outputs which were created and spent within the batch.
+        int absorbed;
+
+        @Nullable
+        StoredTransactionOutput get(Map<Sha256Hash, Map<Long, StoredTransactionOutput>> map, Sha256Hash hash, long index) {
+            Map<Long, StoredTransactionOutput> byIndex = map.get(hash);
+            return byIndex == null ? null : byIndex.get(index);
+        }
+
+        void put(Map<Sha256Hash, Map<Long, StoredTransactionOutput>> map, StoredTransactionOutput out) {
+            Map<Long, StoredTransactionOutput> byIndex = map.get(out.getHash());
+            if (byIndex == null) {
+                byIndex = new HashMap<Long, StoredTransactionOutput>(4);
+                map.put(out.getHash(), byIndex);
+            }
+            byIndex.put(out.getIndex(), out);
+        }
+
+        @Nullable
+        StoredTransactionOutput remove(Map<Sha256Hash, Map<Long, StoredTransactionOutput>> map, Sha256Hash hash, long index) {
+            Map<Long, StoredTransactionOutput> byIndex = map.get(hash);
+            if (byIndex == null)
+                return null;
+            StoredTransactionOutput out = byIndex.remove(index);
+            if (byIndex.isEmpty())
+                map.remove(hash);
+            if (out != null && map == added)
+                absorbed++;
+            return out;
+        }
+
+        boolean isRemoved(Sha256Hash hash, long index) {
+            Set<Long> indexes = removed.get(hash);
+            return indexes != null && indexes.contains(index);
+        }
+
+        void markRemoved(Sha256Hash hash, long index) {
+            Set<Long> indexes = removed.get(hash);
+            if (indexes == null) {
+                indexes = new HashSet<Long>(4);
+                removed.put(hash, indexes);
+            }
+            indexes.add(index);
+        }
+
+        int numAdded() {
+            int n = 0;
+            for (Map<Long, StoredTransactionOutput> byIndex : added.values())
+                n += byIndex.size();
+            return n;
+        }
+
+        int numRemoved() {
+            int n = 0;
+            for (Set<Long> indexes : removed.values())
+                n += indexes.size();
+            return n;
+        }
+    }
+
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
      * and optionally allowing a schema to be specified.</p>
@@ -457,6 +536,36 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    /**
+     * <p>Returns a prepared statement for the given SQL on the current thread's connection, preparing it the first
+     * time it is asked for. Statements are reused, so callers must not close them, but should close their result
+     * sets.</p>
+     */
+    protected PreparedStatement getPreparedStatement(String sql) throws SQLException {
+        Connection connection = conn.get();
+        StatementCache cache = statementCache.get();
+        if (cache == null || cache.connection != connection) {
+            cache = new StatementCache(connection);
+            statementCache.set(cache);
+        }
+        PreparedStatement s = cache.statements.get(sql);
+        if (s == null || s.isClosed()) {
+            s = connection.prepareStatement(sql);
+            cache.statements.put(sql, s);
+        }
+        return s;
+    }
+
+    private static void closeResultSet(@Nullable ResultSet results) throws BlockStoreException {
+        if (results == null)
+            return;
+        try {
+            results.close();
+        } catch (SQLException e) {
+            throw new BlockStoreException("Failed to close ResultSet");
+        }
+    }
+
     @Override
     public synchronized void close() {
         for (Connection conn : allConnections) {
@@ -740,15 +849,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectHeadersSQL());
+            PreparedStatement s = getPreparedStatement(getSelectHeadersSQL());
             // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -773,13 +881,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
     }
 
@@ -923,14 +1025,24 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        BatchWrite batch = batchWrite.get();
+        if (batch != null) {
+            StoredTransactionOutput out = batch.get(batch.added, hash, index);
+            if (out != null)
+                return out;
+            if (batch.isRemoved(hash, index))
+                return null;
+            out = batch.get(batch.read, hash, index);
+            if (out != null)
+                return out;
+        }
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectOpenoutputsSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsSQL());
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -940,25 +1052,44 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             byte[] scriptBytes = results.getBytes(3);
             boolean coinbase = results.getBoolean(4);
             StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, coinbase, scriptBytes);
+            if (batch != null)
+                batch.put(batch.read, txout);
             return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
     }
 
     @Override
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        BatchWrite batch = batchWrite.get();
+        if (batch != null) {
+            // Written out in one go by commitDatabaseBatchWrite(), unless it is spent before then.
+            batch.put(batch.added, out);
+            return;
+        }
+        try {
+            insertOpenOutput(getPreparedStatement(getInsertOpenoutputsSQL()), out);
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
 
+    // Inserts a single output, ignoring it if it is already there.
+    private void insertOpenOutput(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        try {
+            bindOpenOutput(s, out);
+            s.executeUpdate();
+        } catch (SQLException e) {
+            if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
+                throw e;
+        }
+    }
+
+    private void bindOpenOutput(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
         // Calculate the toAddress (if any)
         String dbAddress = "";
         int type = 0;
@@ -991,52 +1122,50 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             }
         }
 
-        try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int) out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setLong(4, out.getValue().value);
-            s.setBytes(5, out.getScriptBytes());
-            s.setString(6, dbAddress);
-            s.setInt(7, type);
-            s.setBoolean(8, out.isCoinbase());
-            s.executeUpdate();
-            s.close();
-        } catch (SQLException e) {
-            if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
-                throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            }
-        }
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScriptBytes());
+        s.setString(6, dbAddress);
+        s.setInt(7, type);
+        s.setBoolean(8, out.isCoinbase());
     }
 
     @Override
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         maybeConnect();
+        BatchWrite batch = batchWrite.get();
+        // Created and spent within the same batch, so the database never needs to hear about it.
+        if (batch != null && batch.remove(batch.added, out.getHash(), out.getIndex()) != null)
+            return;
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
             throw new BlockStoreException("Tried to remove a StoredTransactionOutput from DatabaseFullPrunedBlockStore that it didn't have!");
+        if (batch != null) {
+            batch.remove(batch.read, out.getHash(), out.getIndex());
+            batch.markRemoved(out.getHash(), out.getIndex());
+            return;
+        }
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
+            PreparedStatement s = getPreparedStatement(getDeleteOpenoutputsSQL());
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Until the batch is committed, added and removed unspent outputs are only recorded in memory. Outputs which
+     * are created and spent within the batch never reach the database, the rest are written with JDBC batches of
+     * deletes and inserts on commit.</p>
+     */
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
@@ -1047,6 +1176,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        batchWrite.set(new BatchWrite());
     }
 
     @Override
@@ -1055,16 +1185,22 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
         try {
+            BatchWrite batch = batchWrite.get();
+            if (batch != null)
+                flushBatchWrite(batch);
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            batchWrite.remove();
         }
     }
 
     @Override
     public void abortDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
+        batchWrite.remove();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
         try {
@@ -1079,29 +1215,70 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    // Sends the unspent output changes of a batch to the database. Deletes go first, so an output which was removed
+    // and then added back ends up present.
+    private void flushBatchWrite(BatchWrite batch) throws SQLException {
+        if (!batch.removed.isEmpty()) {
+            PreparedStatement s = getPreparedStatement(getDeleteOpenoutputsSQL());
+            for (Map.Entry<Sha256Hash, Set<Long>> entry : batch.removed.entrySet()) {
+                for (long index : entry.getValue()) {
+                    s.setBytes(1, entry.getKey().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int) index);
+                    s.addBatch();
+                }
+            }
+            s.executeBatch();
+        }
+        if (!batch.added.isEmpty()) {
+            PreparedStatement s = getPreparedStatement(getInsertOpenoutputsSQL());
+            List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+            for (Map<Long, StoredTransactionOutput> byIndex : batch.added.values())
+                outputs.addAll(byIndex.values());
+            for (StoredTransactionOutput out : outputs) {
+                bindOpenOutput(s, out);
+                s.addBatch();
+            }
+            try {
+                s.executeBatch();
+            } catch (BatchUpdateException e) {
+                if (!getDuplicateKeyErrorCode().equals(e.getSQLState()))
+                    throw e;
+                // Some output was already stored. Insert them one at a time instead, skipping duplicates like the
+                // unbatched path does.
+                s.clearBatch();
+                for (StoredTransactionOutput out : outputs)
+                    insertOpenOutput(s, out);
+            }
+        }
+        if (log.isDebugEnabled())
+            log.debug("Flushed batch write: {} outputs added, {} removed, {} created and spent within the batch",
+                    batch.numAdded(), batch.numRemoved(), batch.absorbed);
+    }
+
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        BatchWrite batch = batchWrite.get();
+        if (batch != null && batch.added.containsKey(hash))
+            return true;
+        ResultSet results = null;
         try {
-            s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsCountSQL());
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
             int count = results.getInt(1);
-            return count != 0;
+            // Outputs removed in the current batch are still in the table.
+            if (batch != null && batch.removed.containsKey(hash))
+                count -= batch.removed.get(hash).size();
+            return count > 0;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
     }
 
@@ -0,0 +1,814 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A persistent {@link FullPrunedBlockStore} which needs no database server and keeps the unspent output set off the
+ * Java heap. It lives in a directory holding:</p>
+ *
+ * <ul>
+ *     <li>{@code outputs.index}: a memory mapped {@link OutPointIndex} hash table from outpoint to record, preceded by
+ *     a small header with the committed file lengths and chain heads.</li>
+ *     <li>{@code outputs.dat}: append only log of serialized {@link StoredTransactionOutput}s.</li>
+ *     <li>{@code headers.dat}: append only log of {@link StoredBlock}s in compact form.</li>
+ *     <li>{@code undo.dat}: append only log of {@link StoredUndoableBlock}s.</li>
+ *     <li>{@code commit.journal}: the commit in progress, if any.</li>
+ * </ul>
+ *
+ * <p>Writes between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are buffered in memory
+ * and are only visible to the writing thread. A commit appends the new records to the logs, writes and syncs a
+ * checksummed journal of the index changes, then applies them to the mapped index and clears the journal. After a
+ * crash the store reopens in the state of the last commit: a complete journal is replayed, a torn one is ignored, and
+ * log data past the committed lengths is truncated. Writes made outside a batch are committed straight away.</p>
+ *
+ * <p>Block headers and the positions of undo blocks are indexed on the heap, which is small compared to the unspent
+ * output set. Spent outputs and pruned undo blocks are not reclaimed from the logs, so disk usage only grows. The
+ * index is rebuilt without the entries of spent outputs whenever they and the unspent ones fill half of it, and only
+ * grows if the unspent ones alone need it to. It is mapped as a single buffer of at most 2^25 entries, so the store can
+ * hold up to 2^24, about 16.7 million, unspent outputs at a time.</p>
+ */
+public class MappedFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(MappedFullPrunedBlockStore.class);
+
+    private static final int INDEX_MAGIC = 0x55545831;    // "UTX1"
+    private static final int JOURNAL_MAGIC = 0x4A524E31;  // "JRN1"
+    private static final int INITIAL_INDEX_CAPACITY = 1 << 16;
+    private static final int HEADER_RECORD_SIZE = 32 + StoredBlock.COMPACT_SERIALIZED_SIZE + 1;
+
+    // Layout of the header at the start of the index file.
+    private static final int INDEX_HEADER_SIZE = 4096;
+    // The most entries, a power of two, whose table still fits in one mapped buffer along with the header.
+    private static final int MAX_INDEX_CAPACITY =
+            Integer.highestOneBit((Integer.MAX_VALUE - INDEX_HEADER_SIZE) / OutPointIndex.ENTRY_SIZE);
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int SIZE_OFFSET = 8;
+    private static final int TOMBSTONES_OFFSET = 12;
+    private static final int OUTPUTS_LENGTH_OFFSET = 16;
+    private static final int UNDO_LENGTH_OFFSET = 24;
+    private static final int HEADERS_LENGTH_OFFSET = 32;
+    private static final int CHAIN_HEAD_OFFSET = 40;
+    private static final int VERIFIED_CHAIN_HEAD_OFFSET = 72;
+
+    private final NetworkParameters params;
+    private final File directory;
+    private final int fullStoreDepth;
+
+    private RandomAccessFile indexFile;
+    private MappedByteBuffer indexBuffer;
+    private OutPointIndex index;
+    private final RandomAccessFile outputsFile;
+    private final RandomAccessFile headersFile;
+    private final RandomAccessFile undoFile;
+    private final RandomAccessFile journalFile;
+    private boolean closed;
+
+    // Committed state, guarded by this.
+    private long outputsLength;
+    private long headersLength;
+    private long undoLength;
+    private final Map<Sha256Hash, Long> headerPositions = new HashMap<Sha256Hash, Long>();
+    private final Map<Sha256Hash, UndoPosition> undoPositions = new HashMap<Sha256Hash, UndoPosition>();
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+
+    // Uncommitted writes of the calling thread.
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    private static class UndoPosition {
+        final long position;
+        final int height;
+
+        UndoPosition(long position, int height) {
+            this.position = position;
+            this.height = height;
+        }
+    }
+
+    private static class HeaderWrite {
+        final StoredBlock block;
+        final boolean wasUndoable;
+
+        HeaderWrite(StoredBlock block, boolean wasUndoable) {
+            this.block = block;
+            this.wasUndoable = wasUndoable;
+        }
+    }
+
+    private static class UndoWrite {
+        final StoredUndoableBlock block;
+        final int height;
+
+        UndoWrite(StoredUndoableBlock block, int height) {
+            this.block = block;
+            this.height = height;
+        }
+    }
+
+    private static class Batch {
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> addedOutputs =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        final Set<StoredTransactionOutPoint> removedOutputs = new HashSet<StoredTransactionOutPoint>();
+        final Map<Sha256Hash, HeaderWrite> headers = new LinkedHashMap<Sha256Hash, HeaderWrite>();
+        final Map<Sha256Hash, UndoWrite> undoBlocks = new LinkedHashMap<Sha256Hash, UndoWrite>();
+        @Nullable StoredBlock chainHead;
+        @Nullable StoredBlock verifiedChainHead;
+    }
+
+    /** The index changes of one commit, as written to the journal. */
+    private static class Journal {
+        long outputsLength, headersLength, undoLength;
+        Sha256Hash chainHead, verifiedChainHead;
+        final List<StoredTransactionOutPoint> removes = new ArrayList<StoredTransactionOutPoint>();
+        final List<StoredTransactionOutPoint> puts = new ArrayList<StoredTransactionOutPoint>();
+        final List<Long> putValues = new ArrayList<Long>();
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if necessary.
+     *
+     * @param fullStoreDepth the number of blocks below the verified chain head for which undo data is kept
+     */
+    public MappedFullPrunedBlockStore(NetworkParameters params, File directory, int fullStoreDepth) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.directory = checkNotNull(directory);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new BlockStoreException("Could not create directory " + directory);
+            File indexPath = new File(directory, "outputs.index");
+            boolean exists = indexPath.exists();
+            outputsFile = new RandomAccessFile(new File(directory, "outputs.dat"), "rw");
+            headersFile = new RandomAccessFile(new File(directory, "headers.dat"), "rw");
+            undoFile = new RandomAccessFile(new File(directory, "undo.dat"), "rw");
+            journalFile = new RandomAccessFile(new File(directory, "commit.journal"), "rw");
+            if (exists) {
+                mapIndex(indexPath);
+                Journal journal = readJournal();
+                if (journal != null) {
+                    log.info("Replaying journal of interrupted commit");
+                    applyJournal(journal);
+                }
+                clearJournal();
+                open();
+            } else {
+                createIndex(indexPath, INITIAL_INDEX_CAPACITY);
+                clearJournal();
+                createNewStore();
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            beginDatabaseBatchWrite();
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    // Loads the heap indexes and chain heads from committed data.
+    private void open() throws IOException, BlockStoreException {
+        outputsLength = indexBuffer.getLong(OUTPUTS_LENGTH_OFFSET);
+        headersLength = indexBuffer.getLong(HEADERS_LENGTH_OFFSET);
+        undoLength = indexBuffer.getLong(UNDO_LENGTH_OFFSET);
+        // Anything past the committed lengths was written by a commit that never completed.
+        outputsFile.setLength(outputsLength);
+        headersFile.setLength(headersLength);
+        undoFile.setLength(undoLength);
+
+        byte[] hash = new byte[32];
+        for (long pos = 0; pos < headersLength; pos += HEADER_RECORD_SIZE) {
+            headersFile.seek(pos);
+            headersFile.readFully(hash);
+            headerPositions.put(new Sha256Hash(hash.clone()), pos);
+        }
+        long pos = 0;
+        while (pos < undoLength) {
+            undoFile.seek(pos);
+            int length = undoFile.readInt();
+            undoFile.readFully(hash);
+            int height = undoFile.readInt();
+            undoPositions.put(new Sha256Hash(hash.clone()), new UndoPosition(pos, height));
+            pos += 4 + length;
+        }
+        chainHead = readHeader(hashAt(CHAIN_HEAD_OFFSET)).block;
+        verifiedChainHead = readHeader(hashAt(VERIFIED_CHAIN_HEAD_OFFSET)).block;
+        pruneUndoPositions();
+        log.info("Opened store in {} with {} unspent outputs, chain head at height {}", directory, index.size(),
+                chainHead.getHeight());
+    }
+
+    private Sha256Hash hashAt(int offset) {
+        byte[] hash = new byte[32];
+        for (int i = 0; i < 32; i++)
+            hash[i] = indexBuffer.get(offset + i);
+        return new Sha256Hash(hash);
+    }
+
+    private void mapIndex(File path) throws IOException, BlockStoreException {
+        indexFile = new RandomAccessFile(path, "rw");
+        indexBuffer = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexFile.length());
+        if (indexBuffer.getInt(MAGIC_OFFSET) != INDEX_MAGIC)
+            throw new BlockStoreException("Not an unspent output index: " + path);
+        int capacity = indexBuffer.getInt(CAPACITY_OFFSET);
+        if (INDEX_HEADER_SIZE + OutPointIndex.bytesFor(capacity) != indexFile.length())
+            throw new BlockStoreException("Unspent output index has the wrong size: " + path);
+        index = new OutPointIndex(tableOf(indexBuffer), indexBuffer.getInt(SIZE_OFFSET),
+                indexBuffer.getInt(TOMBSTONES_OFFSET));
+    }
+
+    private static ByteBuffer tableOf(MappedByteBuffer buffer) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(INDEX_HEADER_SIZE);
+        return duplicate.slice();
+    }
+
+    private void createIndex(File path, int capacity) throws IOException, BlockStoreException {
+        long length = INDEX_HEADER_SIZE + OutPointIndex.bytesFor(capacity);
+        if (length > Integer.MAX_VALUE)
+            throw new BlockStoreException("Unspent output index would exceed the maximum size");
+        indexFile = new RandomAccessFile(path, "rw");
+        indexFile.setLength(length);
+        indexBuffer = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        indexBuffer.putInt(MAGIC_OFFSET, INDEX_MAGIC);
+        indexBuffer.putInt(CAPACITY_OFFSET, capacity);
+        index = new OutPointIndex(tableOf(indexBuffer), 0, 0);
+        writeIndexHeader();
+    }
+
+    // Copies the index into a new file of the given capacity, leaving the tombstones behind. The new file only replaces
+    // the old one once it is complete, and both hold the same committed state, so a crash part way through is harmless.
+    private void rebuildIndex(int capacity) throws IOException, BlockStoreException {
+        if (capacity == index.getCapacity())
+            log.info("Rehashing unspent output index of {} entries to drop {} removed outputs", capacity,
+                    index.getTombstones());
+        else
+            log.info("Growing unspent output index from {} to {} entries", index.getCapacity(), capacity);
+        File path = new File(directory, "outputs.index");
+        File tmp = new File(directory, "outputs.index.tmp");
+        tmp.delete();
+        OutPointIndex oldIndex = index;
+        MappedByteBuffer oldBuffer = indexBuffer;
+        RandomAccessFile oldFile = indexFile;
+        createIndex(tmp, capacity);
+        oldIndex.copyTo(index);
+        for (int offset = OUTPUTS_LENGTH_OFFSET; offset < VERIFIED_CHAIN_HEAD_OFFSET + 32; offset++)
+            indexBuffer.put(offset, oldBuffer.get(offset));
+        writeIndexHeader();
+        indexBuffer.force();
+        indexFile.close();
+        oldFile.close();
+        if (!tmp.renameTo(path) && !(path.delete() && tmp.renameTo(path)))
+            throw new BlockStoreException("Could not replace " + path);
+        mapIndex(path);
+    }
+
+    private void writeIndexHeader() {
+        indexBuffer.putInt(SIZE_OFFSET, index.size());
+        indexBuffer.putInt(TOMBSTONES_OFFSET, index.getTombstones());
+    }
+
+    private void checkOpen() {
+        checkState(!closed, "MappedFullPrunedBlockStore is closed");
+    }
+
+    @Override
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        checkOpen();
+        Sha256Hash hash = block.getHeader().getHash();
+        Batch b = batch.get();
+        // Don't lose the flag of a block we already have with undo data.
+        if ((b != null && b.headers.containsKey(hash)) || headerPositions.containsKey(hash))
+            return;
+        boolean autoCommit = b == null;
+        if (autoCommit)
+            b = new Batch();
+        b.headers.put(hash, new HeaderWrite(block, false));
+        if (autoCommit)
+            commit(b);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        checkOpen();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        Batch b = batch.get();
+        boolean autoCommit = b == null;
+        if (autoCommit)
+            b = new Batch();
+        b.headers.put(hash, new HeaderWrite(storedBlock, true));
+        b.undoBlocks.put(hash, new UndoWrite(undoableBlock, storedBlock.getHeight()));
+        if (autoCommit)
+            commit(b);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        HeaderWrite header = getHeader(hash);
+        return header == null ? null : header.block;
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        HeaderWrite header = getHeader(hash);
+        return header != null && header.wasUndoable ? header.block : null;
+    }
+
+    @Nullable
+    private HeaderWrite getHeader(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch b = batch.get();
+        if (b != null) {
+            HeaderWrite header = b.headers.get(hash);
+            if (header != null)
+                return header;
+        }
+        return headerPositions.containsKey(hash) ? readHeader(hash) : null;
+    }
+
+    private HeaderWrite readHeader(Sha256Hash hash) throws BlockStoreException {
+        Long position = headerPositions.get(hash);
+        if (position == null)
+            throw new BlockStoreException("Missing header " + hash);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_RECORD_SIZE);
+            readFully(headersFile, buffer, position);
+            buffer.position(32);
+            StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
+            return new HeaderWrite(block, buffer.get() != 0);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        Batch b = batch.get();
+        if (b != null) {
+            UndoWrite undo = b.undoBlocks.get(hash);
+            if (undo != null)
+                return undo.block;
+        }
+        UndoPosition position = undoPositions.get(hash);
+        if (position == null)
+            return null;
+        try {
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+            readFully(undoFile, lengthBuffer, position.position);
+            ByteBuffer record = ByteBuffer.allocate(lengthBuffer.getInt(0));
+            readFully(undoFile, record, position.position + 4);
+            return deserializeUndoBlock(hash, record.array(), 32 + 4);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        checkOpen();
+        Batch b = batch.get();
+        return b != null && b.chainHead != null ? b.chainHead : chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        Batch b = batch.get();
+        boolean autoCommit = b == null;
+        if (autoCommit)
+            b = new Batch();
+        b.chainHead = chainHead;
+        if (autoCommit)
+            commit(b);
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        checkOpen();
+        Batch b = batch.get();
+        return b != null && b.verifiedChainHead != null ? b.verifiedChainHead : verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        checkOpen();
+        Batch b = batch.get();
+        boolean autoCommit = b == null;
+        if (autoCommit)
+            b = new Batch();
+        b.verifiedChainHead = chainHead;
+        StoredBlock currentHead = b.chainHead != null ? b.chainHead : this.chainHead;
+        if (currentHead == null || currentHead.getHeight() < chainHead.getHeight())
+            b.chainHead = chainHead;
+        if (autoCommit)
+            commit(b);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        checkOpen();
+        Batch b = batch.get();
+        if (b != null) {
+            StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, index);
+            StoredTransactionOutput out = b.addedOutputs.get(outPoint);
+            if (out != null)
+                return out;
+            if (b.removedOutputs.contains(outPoint))
+                return null;
+        }
+        long value = this.index.get(hash.getBytes(), index);
+        if (value == 0)
+            return null;
+        try {
+            long position = value - 1;
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+            readFully(outputsFile, lengthBuffer, position);
+            ByteBuffer record = ByteBuffer.allocate(lengthBuffer.getInt(0));
+            readFully(outputsFile, record, position + 4);
+            return new StoredTransactionOutput(new ByteArrayInputStream(record.array()));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        Batch b = batch.get();
+        boolean autoCommit = b == null;
+        if (autoCommit)
+            b = new Batch();
+        b.addedOutputs.put(new StoredTransactionOutPoint(out), out);
+        if (autoCommit)
+            commit(b);
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        checkOpen();
+        StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(out);
+        Batch b = batch.get();
+        boolean autoCommit = b == null;
+        if (autoCommit)
+            b = new Batch();
+        // An output created within the batch never needs to be written.
+        boolean added = b.addedOutputs.remove(outPoint) != null;
+        boolean committed = !b.removedOutputs.contains(outPoint) &&
+                index.get(out.getHash().getBytes(), out.getIndex()) != 0;
+        if (!added && !committed)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MappedFullPrunedBlockStore that it didn't have!");
+        if (committed)
+            b.removedOutputs.add(outPoint);
+        if (autoCommit)
+            commit(b);
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        checkOpen();
+        // Only the index and the batch are needed to know whether an output exists, not the output itself.
+        Batch b = batch.get();
+        byte[] hashBytes = hash.getBytes();
+        for (int i = 0; i < numOutputs; i++) {
+            if (b != null) {
+                StoredTransactionOutPoint outPoint = new StoredTransactionOutPoint(hash, i);
+                if (b.addedOutputs.containsKey(outPoint))
+                    return true;
+                if (b.removedOutputs.contains(outPoint))
+                    continue;
+            }
+            if (index.get(hashBytes, i) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        // Nested calls are treated as one batch.
+        if (batch.get() == null)
+            batch.set(new Batch());
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        checkOpen();
+        Batch b = batch.get();
+        batch.remove();
+        if (b != null)
+            commit(b);
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            indexBuffer.force();
+            indexFile.close();
+            outputsFile.close();
+            headersFile.close();
+            undoFile.close();
+            journalFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void commit(Batch b) throws BlockStoreException {
+        try {
+            Journal journal = new Journal();
+            // 1. Append the new records past the committed end of each log. Until the journal is complete they are
+            // not part of the store.
+            ByteArrayOutputStream outputs = new ByteArrayOutputStream();
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> entry : b.addedOutputs.entrySet()) {
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                entry.getValue().serializeToStream(record);
+                journal.puts.add(entry.getKey());
+                journal.putValues.add(outputsLength + outputs.size() + 1);
+                new DataOutputStream(outputs).writeInt(record.size());
+                record.writeTo(outputs);
+            }
+            journal.removes.addAll(b.removedOutputs);
+            ByteArrayOutputStream headers = new ByteArrayOutputStream();
+            Map<Sha256Hash, Long> newHeaderPositions = new HashMap<Sha256Hash, Long>();
+            for (HeaderWrite header : b.headers.values()) {
+                newHeaderPositions.put(header.block.getHeader().getHash(), headersLength + headers.size());
+                headers.write(serializeHeader(header));
+            }
+            ByteArrayOutputStream undo = new ByteArrayOutputStream();
+            Map<Sha256Hash, UndoPosition> newUndoPositions = new HashMap<Sha256Hash, UndoPosition>();
+            for (UndoWrite write : b.undoBlocks.values()) {
+                byte[] record = serializeUndoBlock(write);
+                newUndoPositions.put(write.block.getHash(), new UndoPosition(undoLength + undo.size(), write.height));
+                new DataOutputStream(undo).writeInt(record.length);
+                undo.write(record);
+            }
+            append(outputsFile, outputsLength, outputs);
+            append(headersFile, headersLength, headers);
+            append(undoFile, undoLength, undo);
+
+            // 2. Make the commit durable.
+            StoredBlock newChainHead = b.chainHead != null ? b.chainHead : chainHead;
+            StoredBlock newVerifiedChainHead = b.verifiedChainHead != null ? b.verifiedChainHead : verifiedChainHead;
+            journal.outputsLength = outputsLength + outputs.size();
+            journal.headersLength = headersLength + headers.size();
+            journal.undoLength = undoLength + undo.size();
+            journal.chainHead = checkNotNull(newChainHead).getHeader().getHash();
+            journal.verifiedChainHead = checkNotNull(newVerifiedChainHead).getHeader().getHash();
+            writeJournal(journal);
+
+            // 3. Apply it to the index, then forget the journal.
+            applyJournal(journal);
+            clearJournal();
+
+            outputsLength = journal.outputsLength;
+            headersLength = journal.headersLength;
+            undoLength = journal.undoLength;
+            headerPositions.putAll(newHeaderPositions);
+            undoPositions.putAll(newUndoPositions);
+            chainHead = newChainHead;
+            verifiedChainHead = newVerifiedChainHead;
+            pruneUndoPositions();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    // Undo data more than fullStoreDepth blocks below the verified head is no longer needed.
+    private void pruneUndoPositions() {
+        int minHeight = verifiedChainHead.getHeight() - fullStoreDepth;
+        Iterator<UndoPosition> it = undoPositions.values().iterator();
+        while (it.hasNext())
+            if (it.next().height < minHeight)
+                it.remove();
+    }
+
+    private static void append(RandomAccessFile file, long position, ByteArrayOutputStream data) throws IOException {
+        if (data.size() == 0)
+            return;
+        FileChannel channel = file.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(data.toByteArray());
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+        channel.force(false);
+    }
+
+    private static void readFully(RandomAccessFile file, ByteBuffer buffer, long position) throws IOException {
+        FileChannel channel = file.getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        }
+        buffer.flip();
+    }
+
+    private void writeJournal(Journal journal) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeLong(journal.outputsLength);
+        out.writeLong(journal.headersLength);
+        out.writeLong(journal.undoLength);
+        out.write(journal.chainHead.getBytes());
+        out.write(journal.verifiedChainHead.getBytes());
+        out.writeInt(journal.removes.size());
+        for (StoredTransactionOutPoint outPoint : journal.removes) {
+            out.write(outPoint.getHash().getBytes());
+            out.writeInt((int) outPoint.getIndex());
+        }
+        out.writeInt(journal.puts.size());
+        for (int i = 0; i < journal.puts.size(); i++) {
+            out.write(journal.puts.get(i).getHash().getBytes());
+            out.writeInt((int) journal.puts.get(i).getIndex());
+            out.writeLong(journal.putValues.get(i));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        out.flush();
+        journalFile.setLength(0);
+        journalFile.seek(0);
+        journalFile.write(bytes.toByteArray());
+        journalFile.getChannel().force(true);
+    }
+
+    // Returns the journal of a commit which was interrupted after the journal was complete, or null.
+    @Nullable
+    private Journal readJournal() throws IOException {
+        int length = (int) journalFile.length();
+        if (length < 4 + 8)
+            return null;
+        byte[] bytes = new byte[length];
+        journalFile.seek(0);
+        journalFile.readFully(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length - 8);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt(0) != JOURNAL_MAGIC || buffer.getLong(length - 8) != crc.getValue()) {
+            log.warn("Ignoring incomplete journal");
+            return null;
+        }
+        Journal journal = new Journal();
+        buffer.position(4);
+        journal.outputsLength = buffer.getLong();
+        journal.headersLength = buffer.getLong();
+        journal.undoLength = buffer.getLong();
+        journal.chainHead = readHash(buffer);
+        journal.verifiedChainHead = readHash(buffer);
+        int removes = buffer.getInt();
+        for (int i = 0; i < removes; i++)
+            journal.removes.add(new StoredTransactionOutPoint(readHash(buffer), buffer.getInt() & 0xFFFFFFFFL));
+        int puts = buffer.getInt();
+        for (int i = 0; i < puts; i++) {
+            journal.puts.add(new StoredTransactionOutPoint(readHash(buffer), buffer.getInt() & 0xFFFFFFFFL));
+            journal.putValues.add(buffer.getLong());
+        }
+        return journal;
+    }
+
+    private static Sha256Hash readHash(ByteBuffer buffer) {
+        byte[] hash = new byte[32];
+        buffer.get(hash);
+        return new Sha256Hash(hash);
+    }
+
+    private void clearJournal() throws IOException {
+        journalFile.setLength(0);
+        journalFile.getChannel().force(true);
+    }
+
+    // Applies the journal to the index and records the new committed state in its header. Replaying a journal which
+    // was already (partially) applied gives the same result.
+    private void applyJournal(Journal journal) throws IOException, BlockStoreException {
+        // Removed outputs leave tombstones which count towards the load factor, but aren't copied to a new table. So if
+        // the live outputs still fit, rehash at the same size rather than growing the table for the sake of garbage.
+        long live = (long) index.size() + journal.puts.size();
+        if ((live + index.getTombstones()) * 2 > index.getCapacity()) {
+            int capacity = index.getCapacity();
+            if (live * 2 > capacity) {
+                capacity = index.recommendedCapacity(journal.puts.size(), MAX_INDEX_CAPACITY);
+                if (live * 2 > capacity)
+                    throw new BlockStoreException("Unspent output index would exceed the maximum size");
+            }
+            rebuildIndex(capacity);
+        }
+        for (StoredTransactionOutPoint outPoint : journal.removes)
+            index.remove(outPoint.getHash().getBytes(), outPoint.getIndex());
+        for (int i = 0; i < journal.puts.size(); i++) {
+            StoredTransactionOutPoint outPoint = journal.puts.get(i);
+            index.put(outPoint.getHash().getBytes(), outPoint.getIndex(), journal.putValues.get(i));
+        }
+        writeIndexHeader();
+        indexBuffer.putLong(OUTPUTS_LENGTH_OFFSET, journal.outputsLength);
+        indexBuffer.putLong(HEADERS_LENGTH_OFFSET, journal.headersLength);
+        indexBuffer.putLong(UNDO_LENGTH_OFFSET, journal.undoLength);
+        byte[] chainHeadBytes = journal.chainHead.getBytes();
+        byte[] verifiedChainHeadBytes = journal.verifiedChainHead.getBytes();
+        for (int i = 0; i < 32; i++) {
+            indexBuffer.put(CHAIN_HEAD_OFFSET + i, chainHeadBytes[i]);
+            indexBuffer.put(VERIFIED_CHAIN_HEAD_OFFSET + i, verifiedChainHeadBytes[i]);
+        }
+        indexBuffer.force();
+    }
+
+    private static byte[] serializeHeader(HeaderWrite header) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_RECORD_SIZE);
+        buffer.put(header.block.getHeader().getHash().getBytes());
+        header.block.serializeCompact(buffer);
+        buffer.put((byte) (header.wasUndoable ? 1 : 0));
+        return buffer.array();
+    }
+
+    private static byte[] serializeUndoBlock(UndoWrite write) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        out.write(write.block.getHash().getBytes());
+        out.writeInt(write.height);
+        if (write.block.getTxOutChanges() != null) {
+            out.writeByte(0);
+            write.block.getTxOutChanges().serializeToStream(out);
+        } else {
+            out.writeByte(1);
+            out.writeInt(write.block.getTransactions().size());
+            for (Transaction tx : write.block.getTransactions())
+                tx.bitcoinSerialize(out);
+        }
+        out.flush();
+        return bos.toByteArray();
+    }
+
+    private StoredUndoableBlock deserializeUndoBlock(Sha256Hash hash, byte[] record, int offset)
+            throws IOException, ProtocolException {
+        if (record[offset] == 0) {
+            ByteArrayInputStream in = new ByteArrayInputStream(record, offset + 1, record.length - offset - 1);
+            return new StoredUndoableBlock(hash, new TransactionOutputChanges(in));
+        }
+        int numTxn = ByteBuffer.wrap(record, offset + 1, 4).getInt();
+        int pos = offset + 5;
+        List<Transaction> transactions = new LinkedList<Transaction>();
+        for (int i = 0; i < numTxn; i++) {
+            Transaction tx = new Transaction(params, record, pos);
+            transactions.add(tx);
+            pos += tx.getMessageSize();
+        }
+        return new StoredUndoableBlock(hash, transactions);
+    }
+}
@@ -223,6 +223,94 @@ class TransactionalMultiKeyHashMap<UniqueKeyType, MultiKeyType, ValueType> {
     }
 }
 
+/**
+ * The unspent outputs of a {@link MemoryFullPrunedBlockStore}, committed ones kept in a {@link CompactOutputMap} and
+ * uncommitted ones in per-thread maps as in {@link TransactionalHashMap}.
+ * This class is not thread-safe.
+ */
+class TransactionalOutputMap {
+    ThreadLocal<HashMap<StoredTransactionOutPoint, StoredTransactionOutput>> tempMap;
+    ThreadLocal<HashSet<StoredTransactionOutPoint>> tempSetRemoved;
+    private ThreadLocal<Boolean> inTransaction;
+
+    CompactOutputMap map;
+
+    public TransactionalOutputMap() {
+        tempMap = new ThreadLocal<HashMap<StoredTransactionOutPoint, StoredTransactionOutput>>();
+        tempSetRemoved = new ThreadLocal<HashSet<StoredTransactionOutPoint>>();
+        inTransaction = new ThreadLocal<Boolean>();
+        map = new CompactOutputMap();
+    }
+
+    public void beginDatabaseBatchWrite() {
+        inTransaction.set(true);
+    }
+
+    public void commitDatabaseBatchWrite() {
+        if (tempSetRemoved.get() != null)
+            for (StoredTransactionOutPoint key : tempSetRemoved.get())
+                map.remove(key.getHash(), key.getIndex());
+        if (tempMap.get() != null)
+            for (StoredTransactionOutput out : tempMap.get().values())
+                map.put(out);
+        abortDatabaseBatchWrite();
+    }
+
+    public void abortDatabaseBatchWrite() {
+        inTransaction.set(false);
+        tempSetRemoved.remove();
+        tempMap.remove();
+    }
+
+    @Nullable
+    public StoredTransactionOutput get(Sha256Hash hash, long index) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+            if (tempMap.get() != null) {
+                StoredTransactionOutput value = tempMap.get().get(key);
+                if (value != null)
+                    return value;
+            }
+            if (tempSetRemoved.get() != null && tempSetRemoved.get().contains(key))
+                return null;
+        }
+        return map.get(hash, index);
+    }
+
+    public void put(StoredTransactionOutput out) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            if (tempSetRemoved.get() != null)
+                tempSetRemoved.get().remove(key);
+            if (tempMap.get() == null)
+                tempMap.set(new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>());
+            tempMap.get().put(key, out);
+        } else {
+            map.put(out);
+        }
+    }
+
+    /** Returns true if there was an output to remove. */
+    public boolean remove(StoredTransactionOutput out) {
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+            boolean removed = false;
+            if (tempMap.get() != null)
+                removed = tempMap.get().remove(key) != null;
+            boolean committed = map.get(out.getHash(), out.getIndex()) != null &&
+                    (tempSetRemoved.get() == null || !tempSetRemoved.get().contains(key));
+            if (committed) {
+                if (tempSetRemoved.get() == null)
+                    tempSetRemoved.set(new HashSet<StoredTransactionOutPoint>());
+                tempSetRemoved.get().add(key);
+            }
+            return removed || committed;
+        } else {
+            return map.remove(out.getHash(), out.getIndex());
+        }
+    }
+}
+
 /**
  * Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and {@link StoredTransactionOutput}s in memory.
  * Used primarily for unit testing.
@@ -235,8 +323,8 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     }
     private TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag> blockMap;
     private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
-    //TODO: Use something more suited to remove-heavy use?
-    private TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> transactionOutputMap;
+    // Unspent outputs are kept off heap, as there are far more of them than anything else.
+    private TransactionalOutputMap transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
     private int fullStoreDepth;
@@ -249,7 +337,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
         blockMap = new TransactionalHashMap<Sha256Hash, StoredBlockAndWasUndoableFlag>();
         fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
-        transactionOutputMap = new TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        transactionOutputMap = new TransactionalOutputMap();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -345,19 +433,19 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     @Nullable
     public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        return transactionOutputMap.get(new StoredTransactionOutPoint(hash, index));
+        return transactionOutputMap.get(hash, index);
     }
 
     @Override
     public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        transactionOutputMap.put(new StoredTransactionOutPoint(out), out);
+        transactionOutputMap.put(out);
     }
 
     @Override
     public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
         Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
-        if (transactionOutputMap.remove(new StoredTransactionOutPoint(out)) == null)
+        if (!transactionOutputMap.remove(out))
             throw new BlockStoreException("Tried to remove a StoredTransactionOutput from MemoryFullPrunedBlockStore that it didn't have!");
     }
 
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An open addressing hash table (linear probing) from transaction outpoints to positive longs, kept entirely in a
+ * {@link ByteBuffer}. Each entry is the 32 byte transaction hash, the 4 byte output index and an 8 byte value, so the
+ * table costs no objects per entry and can live in a memory mapped file or in direct memory. What the value means is
+ * up to the owner, typically the position of the output's data somewhere else.</p>
+ *
+ * <p>Removal leaves a tombstone behind. Once {@link #needsRehash()} says so, the owner should allocate a new table and
+ * {@link #copyTo(OutPointIndex)} this one into it, which also drops the tombstones.</p>
+ *
+ * <p>Not thread safe.</p>
+ */
+class OutPointIndex {
+    static final int ENTRY_SIZE = 32 + 4 + 8;
+    private static final int VALUE_OFFSET = 36;
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    private int size;
+    private int tombstones;
+
+    /**
+     * Wraps a table which already exists in the buffer, or an all zero buffer for an empty table. The number of
+     * entries the buffer has room for must be a power of two.
+     */
+    OutPointIndex(ByteBuffer buffer, int size, int tombstones) {
+        int capacity = buffer.capacity() / ENTRY_SIZE;
+        checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, "Capacity must be a power of two");
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.size = size;
+        this.tombstones = tombstones;
+    }
+
+    /** Returns the number of bytes a table with the given number of entries occupies. */
+    static long bytesFor(int capacity) {
+        return (long) capacity * ENTRY_SIZE;
+    }
+
+    /** Returns the value stored for the outpoint, or 0 if there is none. */
+    long get(byte[] hash, long index) {
+        int entry = find(hash, index);
+        return entry < 0 ? EMPTY : buffer.getLong(entry * ENTRY_SIZE + VALUE_OFFSET);
+    }
+
+    /** Stores a value, which must be positive, for the outpoint and returns the previous one or 0. */
+    long put(byte[] hash, long index, long value) {
+        checkArgument(value > 0);
+        int existing = find(hash, index);
+        if (existing >= 0) {
+            int pos = existing * ENTRY_SIZE + VALUE_OFFSET;
+            long old = buffer.getLong(pos);
+            buffer.putLong(pos, value);
+            return old;
+        }
+        int entry = bucketOf(hash, index);
+        while (true) {
+            long current = buffer.getLong(entry * ENTRY_SIZE + VALUE_OFFSET);
+            if (current == EMPTY || current == TOMBSTONE) {
+                if (current == TOMBSTONE)
+                    tombstones--;
+                int pos = entry * ENTRY_SIZE;
+                for (int i = 0; i < 32; i++)
+                    buffer.put(pos + i, hash[i]);
+                buffer.putInt(pos + 32, (int) index);
+                buffer.putLong(pos + VALUE_OFFSET, value);
+                size++;
+                return EMPTY;
+            }
+            entry = (entry + 1) & mask;
+        }
+    }
+
+    /** Removes the outpoint and returns its value, or 0 if it wasn't there. */
+    long remove(byte[] hash, long index) {
+        int entry = find(hash, index);
+        if (entry < 0)
+            return EMPTY;
+        int pos = entry * ENTRY_SIZE + VALUE_OFFSET;
+        long old = buffer.getLong(pos);
+        buffer.putLong(pos, TOMBSTONE);
+        size--;
+        tombstones++;
+        return old;
+    }
+
+    /** Returns the number of outpoints in the table. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the number of slots occupied by removed entries. */
+    int getTombstones() {
+        return tombstones;
+    }
+
+    /** Returns the number of entries the table has room for. */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /** Returns true once the table is so full, including tombstones, that lookups are getting slow. */
+    boolean needsRehash() {
+        // Keep the load factor at or below one half so probe sequences stay short.
+        return (size + tombstones) * 2L > capacity;
+    }
+
+    /** Returns the capacity a fresh table should have to hold the current contents plus some room to grow. */
+    int recommendedCapacity() {
+        return recommendedCapacity(0, 1 << 30);
+    }
+
+    /**
+     * Returns the capacity a fresh table should have to hold the current contents plus the given number of new
+     * entries, with room to grow, but no more than maxCapacity. Tombstones aren't counted, as they aren't copied.
+     * The result is maxCapacity, which may be too small to keep the load factor of {@link #needsRehash()}, if the
+     * entries would fill more than a quarter of it.
+     */
+    int recommendedCapacity(int additional, int maxCapacity) {
+        long wanted = Math.max(16, ((long) size + additional) * 4);
+        if (wanted >= maxCapacity)
+            return maxCapacity;
+        return Integer.highestOneBit((int) wanted - 1) << 1;
+    }
+
+    /** Inserts every outpoint of this table into the other one. */
+    void copyTo(OutPointIndex other) {
+        byte[] hash = new byte[32];
+        for (int entry = 0; entry < capacity; entry++) {
+            int pos = entry * ENTRY_SIZE;
+            long value = buffer.getLong(pos + VALUE_OFFSET);
+            if (value == EMPTY || value == TOMBSTONE)
+                continue;
+            for (int i = 0; i < 32; i++)
+                hash[i] = buffer.get(pos + i);
+            other.put(hash, buffer.getInt(pos + 32) & 0xFFFFFFFFL, value);
+        }
+    }
+
+    /** Computes a new value for an existing entry, see {@link #replaceValues(ValueMapper)}. */
+    interface ValueMapper {
+        /** Returns the new value, which must be positive, for the given outpoint and old value. */
+        long map(byte[] hash, long index, long value);
+    }
+
+    /** Replaces the value of every outpoint in the table, in table order. */
+    void replaceValues(ValueMapper mapper) {
+        byte[] hash = new byte[32];
+        for (int entry = 0; entry < capacity; entry++) {
+            int pos = entry * ENTRY_SIZE;
+            long value = buffer.getLong(pos + VALUE_OFFSET);
+            if (value == EMPTY || value == TOMBSTONE)
+                continue;
+            for (int i = 0; i < 32; i++)
+                hash[i] = buffer.get(pos + i);
+            long newValue = mapper.map(hash, buffer.getInt(pos + 32) & 0xFFFFFFFFL, value);
+            checkArgument(newValue > 0);
+            buffer.putLong(pos + VALUE_OFFSET, newValue);
+        }
+    }
+
+    private int bucketOf(byte[] hash, long index) {
+        // Transaction hashes are already uniformly distributed, just mix in the index.
+        long h = 0;
+        for (int i = 0; i < 8; i++)
+            h = (h << 8) | (hash[i] & 0xFF);
+        h = (h ^ index) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    // Returns the entry holding the outpoint, or -1.
+    private int find(byte[] hash, long index) {
+        int entry = bucketOf(hash, index);
+        for (int probes = 0; probes < capacity; probes++) {
+            int pos = entry * ENTRY_SIZE;
+            long value = buffer.getLong(pos + VALUE_OFFSET);
+            if (value == EMPTY)
+                return -1;
+            if (value != TOMBSTONE && buffer.getInt(pos + 32) == (int) index && keyEquals(pos, hash))
+                return entry;
+            entry = (entry + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int pos, byte[] hash) {
+        for (int i = 0; i < 32; i++)
+            if (buffer.get(pos + i) != hash[i])
+                return false;
+        return true;
+    }
+}
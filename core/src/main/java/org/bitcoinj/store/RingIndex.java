@@ -0,0 +1,127 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An open addressing hash table (linear probing, backward shift deletion) mapping a 64 bit prefix of a block hash to
+ * the slot of the ring buffer in {@link SPVBlockStore} that holds the header. It is rebuilt whenever the store is
+ * opened, so the file format is unchanged. Callers must check the full hash stored in the slot, as the index only
+ * remembers part of it.
+ *
+ * Not thread safe: {@link SPVBlockStore} only uses it whilst holding its lock.
+ */
+class RingIndex {
+    private static final int EMPTY = -1;
+
+    private final long[] keys;
+    private final int[] slots;
+    private final int mask;
+    // The key of the header held by each ring slot, so it can be dropped from the table when the slot is overwritten.
+    private final long[] slotKeys;
+    private final boolean[] slotUsed;
+
+    RingIndex(int numSlots) {
+        checkArgument(numSlots > 0);
+        // Keep the load factor at or below one half so probe sequences stay short.
+        int tableSize = Integer.highestOneBit(numSlots * 2 - 1) << 1;
+        keys = new long[tableSize];
+        slots = new int[tableSize];
+        for (int i = 0; i < tableSize; i++)
+            slots[i] = EMPTY;
+        mask = tableSize - 1;
+        slotKeys = new long[numSlots];
+        slotUsed = new boolean[numSlots];
+    }
+
+    /** Returns the key under which the header with the given hash is indexed. */
+    static long keyOf(byte[] hash) {
+        // The last bytes of a block hash are the least likely to be zero.
+        long key = 0;
+        for (int i = 24; i < 32; i++)
+            key = (key << 8) | (hash[i] & 0xFF);
+        return key;
+    }
+
+    private int bucketOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /** Returns the slot most recently associated with the key, or -1 if there is none. */
+    int get(long key) {
+        int bucket = bucketOf(key);
+        for (int probes = 0; probes <= mask; probes++) {
+            int slot = slots[bucket];
+            if (slot == EMPTY)
+                return -1;
+            if (keys[bucket] == key)
+                return slot < slotUsed.length ? slot : -1;
+            bucket = (bucket + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Records that the given ring slot now holds the header with the given key, replacing what was there. */
+    void put(long key, int slot) {
+        if (slotUsed[slot])
+            remove(slotKeys[slot], slot);
+        slotKeys[slot] = key;
+        slotUsed[slot] = true;
+        int bucket = bucketOf(key);
+        while (slots[bucket] != EMPTY && keys[bucket] != key)
+            bucket = (bucket + 1) & mask;
+        // If the same header was stored twice, the newer copy wins. The older slot keeps its key so that overwriting
+        // it later doesn't remove the newer entry.
+        keys[bucket] = key;
+        slots[bucket] = slot;
+    }
+
+    // Removes the key, but only if it still points at the given slot.
+    private void remove(long key, int slot) {
+        int bucket = bucketOf(key);
+        while (slots[bucket] != EMPTY) {
+            if (keys[bucket] == key) {
+                if (slots[bucket] == slot)
+                    deleteBucket(bucket);
+                return;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+    }
+
+    // Backward shift deletion: pull later entries of the probe sequence into the hole so lookups never need
+    // tombstones.
+    private void deleteBucket(int hole) {
+        int bucket = hole;
+        while (true) {
+            bucket = (bucket + 1) & mask;
+            if (slots[bucket] == EMPTY)
+                break;
+            int home = bucketOf(keys[bucket]);
+            // Move the entry if its home bucket is not cyclically within (hole, bucket].
+            boolean movable = hole <= bucket ? (home <= hole || home > bucket) : (home <= hole && home > bucket);
+            if (movable) {
+                keys[hole] = keys[bucket];
+                slots[hole] = slots[bucket];
+                hole = bucket;
+            }
+        }
+        slots[hole] = EMPTY;
+    }
+}
@@ -17,6 +17,7 @@
 package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.utils.ClockCache;
 import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,8 +31,6 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -63,25 +62,23 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    //
+    // Reading from the caches takes no locks, so cache hits from many threads don't queue up behind each other. Both
+    // caches used to be LinkedHashMaps, which needed the lock even to read. Subclasses that used them as such must now
+    // go through the ClockCache API instead.
+    protected ClockCache<Sha256Hash, StoredBlock> blockCache =
+            new ClockCache<Sha256Hash, StoredBlock>(2050);  // Slightly more than the difficulty transition period.
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     protected static final Object notFoundMarker = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected ClockCache<Sha256Hash, Object> notFoundCache =
+            new ClockCache<Sha256Hash, Object>(100);  // This was chosen arbitrarily.
+    // Maps hashes to ring slots so a cache miss doesn't have to look at every record. Guarded by lock.
+    private final RingIndex index;
+    private static final byte[] ZERO_HASH_BYTES = new byte[32];
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
@@ -91,10 +88,20 @@ public class SPVBlockStore implements BlockStore {
      * will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. Will create the given file if
+     * it's missing, an existing file must have been created with the same capacity. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(capacity > 0);
         this.params = checkNotNull(params);
+        this.index = new RingIndex(capacity);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
+            this.numHeaders = capacity;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
@@ -126,6 +133,7 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                rebuildIndex();
             } else {
                 initNewStore(params);
             }
@@ -139,6 +147,33 @@ public class SPVBlockStore implements BlockStore {
         }
     }
 
+    // Walks the ring from the oldest record to the newest, so that if a header was stored more than once the index ends
+    // up pointing at the most recent copy like a scan backwards from the cursor would find.
+    private void rebuildIndex() {
+        lock.lock();
+        try {
+            int cursor = getRingCursor(buffer);
+            final int fileSize = getFileSize();
+            byte[] hash = new byte[32];
+            for (int i = 0; i < numHeaders; i++) {
+                if (cursor == fileSize)
+                    cursor = FILE_PROLOGUE_BYTES;
+                buffer.position(cursor);
+                buffer.get(hash);
+                // Records that were never written are all zeros.
+                if (!Arrays.equals(hash, ZERO_HASH_BYTES))
+                    index.put(RingIndex.keyOf(hash), slotOf(cursor));
+                cursor += RECORD_SIZE;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static int slotOf(int cursor) {
+        return (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+    }
+
     private void initNewStore(NetworkParameters params) throws Exception {
         byte[] header;
         header = HEADER_MAGIC.getBytes("US-ASCII");
@@ -176,6 +211,7 @@ public class SPVBlockStore implements BlockStore {
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
             notFoundCache.remove(hash);
+            index.put(RingIndex.keyOf(hash.getBytes()), slotOf(cursor));
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
@@ -189,52 +225,81 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock cacheHit = blockCache.get(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (notFoundCache.get(hash) != null)
+            return null;
+
+        // Reading the ring itself needs the lock: the mapped buffer gives no guarantee that a record being overwritten
+        // by put() is seen whole, and a torn record can still look valid.
         lock.lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
-
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
-            // Not found.
-            notFoundCache.put(hash, notFoundMarker);
-            return null;
+            StoredBlock storedBlock = lookup(buffer, hash);
+            if (storedBlock != null)
+                blockCache.put(hash, storedBlock);
+            else
+                notFoundCache.put(hash, notFoundMarker);
+            return storedBlock;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
         } finally { lock.unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    @Nullable
+    private StoredBlock lookup(MappedByteBuffer buffer, Sha256Hash hash) throws ProtocolException {
+        // Work on a duplicate so we don't disturb the position of the shared buffer.
+        ByteBuffer view = buffer.duplicate();
+        final byte[] targetHashBytes = hash.getBytes();
+        int slot = index.get(RingIndex.keyOf(targetHashBytes));
+        if (slot < 0)
+            return null;
+        byte[] scratch = new byte[32];
+        view.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE);
+        view.get(scratch);
+        if (Arrays.equals(scratch, targetHashBytes))
+            return StoredBlock.deserializeCompact(params, view);
+        // The index only knows part of the hash, so this is a different header that happens to share it. That's rare
+        // enough that looking through the whole ring is fine.
+        return scanRing(view, targetHashBytes);
+    }
+
+    @Nullable
+    private StoredBlock scanRing(ByteBuffer view, byte[] targetHashBytes) throws ProtocolException {
+        // Starting from the current tip of the ring work backwards until we have either found the block or
+        // wrapped around.
+        int cursor = getRingCursor(view);
+        final int startingPoint = cursor;
+        final int fileSize = getFileSize();
+        byte[] scratch = new byte[32];
+        do {
+            cursor -= RECORD_SIZE;
+            if (cursor < FILE_PROLOGUE_BYTES) {
+                // We hit the start, so wrap around.
+                cursor = fileSize - RECORD_SIZE;
+            }
+            // Cursor is now at the start of the next record to check, so read the hash and compare it.
+            view.position(cursor);
+            view.get(scratch);
+            if (Arrays.equals(scratch, targetHashBytes)) {
+                // Found the target.
+                return StoredBlock.deserializeCompact(params, view);
+            }
+        } while (cursor != startingPoint);
+        // Not found.
+        return null;
+    }
+
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
         lock.lock();
         try {
             if (lastChainHead == null) {
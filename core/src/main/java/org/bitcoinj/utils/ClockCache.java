@@ -0,0 +1,131 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A bounded map for caching, which evicts entries using the CLOCK algorithm: every entry has a reference bit that
+ * is set when it is read, and on insertion a hand sweeps around the slots clearing reference bits until it finds an
+ * entry that hasn't been read since the last sweep, which is then evicted. This approximates least recently used
+ * eviction.</p>
+ *
+ * <p>Unlike an access ordered {@link java.util.LinkedHashMap}, a read doesn't restructure anything, so {@link #get}
+ * takes no locks and many threads can read at once. Writes are serialized with each other.</p>
+ */
+public class ClockCache<K, V> {
+    private static class Entry<V> {
+        final V value;
+        final int slot;
+        volatile boolean referenced;
+
+        Entry(V value, int slot) {
+            this.value = value;
+            this.slot = slot;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Entry<V>> map;
+    // Guarded by this.
+    private final Object[] slots;
+    private int hand;
+
+    /** Creates a cache that holds at most the given number of entries. */
+    public ClockCache(int capacity) {
+        checkArgument(capacity > 0);
+        this.map = new ConcurrentHashMap<K, Entry<V>>(capacity * 4 / 3 + 1);
+        this.slots = new Object[capacity];
+    }
+
+    /** Returns the value for the given key and marks it as recently used, or returns null if it isn't cached. */
+    @Nullable
+    public V get(K key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null)
+            return null;
+        if (!entry.referenced)
+            entry.referenced = true;
+        return entry.value;
+    }
+
+    /** Returns true if the key is cached. Unlike {@link #get(Object)}, this doesn't mark the entry as used. */
+    public boolean containsKey(K key) {
+        return map.containsKey(key);
+    }
+
+    /** Inserts or replaces the value for the given key, evicting another entry if the cache is full. */
+    public synchronized void put(K key, V value) {
+        checkNotNull(value);
+        Entry<V> existing = map.get(key);
+        if (existing != null) {
+            map.put(key, new Entry<V>(value, existing.slot));
+            return;
+        }
+        int slot = findSlot();
+        slots[slot] = key;
+        map.put(key, new Entry<V>(value, slot));
+    }
+
+    /** Removes the given key from the cache, if present. */
+    public synchronized void remove(K key) {
+        Entry<V> entry = map.remove(key);
+        if (entry != null)
+            slots[entry.slot] = null;
+    }
+
+    /** Removes all entries. */
+    public synchronized void clear() {
+        map.clear();
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = null;
+    }
+
+    /** Returns the number of cached entries. */
+    public int size() {
+        return map.size();
+    }
+
+    /** Returns the maximum number of entries this cache will hold. */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    // Advances the hand to a free slot, evicting the first entry found with its reference bit clear.
+    @SuppressWarnings("unchecked")
+    private int findSlot() {
+        while (true) {
+            int slot = hand;
+            hand = (hand + 1) % slots.length;
+            K key = (K) slots[slot];
+            if (key == null)
+                return slot;
+            Entry<V> entry = map.get(key);
+            if (entry.referenced) {
+                // Give it a second chance.
+                entry.referenced = false;
+            } else {
+                map.remove(key);
+                slots[slot] = null;
+                return slot;
+            }
+        }
+    }
+}
@@ -47,6 +47,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private final LinkedHashMap<ByteString, ECKey> hashToKeys;
     private final LinkedHashMap<ByteString, ECKey> pubkeyToKeys;
     @Nullable private final KeyCrypter keyCrypter;
+    // Incremented whenever keys are added or removed, so indexes built from the keys can tell they are out of date.
+    private volatile int modCount;
 
     private final CopyOnWriteArrayList<ListenerRegistration<KeyChainEventListener>> listeners;
 
@@ -119,6 +121,11 @@ public class BasicKeyChain implements EncryptableKeyChain {
         }
     }
 
+    /** Returns a number which changes whenever keys are added to or removed from this chain. */
+    /* package */ int getModCount() {
+        return modCount;
+    }
+
     /** Returns a copy of the list of keys that this chain is managing. */
     public List<ECKey> getKeys() {
         lock.lock();
@@ -169,6 +176,7 @@ public class BasicKeyChain implements EncryptableKeyChain {
     private void importKeyLocked(ECKey key) {
         pubkeyToKeys.put(ByteString.copyFrom(key.getPubKey()), key);
         hashToKeys.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+        modCount++;
     }
 
     private void importKeysLocked(List<ECKey> keys) {
@@ -231,6 +239,8 @@ public class BasicKeyChain implements EncryptableKeyChain {
             boolean a = hashToKeys.remove(ByteString.copyFrom(key.getPubKeyHash())) != null;
             boolean b = pubkeyToKeys.remove(ByteString.copyFrom(key.getPubKey())) != null;
             checkState(a == b);   // Should be in both maps or neither.
+            if (a)
+                modCount++;
             return a;
         } finally {
             lock.unlock();
@@ -1127,13 +1127,11 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
         List<DeterministicKey> result  = new ArrayList<DeterministicKey>(needed);
         long now = System.currentTimeMillis();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
+        // Each key costs a point multiplication, so derive them on all cores.
+        for (DeterministicKey key : HDKeyDerivation.deriveChildKeys(parent, numChildren, needed)) {
             key = key.getPubOnly();
             hierarchy.putKey(key);
             result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
         }
         log.info("Took {} msec", System.currentTimeMillis() - now);
         return result;
@@ -1315,4 +1313,17 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     public RedeemData findRedeemDataByScriptHash(ByteString bytes) {
         return null;
     }
+
+    /** Returns a copy of all redeem data this keychain generated, keyed by script hash. */
+    /* package */ Map<ByteString, RedeemData> getRedeemDataByScriptHash() {
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Returns a number which grows whenever keys or redeem data are added to this chain. Used by
+     * {@link KeyChainGroup} to tell when its index is out of date.
+     */
+    /* package */ int getModCount() {
+        return basicKeyChain.getModCount();
+    }
 }
@@ -77,6 +77,9 @@ public class KeyChainGroup implements KeyBag {
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
 
+    // Answers key and redeem data lookups for all the chains at once. Rebuilt when the chains have changed since.
+    @Nullable private volatile KeyIndex keyIndex;
+
     /** Creates a keychain group with no basic chain, and a single, lazily created HD chain. */
     public KeyChainGroup(NetworkParameters params) {
         this(params, null, new ArrayList<DeterministicKeyChain>(1), null, null);
@@ -132,6 +135,30 @@ public class KeyChainGroup implements KeyBag {
         }
     }
 
+    // Returns an index of the keys and redeem data of all chains, building a new one if they have changed.
+    private KeyIndex getKeyIndex() {
+        long modCount = basic.getModCount();
+        for (DeterministicKeyChain chain : chains)
+            modCount += chain.getModCount();
+        KeyIndex index = keyIndex;
+        if (index != null && index.getModCount() == modCount)
+            return index;
+        // Earlier additions win, so add things in the order the chains used to be searched in.
+        KeyIndex.Builder builder = new KeyIndex.Builder(modCount);
+        for (ECKey key : basic.getKeys())
+            builder.addKey(key);
+        for (DeterministicKeyChain chain : chains)
+            for (ECKey key : chain.getKeys(true))
+                builder.addKey(key);
+        for (Iterator<DeterministicKeyChain> iter = chains.descendingIterator() ; iter.hasNext() ; ) {
+            for (Map.Entry<ByteString, RedeemData> entry : iter.next().getRedeemDataByScriptHash().entrySet())
+                builder.addRedeemData(entry.getKey().toByteArray(), entry.getValue());
+        }
+        index = builder.build();
+        keyIndex = index;
+        return index;
+    }
+
     /** Adds a new HD chain to the chains list, and make it the default chain (from which keys are issued). */
     public void createAndActivateNewHDChain() {
         // We can't do auto upgrade here because we don't know the rotation time, if any.
@@ -152,6 +179,7 @@ public class KeyChainGroup implements KeyBag {
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
         chains.add(chain);
+        keyIndex = null;
     }
 
     /**
@@ -349,14 +377,7 @@ public class KeyChainGroup implements KeyBag {
 
     @Nullable
     public RedeemData findRedeemDataFromScriptHash(byte[] scriptHash) {
-        // Iterate in reverse order, since the active keychain is the one most likely to have the hit
-        for (Iterator<DeterministicKeyChain> iter = chains.descendingIterator() ; iter.hasNext() ; ) {
-            DeterministicKeyChain chain = iter.next();
-            RedeemData redeemData = chain.findRedeemDataByScriptHash(ByteString.copyFrom(scriptHash));
-            if (redeemData != null)
-                return redeemData;
-        }
-        return null;
+        return getKeyIndex().findRedeemDataFromScriptHash(scriptHash);
     }
 
     public void markP2SHAddressAsUsed(Address address) {
@@ -378,14 +399,7 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubHash(pubkeyHash)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubHash(pubkeyHash)) != null)
-                return result;
-        }
-        return null;
+        return getKeyIndex().findKeyFromPubHash(pubkeyHash);
     }
 
     /**
@@ -440,14 +454,7 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubKey(pubkey)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubKey(pubkey)) != null)
-                return result;
-        }
-        return null;
+        return getKeyIndex().findKeyFromPubKey(pubkey);
     }
 
     /**
@@ -516,6 +523,7 @@ public class KeyChainGroup implements KeyBag {
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        keyIndex = null;
     }
 
     /**
@@ -536,6 +544,7 @@ public class KeyChainGroup implements KeyBag {
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        keyIndex = null;
     }
 
     /** Returns true if the group is encrypted. */
@@ -712,6 +721,7 @@ public class KeyChainGroup implements KeyBag {
             chain = chain.toEncrypted(checkNotNull(basic.getKeyCrypter()), aesKey);
         }
         chains.add(chain);
+        keyIndex = null;
         return chain;
     }
 
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.ECKey;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+
+/**
+ * <p>An immutable lookup table from public key hashes, public keys and P2SH script hashes to the keys and redeem data
+ * of every chain in a {@link KeyChainGroup}. It answers the questions asked for every output of every transaction
+ * seen, so it is built for the case where the answer is usually "not ours": one open addressing table per kind of
+ * lookup, probed with bytes taken straight from the query, so a miss costs a few array reads and no allocation.</p>
+ *
+ * <p>Being immutable, an index can be read by any number of threads at once. When the chains change the group
+ * builds a new one.</p>
+ */
+class KeyIndex {
+    private final long modCount;
+    private final Table pubKeyHashes;
+    private final Table pubKeys;
+    private final Table scriptHashes;
+
+    private KeyIndex(long modCount, Table pubKeyHashes, Table pubKeys, Table scriptHashes) {
+        this.modCount = modCount;
+        this.pubKeyHashes = pubKeyHashes;
+        this.pubKeys = pubKeys;
+        this.scriptHashes = scriptHashes;
+    }
+
+    /** Returns the modification count of the chains at the time the index was built. */
+    long getModCount() {
+        return modCount;
+    }
+
+    @Nullable
+    ECKey findKeyFromPubHash(byte[] pubkeyHash) {
+        return (ECKey) pubKeyHashes.get(pubkeyHash);
+    }
+
+    @Nullable
+    ECKey findKeyFromPubKey(byte[] pubkey) {
+        return (ECKey) pubKeys.get(pubkey);
+    }
+
+    @Nullable
+    RedeemData findRedeemDataFromScriptHash(byte[] scriptHash) {
+        return (RedeemData) scriptHashes.get(scriptHash);
+    }
+
+    /** Collects the contents of a new index. Where the same key is added twice, the first one wins. */
+    static class Builder {
+        private final long modCount;
+        private final Table pubKeyHashes = new Table();
+        private final Table pubKeys = new Table();
+        private final Table scriptHashes = new Table();
+
+        Builder(long modCount) {
+            this.modCount = modCount;
+        }
+
+        Builder addKey(ECKey key) {
+            pubKeyHashes.putIfAbsent(key.getPubKeyHash(), key);
+            pubKeys.putIfAbsent(key.getPubKey(), key);
+            return this;
+        }
+
+        Builder addRedeemData(byte[] scriptHash, RedeemData redeemData) {
+            scriptHashes.putIfAbsent(scriptHash, redeemData);
+            return this;
+        }
+
+        KeyIndex build() {
+            return new KeyIndex(modCount, pubKeyHashes, pubKeys, scriptHashes);
+        }
+    }
+
+    // Linear probing over parallel key and value arrays, kept at most half full. Only ever written by the Builder.
+    private static class Table {
+        private byte[][] keys = new byte[16][];
+        private Object[] values = new Object[16];
+        private int size;
+
+        @Nullable
+        Object get(byte[] key) {
+            int mask = keys.length - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                byte[] k = keys[i];
+                if (k == null)
+                    return null;
+                if (Arrays.equals(k, key))
+                    return values[i];
+            }
+        }
+
+        void putIfAbsent(byte[] key, Object value) {
+            if ((size + 1) * 2 > keys.length)
+                resize(keys.length * 2);
+            int mask = keys.length - 1;
+            int i = hash(key) & mask;
+            while (keys[i] != null) {
+                if (Arrays.equals(keys[i], key))
+                    return;
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        private void resize(int capacity) {
+            byte[][] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new byte[capacity][];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == null)
+                    continue;
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+
+        // Hashes and the coordinates making up public keys are already uniformly distributed, so their last four
+        // bytes do as a hash code.
+        private static int hash(byte[] key) {
+            int n = key.length;
+            if (n < 4)
+                return Arrays.hashCode(key);
+            return (key[n - 4] & 0xFF) << 24 | (key[n - 3] & 0xFF) << 16 | (key[n - 2] & 0xFF) << 8 | (key[n - 1] & 0xFF);
+        }
+    }
+}
@@ -235,7 +235,7 @@ public class MarriedKeyChain extends DeterministicKeyChain {
             builder2.append(String.format("Following chain:  %s%n", followingChain.getWatchingKey().serializePubB58(params)));
         }
         builder2.append(String.format("%n"));
-        for (RedeemData redeemData : marriedKeysRedeemData.values())
+        for (RedeemData redeemData : getRedeemDataByScriptHash().values())
             formatScript(ScriptBuilder.createP2SHOutputScript(redeemData.redeemScript), builder2, params);
     }
 
@@ -249,25 +249,56 @@ public class MarriedKeyChain extends DeterministicKeyChain {
 
     @Override
     public void maybeLookAheadScripts() {
-        super.maybeLookAheadScripts();
-        int numLeafKeys = getLeafKeys().size();
-
-        checkState(marriedKeysRedeemData.size() <= numLeafKeys, "Number of scripts is greater than number of leaf keys");
-        if (marriedKeysRedeemData.size() == numLeafKeys)
-            return;
-
-        maybeLookAhead();
-        for (DeterministicKey followedKey : getLeafKeys()) {
-            RedeemData redeemData = getRedeemData(followedKey);
-            Script scriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemData.redeemScript);
-            marriedKeysRedeemData.put(ByteString.copyFrom(scriptPubKey.getPubKeyHash()), redeemData);
+        lock.lock();
+        try {
+            super.maybeLookAheadScripts();
+            int numLeafKeys = getLeafKeys().size();
+
+            checkState(marriedKeysRedeemData.size() <= numLeafKeys, "Number of scripts is greater than number of leaf keys");
+            if (marriedKeysRedeemData.size() == numLeafKeys)
+                return;
+
+            maybeLookAhead();
+            for (DeterministicKey followedKey : getLeafKeys()) {
+                RedeemData redeemData = getRedeemData(followedKey);
+                Script scriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemData.redeemScript);
+                marriedKeysRedeemData.put(ByteString.copyFrom(scriptPubKey.getPubKeyHash()), redeemData);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Nullable
     @Override
     public RedeemData findRedeemDataByScriptHash(ByteString bytes) {
-        return marriedKeysRedeemData.get(bytes);
+        lock.lock();
+        try {
+            return marriedKeysRedeemData.get(bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    /* package */ Map<ByteString, RedeemData> getRedeemDataByScriptHash() {
+        lock.lock();
+        try {
+            return new LinkedHashMap<ByteString, RedeemData>(marriedKeysRedeemData);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    /* package */ int getModCount() {
+        // Redeem data is only ever added.
+        lock.lock();
+        try {
+            return super.getModCount() + marriedKeysRedeemData.size();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -32,6 +32,8 @@ import org.slf4j.LoggerFactory;
 import java.io.File;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.bitcoinj.core.Coin.FIFTY_COINS;
 import static org.junit.Assert.*;
@@ -146,6 +148,84 @@ public abstract class AbstractFullPrunedBlockChainTest
         }
     }
 
+    @Test
+    public void invalidScriptDoesNotStopVerifier() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        chain = new FullPrunedBlockChain(params, store);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            chain.setScriptVerifier(new ScriptVerifier(executor, 1));
+
+            ECKey outKey = new ECKey();
+            Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+            TransactionOutput spendableOutput = rollingBlock.getTransactions().get(0).getOutput(0);
+            for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+                rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+                chain.add(rollingBlock);
+            }
+
+            Block badBlock = rollingBlock.createNextBlock(null);
+            Transaction t = new Transaction(params);
+            t.addOutput(new TransactionOutput(params, t, FIFTY_COINS, new byte[] {}));
+            TransactionInput input = t.addInput(spendableOutput);
+            // Invalid script.
+            input.setScriptBytes(new byte[]{});
+            badBlock.addTransaction(t);
+            badBlock.solve();
+            try {
+                chain.add(badBlock);
+                fail();
+            } catch (VerificationException e) {
+                // Expected.
+            }
+
+            // The executor must still be usable for the next block.
+            Block goodBlock = rollingBlock.createNextBlock(null);
+            t = new Transaction(params);
+            t.addOutput(new TransactionOutput(params, t, FIFTY_COINS, new byte[] {}));
+            t.addSignedInput(spendableOutput, outKey);
+            goodBlock.addTransaction(t);
+            goodBlock.solve();
+            assertTrue(chain.add(goodBlock));
+            assertFalse(executor.isShutdown());
+            assertTrue(chain.getScriptVerifier().getBlocksVerified() > 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void batchWriteSeesItsOwnChanges() throws Exception {
+        store = createStore(params, 10);
+        resetStore(store);
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        StoredTransactionOutput kept = new StoredTransactionOutput(hash, 0, FIFTY_COINS, 1, false, new byte[] {});
+        StoredTransactionOutput spent = new StoredTransactionOutput(hash, 1, FIFTY_COINS, 1, false, new byte[] {});
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(spent);
+        assertNotNull(store.getTransactionOutput(hash, 1));
+        // Spend an output created within the same batch.
+        store.removeUnspentTransactionOutput(spent);
+        assertNull(store.getTransactionOutput(hash, 1));
+        assertTrue(store.hasUnspentOutputs(hash, 2));
+        store.commitDatabaseBatchWrite();
+        assertEquals(FIFTY_COINS, store.getTransactionOutput(hash, 0).getValue());
+        assertNull(store.getTransactionOutput(hash, 1));
+
+        // A removal is visible within the batch and undone by aborting it.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(kept);
+        assertNull(store.getTransactionOutput(hash, 0));
+        assertFalse(store.hasUnspentOutputs(hash, 2));
+        store.abortDatabaseBatchWrite();
+        assertNotNull(store.getTransactionOutput(hash, 0));
+        assertTrue(store.hasUnspentOutputs(hash, 2));
+    }
+
     @Test
     public void testFinalizedBlocks() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
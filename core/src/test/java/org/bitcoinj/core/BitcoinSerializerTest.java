@@ -256,6 +256,68 @@ public class BitcoinSerializerTest {
         }
     }
 
+    @Test
+    public void testPooledParsing() throws Exception {
+        BitcoinSerializer plain = new BitcoinSerializer(MainNetParams.get());
+        BitcoinSerializer pooled = new BitcoinSerializer(MainNetParams.get(), false, false, new MessageBufferPool());
+        Transaction expected = (Transaction) plain.deserialize(ByteBuffer.wrap(txMessage));
+
+        // Parsed in place from a heap buffer, with unrelated bytes either side.
+        byte[] padded = new byte[txMessage.length + 10];
+        System.arraycopy(txMessage, 0, padded, 5, txMessage.length);
+        ByteBuffer heap = ByteBuffer.wrap(padded, 5, txMessage.length).slice();
+        Transaction tx = (Transaction) pooled.deserialize(heap);
+        assertEquals(expected.getHash(), tx.getHash());
+        assertArrayEquals(expected.bitcoinSerialize(), tx.bitcoinSerialize());
+        assertFalse(heap.hasRemaining());
+
+        // Copied into a pooled array from a direct buffer.
+        ByteBuffer direct = ByteBuffer.allocateDirect(txMessage.length);
+        direct.put(txMessage).flip();
+        tx = (Transaction) pooled.deserialize(direct);
+        assertEquals(expected.getHash(), tx.getHash());
+        assertArrayEquals(expected.bitcoinSerialize(), tx.bitcoinSerialize());
+
+        Block genesis = MainNetParams.get().getGenesisBlock();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        plain.serialize(genesis, bos);
+        direct = ByteBuffer.allocateDirect(bos.size());
+        direct.put(bos.toByteArray()).flip();
+        Block block = (Block) pooled.deserialize(direct);
+        assertEquals(genesis.getHash(), block.getHash());
+        assertArrayEquals(genesis.bitcoinSerialize(), block.bitcoinSerialize());
+
+        // Lazy serializers keep the array, so they never use the pool.
+        assertNull(new BitcoinSerializer(MainNetParams.get(), true, false, new MessageBufferPool()).getBufferPool());
+    }
+
+    @Test
+    public void testPooledBlockFlood() throws Exception {
+        // Every peer sends every block, as happens when a new block is relayed. Without the pool each message would
+        // need an array of its own.
+        final int peers = 8, blocks = 50;
+        BitcoinSerializer plain = new BitcoinSerializer(MainNetParams.get());
+        MessageBufferPool pool = new MessageBufferPool();
+        BitcoinSerializer pooled = new BitcoinSerializer(MainNetParams.get(), false, false, pool);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        plain.serialize(MainNetParams.get().getGenesisBlock(), bos);
+        byte[] message = bos.toByteArray();
+        ByteBuffer direct = ByteBuffer.allocateDirect(message.length);
+        long payloadBytes = 0;
+        for (int i = 0; i < blocks; i++) {
+            for (int j = 0; j < peers; j++) {
+                direct.clear();
+                direct.put(message).flip();
+                pooled.deserialize(direct);
+                payloadBytes += message.length - 4 - BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH;
+            }
+        }
+        // Only the first message needed a new array.
+        assertEquals(4096, pool.getBytesAllocated());
+        assertEquals(4096L * (peers * blocks - 1), pool.getBytesReused());
+        assertTrue(pool.getBytesAllocated() < payloadBytes);
+    }
+
     @Test
     /**
      * Tests serialization of an unknown message.
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.MappedFullPrunedBlockStore;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bitcoinj.core.Coin.FIFTY_COINS;
+import static org.junit.Assert.*;
+
+/**
+ * A memory mapped implementation of the FullPrunedBlockStoreTest
+ */
+public class MappedFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private File directory;
+
+    @After
+    public void tearDown() throws Exception {
+        if (store != null)
+            store.close();
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        if (store != null)
+            store.close();
+        deleteFiles();
+        directory = Files.createTempDir();
+        return new MappedFullPrunedBlockStore(params, directory, blockCount);
+    }
+
+    private void deleteFiles() {
+        if (directory == null)
+            return;
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        // Every store is created in a fresh directory.
+    }
+
+    @Test
+    public void survivesReopen() throws Exception {
+        store = createStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 0; i < 3; i++) {
+            rollingBlock = rollingBlock.createNextBlock(null);
+            chain.add(rollingBlock);
+        }
+        store.close();
+
+        store = new MappedFullPrunedBlockStore(params, directory, 10);
+        assertEquals(rollingBlock.getHash(), store.getChainHead().getHeader().getHash());
+        assertEquals(4, store.getVerifiedChainHead().getHeight());
+        assertNotNull(store.getUndoBlock(rollingBlock.getHash()));
+        assertEquals(FIFTY_COINS, store.getTransactionOutput(coinbase.getHash(), 0).getValue());
+        // The chain can carry on from where it left off.
+        chain = new FullPrunedBlockChain(params, store);
+        assertTrue(chain.add(rollingBlock.createNextBlock(null)));
+    }
+
+    @Test
+    public void tornCommitIsRolledBack() throws Exception {
+        store = createStore(params, 10);
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        StoredTransactionOutput out = new StoredTransactionOutput(hash, 0, FIFTY_COINS, 1, false, new byte[] {});
+        store.addUnspentTransactionOutput(out);
+        store.close();
+
+        // Simulate a crash while writing the next commit: junk past the end of a log and a half written journal.
+        RandomAccessFile outputs = new RandomAccessFile(new File(directory, "outputs.dat"), "rw");
+        long length = outputs.length();
+        outputs.seek(length);
+        outputs.write(new byte[100]);
+        outputs.close();
+        RandomAccessFile journal = new RandomAccessFile(new File(directory, "commit.journal"), "rw");
+        journal.write(new byte[] {0x4A, 0x52, 0x4E, 0x31, 1, 2, 3, 4, 5, 6, 7, 8, 9});
+        journal.close();
+
+        store = new MappedFullPrunedBlockStore(params, directory, 10);
+        assertEquals(FIFTY_COINS, store.getTransactionOutput(hash, 0).getValue());
+        assertEquals(length, new File(directory, "outputs.dat").length());
+        assertEquals(0, new File(directory, "commit.journal").length());
+    }
+
+    @Test
+    public void spentOutputsDoNotGrowIndex() throws Exception {
+        store = createStore(params, 10);
+        long indexLength = new File(directory, "outputs.index").length();
+        // Far more outputs come and go than the index has room for, but few are unspent at any one time.
+        for (int round = 0; round < 100; round++) {
+            List<StoredTransactionOutput> outs = new ArrayList<StoredTransactionOutput>();
+            store.beginDatabaseBatchWrite();
+            for (int i = 0; i < 1000; i++) {
+                Sha256Hash hash = Sha256Hash.create(new byte[] {(byte) round, (byte) (i >> 8), (byte) i});
+                StoredTransactionOutput out = new StoredTransactionOutput(hash, 0, FIFTY_COINS, 1, false, new byte[] {});
+                store.addUnspentTransactionOutput(out);
+                outs.add(out);
+            }
+            store.commitDatabaseBatchWrite();
+            store.beginDatabaseBatchWrite();
+            for (StoredTransactionOutput out : outs)
+                store.removeUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+        }
+        assertEquals(indexLength, new File(directory, "outputs.index").length());
+    }
+
+    @Test
+    public void hasUnspentOutputs() throws Exception {
+        store = createStore(params, 10);
+        Sha256Hash hash = Sha256Hash.create(new byte[] {1});
+        StoredTransactionOutput committed = new StoredTransactionOutput(hash, 1, FIFTY_COINS, 1, false, new byte[] {});
+        store.addUnspentTransactionOutput(committed);
+        assertTrue(store.hasUnspentOutputs(hash, 2));
+        assertFalse(store.hasUnspentOutputs(hash, 1));
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(committed);
+        assertFalse(store.hasUnspentOutputs(hash, 2));
+        store.addUnspentTransactionOutput(new StoredTransactionOutput(hash, 0, FIFTY_COINS, 1, false, new byte[] {}));
+        assertTrue(store.hasUnspentOutputs(hash, 1));
+        store.abortDatabaseBatchWrite();
+        assertTrue(store.hasUnspentOutputs(hash, 2));
+        assertFalse(store.hasUnspentOutputs(hash, 1));
+    }
+}
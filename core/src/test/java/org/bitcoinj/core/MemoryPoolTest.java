@@ -23,10 +23,15 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.bitcoinj.core.Coin.COIN;
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 public class MemoryPoolTest {
     private NetworkParameters params = UnitTestParams.get();
@@ -76,4 +81,98 @@ public class MemoryPoolTest {
         assertEquals(3, t.getConfidence().numBroadcastPeers());
         assertEquals(3, pool.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void evictsOldestWhenFull() throws Exception {
+        MemoryPool pool = new MemoryPool(10);
+        for (int i = 0; i < 20; i++)
+            pool.seen(hash(i), address1);
+        assertEquals(10, pool.size());
+        assertFalse(pool.maybeWasSeen(hash(0)));
+        assertFalse(pool.maybeWasSeen(hash(9)));
+        assertTrue(pool.maybeWasSeen(hash(10)));
+        assertTrue(pool.maybeWasSeen(hash(19)));
+    }
+
+    @Test
+    public void evictsWhenOverByteBudget() throws Exception {
+        MemoryPool pool = new MemoryPool(100, 2000);
+        for (int i = 0; i < 100; i++)
+            pool.seen(hash(i), address1);
+        int singlePeerSize = pool.size();
+        assertTrue(singlePeerSize > 0 && singlePeerSize < 100);
+        assertTrue(pool.maybeWasSeen(hash(99)));
+        // Hashes announced by more peers take more of the budget.
+        pool = new MemoryPool(100, 2000);
+        for (int i = 0; i < 100; i++) {
+            pool.seen(hash(i), address1);
+            pool.seen(hash(i), address2);
+            pool.seen(hash(i), address3);
+        }
+        assertTrue(pool.size() < singlePeerSize);
+        assertEquals(3, pool.numBroadcastPeers(hash(99)));
+    }
+
+    @Test
+    public void invFlood() throws Exception {
+        // 100 peers announce the same hashes in their own orders, some of them also sending the transactions, while
+        // other threads look the hashes up.
+        final int numPeers = 100;
+        final int numHashes = 200;
+        final MemoryPool pool = new MemoryPool();
+        final List<Transaction> txns = new ArrayList<Transaction>();
+        for (int i = 0; i < 10; i++)
+            txns.add(FakeTxBuilder.createFakeTx(params, COIN, new ECKey().toAddress(params)));
+        final List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < numHashes - txns.size(); i++)
+            hashes.add(hash(i));
+        for (Transaction tx : txns)
+            hashes.add(tx.getHash());
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(numPeers);
+        for (int i = 0; i < numPeers; i++) {
+            final PeerAddress peer = new PeerAddress(InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) i}));
+            final Random random = new Random(i);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        List<Sha256Hash> order = new ArrayList<Sha256Hash>(hashes);
+                        Collections.shuffle(order, random);
+                        start.await();
+                        for (Sha256Hash hash : order) {
+                            pool.seen(hash, peer);
+                            assertTrue(pool.maybeWasSeen(hash));
+                            assertTrue(pool.numBroadcastPeers(hash) > 0);
+                        }
+                        Transaction tx = txns.get(random.nextInt(txns.size()));
+                        assertEquals(tx, pool.seen(new Transaction(params, tx.bitcoinSerialize()), peer));
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+        for (Sha256Hash hash : hashes)
+            assertEquals(numPeers, pool.numBroadcastPeers(hash));
+        for (Transaction tx : txns)
+            assertEquals(numPeers, tx.getConfidence().numBroadcastPeers());
+
+        // A flood of new hashes doesn't push the pool past its limit.
+        for (int i = 0; i < 10 * MemoryPool.MAX_SIZE; i++)
+            pool.seen(hash(numHashes + i), address1);
+        assertTrue(pool.size() <= MemoryPool.MAX_SIZE);
+    }
+
+    private static Sha256Hash hash(int i) {
+        return Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8), (byte) (i >> 16)});
+    }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bitcoinj.core.Utils.doubleDigestTwoBuffers;
+import static org.bitcoinj.core.Utils.reverseBytes;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class MerkleTreeTest {
+    private static List<Sha256Hash> leaves(int count) {
+        List<Sha256Hash> leaves = new ArrayList<Sha256Hash>(count);
+        for (int i = 0; i < count; i++)
+            leaves.add(Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8)}));
+        return leaves;
+    }
+
+    // The level by level calculation Block used to do.
+    private static Sha256Hash naiveRoot(List<Sha256Hash> leaves) {
+        List<byte[]> level = new ArrayList<byte[]>();
+        for (Sha256Hash leaf : leaves)
+            level.add(reverseBytes(leaf.getBytes()));
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<byte[]>();
+            for (int left = 0; left < level.size(); left += 2) {
+                int right = Math.min(left + 1, level.size() - 1);
+                next.add(doubleDigestTwoBuffers(level.get(left), 0, 32, level.get(right), 0, 32));
+            }
+            level = next;
+        }
+        return new Sha256Hash(reverseBytes(level.get(0)));
+    }
+
+    @Test
+    public void matchesNaiveCalculation() throws Exception {
+        for (int count = 1; count <= 33; count++) {
+            List<Sha256Hash> leaves = leaves(count);
+            MerkleTree tree = MerkleTree.build(leaves, MoreExecutors.sameThreadExecutor());
+            assertEquals(naiveRoot(leaves), tree.getRoot());
+            assertEquals(count, tree.getLeafCount());
+            for (int i = 0; i < count; i++)
+                assertEquals(leaves.get(i), tree.getHash(0, i));
+        }
+    }
+
+    @Test
+    public void parallelMatchesSequential() throws Exception {
+        // Wide enough for the lower levels to be split across threads.
+        List<Sha256Hash> leaves = leaves(5001);
+        MerkleTree sequential = MerkleTree.build(leaves, MoreExecutors.sameThreadExecutor());
+        MerkleTree parallel = MerkleTree.build(leaves);
+        assertEquals(naiveRoot(leaves), parallel.getRoot());
+        for (int height = 0; height <= sequential.getHeight(); height++)
+            for (int pos = 0; pos < sequential.getWidth(height); pos++)
+                assertEquals(sequential.getHash(height, pos), parallel.getHash(height, pos));
+    }
+
+    @Test
+    public void blockKeepsTreeUntilTransactionsChange() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        Address address = new ECKey().toAddress(params);
+        Block block = params.getGenesisBlock().createNextBlock(address);
+        block.addTransaction(createFakeTx(params, Coin.COIN, address));
+        MerkleTree tree = block.getMerkleTree();
+        assertSame(tree, block.getMerkleTree());
+        assertEquals(tree.getRoot(), block.getMerkleRoot());
+        block.addTransaction(createFakeTx(params, Coin.CENT, address));
+        assertNotSame(tree, block.getMerkleTree());
+        assertEquals(3, block.getMerkleTree().getLeafCount());
+        assertEquals(block.getMerkleTree().getRoot(), block.getMerkleRoot());
+    }
+}
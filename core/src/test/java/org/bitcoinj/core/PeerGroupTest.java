@@ -42,6 +42,7 @@ import java.net.ServerSocket;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -349,6 +350,108 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertNull(message == null ? "" : message.toString(), message);
     }
 
+    @Test
+    public void parallelBlockDownload() throws Exception {
+        // Check that downloadBlocks() spreads windows over the peers and adds the blocks to the chain in order, no
+        // matter in which order the peers deliver them.
+        peerGroup.addEventListener(listener);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        connectedPeers.take();
+        connectedPeers.take();
+
+        int windowSize = BlockDownloadScheduler.DEFAULT_WINDOW_SIZE;
+        List<Block> blocks = new ArrayList<Block>();
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        Block prev = blockChain.getChainHead().getHeader();
+        for (int i = 0; i < windowSize + 4; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev);
+            blocks.add(prev);
+            hashes.add(prev.getHash());
+        }
+        int startHeight = blockChain.getBestChainHeight();
+        ListenableFuture<Integer> future = peerGroup.downloadBlocks(hashes);
+
+        GetDataMessage getdata1 = (GetDataMessage) outbound(p1);
+        GetDataMessage getdata2 = (GetDataMessage) outbound(p2);
+        assertEquals(windowSize, getdata1.getItems().size());
+        assertEquals(4, getdata2.getItems().size());
+        assertEquals(hashes.get(windowSize), getdata2.getItems().get(0).hash);
+
+        // The second window arrives first and has to wait for the first.
+        for (Block block : blocks.subList(windowSize, blocks.size()))
+            inbound(p2, block);
+        pingAndWait(p2);
+        assertEquals(startHeight, blockChain.getBestChainHeight());
+        assertFalse(future.isDone());
+
+        for (Block block : blocks.subList(0, windowSize))
+            inbound(p1, block);
+        assertEquals(Integer.valueOf(blocks.size()), future.get());
+        assertEquals(startHeight + blocks.size(), blockChain.getBestChainHeight());
+
+        Map<Peer, BlockDownloadScheduler.PeerStats> stats = peerGroup.getBlockDownloadScheduler().getPeerStats();
+        assertEquals(windowSize, stats.get(peerOf(p1)).getBlocksReceived());
+        assertEquals(4, stats.get(peerOf(p2)).getBlocksReceived());
+        assertEquals(0, peerGroup.getBlockDownloadScheduler().getPendingBlocks());
+    }
+
+    @Test
+    public void headersFirstDownload() throws Exception {
+        peerGroup.addEventListener(listener);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        connectedPeers.take();
+
+        List<Block> blocks = new ArrayList<Block>();
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = blockChain.getChainHead().getHeader();
+        for (int i = 0; i < 5; i++) {
+            prev = FakeTxBuilder.makeSolvedTestBlock(prev);
+            blocks.add(prev);
+            headers.add(prev.cloneAsHeader());
+        }
+        int startHeight = blockChain.getBestChainHeight();
+        ListenableFuture<Integer> future = peerGroup.downloadBlockChainHeadersFirst();
+
+        GetHeadersMessage getheaders = (GetHeadersMessage) outbound(p1);
+        assertEquals(blockChain.getChainHead().getHeader().getHash(), getheaders.getLocator().get(0));
+        // Headers are verified and the blocks requested before anything is added to the chain.
+        inbound(p1, new HeadersMessage(params, headers));
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(blocks.size(), getdata.getItems().size());
+        assertEquals(startHeight, blockChain.getBestChainHeight());
+
+        for (Block block : blocks)
+            inbound(p1, block);
+        assertEquals(Integer.valueOf(blocks.size()), future.get());
+        assertEquals(startHeight + blocks.size(), blockChain.getBestChainHeight());
+    }
+
+    @Test
+    public void headersFirstDownloadRejectsBadHeaders() throws Exception {
+        peerGroup.addEventListener(listener);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        connectedPeers.take();
+
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockChain.getChainHead().getHeader());
+        Block b2 = FakeTxBuilder.makeSolvedTestBlock(b1);
+        Block b3 = FakeTxBuilder.makeSolvedTestBlock(b2);
+        ListenableFuture<Integer> future = peerGroup.downloadBlockChainHeadersFirst();
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        // b2 is missing, so the headers don't form a chain and no block is requested.
+        inbound(p1, new HeadersMessage(params, b1.cloneAsHeader(), b3.cloneAsHeader()));
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof VerificationException);
+        }
+        disconnectedPeers.take();
+    }
+
     @Test
     public void transactionConfidence() throws Exception {
         // Checks that we correctly count how many peers broadcast a transaction, so we can establish some measure of
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class StreamingBlockParserTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private final Address address = new ECKey().toAddress(params);
+
+    private Block makeBlock(int numTransactions) {
+        Block block = params.getGenesisBlock().createNextBlock(address);
+        for (int i = 1; i < numTransactions; i++)
+            block.addTransaction(createFakeTx(params, Coin.valueOf(i), address));
+        block.solve();
+        return block;
+    }
+
+    // Feeds the message to a parser a few bytes at a time, as a slow peer would send it.
+    private StreamingBlockParser stream(Block block, int chunkSize) throws Exception {
+        return stream(block.bitcoinSerialize(), chunkSize);
+    }
+
+    private StreamingBlockParser stream(byte[] payload, int chunkSize) throws Exception {
+        BitcoinSerializer serializer = new BitcoinSerializer(params);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize("block", payload, bos);
+        ByteBuffer buff = ByteBuffer.wrap(bos.toByteArray());
+        serializer.seekPastMagicBytes(buff);
+        BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(buff);
+        StreamingBlockParser parser = new StreamingBlockParser(params, header);
+        while (true) {
+            ByteBuffer chunk = buff.slice();
+            chunk.limit(Math.min(chunkSize, chunk.remaining()));
+            boolean done = parser.receive(chunk);
+            buff.position(buff.position() + chunk.position());
+            if (done)
+                break;
+            assertNull(parser.getBlock());
+        }
+        assertFalse(buff.hasRemaining());
+        return parser;
+    }
+
+    @Test
+    public void matchesBlockParsing() throws Exception {
+        // Cover both even and odd numbers of transactions at each level of the merkle tree.
+        for (int numTransactions = 1; numTransactions <= 7; numTransactions++) {
+            Block expected = makeBlock(numTransactions);
+            StreamingBlockParser parser = stream(expected, 7);
+            assertNull(parser.getFailure());
+            Block block = parser.getBlock();
+            assertEquals(expected.getHash(), block.getHash());
+            assertEquals(numTransactions, block.getTransactions().size());
+            for (int i = 0; i < numTransactions; i++)
+                assertEquals(expected.getTransactions().get(i).getHash(), block.getTransactions().get(i).getHash());
+            assertArrayEquals(expected.bitcoinSerialize(), block.bitcoinSerialize());
+        }
+    }
+
+    @Test
+    public void headerOnly() throws Exception {
+        Block expected = makeBlock(1);
+        StreamingBlockParser parser = stream(Arrays.copyOf(expected.bitcoinSerialize(), Block.HEADER_SIZE), 1000);
+        assertEquals(expected.getHash(), parser.getBlock().getHash());
+        assertEquals(Block.HEADER_SIZE, parser.getBlock().bitcoinSerialize().length);
+    }
+
+    @Test
+    public void badMerkleRoot() throws Exception {
+        Block good = makeBlock(3);
+        Block bad = new Block(params, good.getVersion(), good.getPrevBlockHash(), Sha256Hash.ZERO_HASH,
+                good.getTimeSeconds(), good.getDifficultyTarget(), 0, good.getTransactions());
+        bad.solve();
+        StreamingBlockParser parser = stream(bad, 50);
+        assertNull(parser.getBlock());
+        assertTrue(parser.getFailure().getMessage().startsWith("Merkle hashes do not match"));
+    }
+
+    @Test
+    public void coinbaseNotFirst() throws Exception {
+        Block good = makeBlock(2);
+        List<Transaction> swapped = Lists.reverse(good.getTransactions());
+        Block bad = new Block(params, good.getVersion(), good.getPrevBlockHash(), good.getMerkleRoot(),
+                good.getTimeSeconds(), good.getDifficultyTarget(), good.getNonce(), swapped);
+        StreamingBlockParser parser = stream(bad, 50);
+        assertNull(parser.getBlock());
+        assertEquals("First tx is not coinbase", parser.getFailure().getMessage());
+        // The header was fine, so the peer can be told which block was dropped.
+        assertEquals(bad.getHash(), parser.getHash());
+    }
+
+    @Test
+    public void streamedBlockIsNotVerifiedTwice() throws Exception {
+        Block good = makeBlock(3);
+        Block bad = new Block(params, good.getVersion(), good.getPrevBlockHash(), Sha256Hash.ZERO_HASH,
+                good.getTimeSeconds(), good.getDifficultyTarget(), good.getNonce(), good.getTransactions());
+        // Marked as verified, the bad merkle root isn't looked at again.
+        bad.setTransactionsVerified();
+        bad.verifyTransactions();
+
+        Block block = stream(good, 50).getBlock();
+        block.verifyTransactions();
+        // Changing the block means it has to be checked again.
+        block.setMerkleRoot(Sha256Hash.ZERO_HASH);
+        try {
+            block.verifyTransactions();
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage().startsWith("Merkle hashes do not match"));
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void tooLarge() throws Exception {
+        BitcoinSerializer serializer = new BitcoinSerializer(params);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize("block", new byte[Block.MAX_BLOCK_SIZE + 1], bos);
+        ByteBuffer buff = ByteBuffer.wrap(bos.toByteArray());
+        serializer.seekPastMagicBytes(buff);
+        new StreamingBlockParser(params, serializer.deserializeHeader(buff));
+    }
+}
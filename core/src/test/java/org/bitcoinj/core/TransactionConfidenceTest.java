@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.testing.FakeTxBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import static org.bitcoinj.core.Coin.COIN;
+import static org.junit.Assert.*;
+
+public class TransactionConfidenceTest {
+    private NetworkParameters params = UnitTestParams.get();
+    private Transaction tx;
+    private TransactionConfidence confidence;
+
+    @Before
+    public void setUp() throws Exception {
+        tx = FakeTxBuilder.createFakeTx(params, COIN, new ECKey().toAddress(params));
+        confidence = tx.getConfidence();
+    }
+
+    @Test
+    public void markBroadcastBy() throws Exception {
+        assertEquals(TransactionConfidence.ConfidenceType.UNKNOWN, confidence.getConfidenceType());
+        assertTrue(confidence.markBroadcastBy(peer(2)));
+        assertTrue(confidence.markBroadcastBy(peer(1)));
+        assertFalse(confidence.markBroadcastBy(peer(2)));
+        assertEquals(TransactionConfidence.ConfidenceType.PENDING, confidence.getConfidenceType());
+        assertEquals(2, confidence.numBroadcastPeers());
+        assertTrue(confidence.wasBroadcastBy(peer(1)));
+        assertTrue(confidence.wasBroadcastBy(peer(2)));
+        assertFalse(confidence.wasBroadcastBy(peer(3)));
+        assertFalse(confidence.wasBroadcastBy(new PeerAddress(InetAddress.getByName("192.0.2.1"))));
+        assertEquals(2, confidence.getBroadcastBy().size());
+        assertTrue(confidence.getBroadcastBy().contains(peer(1)));
+
+        TransactionConfidence copy = confidence.duplicate();
+        confidence.markBroadcastBy(peer(3));
+        assertEquals(2, copy.numBroadcastPeers());
+        assertEquals(3, confidence.numBroadcastPeers());
+    }
+
+    @Test
+    public void peersAreToldApartByAddressAndPort() throws Exception {
+        // The registry is shared, so use a peer no other test does.
+        PeerAddress address = peer(5000);
+        address.setTime(1000);
+        assertTrue(confidence.markBroadcastBy(address));
+        // The same peer announcing again with a new time is not a new peer, even if the object itself changes.
+        PeerAddress again = peer(5000);
+        again.setTime(2000);
+        assertFalse(confidence.markBroadcastBy(again));
+        address.setTime(3000);
+        assertTrue(confidence.wasBroadcastBy(address));
+        assertTrue(confidence.wasBroadcastBy(again));
+        assertEquals(1, confidence.numBroadcastPeers());
+        // A different port is a different peer.
+        assertTrue(confidence.markBroadcastBy(new PeerAddress(address.getAddr(), address.getPort() + 1)));
+        assertEquals(2, confidence.numBroadcastPeers());
+    }
+
+    @Test
+    public void concurrentMarks() throws Exception {
+        final int numThreads = 8;
+        final int peersPerThread = 50;
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            final int first = i * peersPerThread;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // Every thread also marks the peers of the thread before it.
+                        for (int j = Math.max(0, first - peersPerThread); j < first + peersPerThread; j++)
+                            confidence.markBroadcastBy(peer(j));
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        assertEquals(numThreads * peersPerThread, confidence.numBroadcastPeers());
+    }
+
+    @Test
+    public void seenPeersNotificationsAreCoalesced() throws Exception {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+        final List<Integer> counts = new ArrayList<Integer>();
+        confidence.addEventListener(new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+                counts.add(tx.getConfidence().numBroadcastPeers());
+            }
+        }, executor);
+
+        for (int i = 0; i < 50; i++) {
+            confidence.markBroadcastBy(peer(i));
+            confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        }
+        assertEquals(1, queued.size());
+        queued.remove(0).run();
+        assertEquals(50, (int) counts.get(0));
+
+        // Once the listener has run, the next announcement queues it again.
+        confidence.markBroadcastBy(peer(50));
+        confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        assertEquals(1, queued.size());
+        // Other kinds of change are never coalesced.
+        confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.TYPE);
+        confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.TYPE);
+        assertEquals(3, queued.size());
+    }
+
+    @Test
+    public void javaSerialization() throws Exception {
+        confidence.markBroadcastBy(peer(1));
+        confidence.markBroadcastBy(peer(2));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new ObjectOutputStream(bos).writeObject(tx);
+        Transaction tx2 = (Transaction) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+        TransactionConfidence confidence2 = tx2.getConfidence();
+        assertEquals(2, confidence2.numBroadcastPeers());
+        assertTrue(confidence2.wasBroadcastBy(peer(1)));
+        assertTrue(confidence2.wasBroadcastBy(peer(2)));
+        assertEquals(TransactionConfidence.ConfidenceType.PENDING, confidence2.getConfidenceType());
+    }
+
+    private static PeerAddress peer(int i) throws Exception {
+        return new PeerAddress(InetAddress.getByAddress(new byte[] {10, 1, (byte) (i >> 8), (byte) i}));
+    }
+}
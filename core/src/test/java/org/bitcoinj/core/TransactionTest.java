@@ -1,12 +1,17 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.testing.FakeTxBuilder;
 import org.junit.Before;
 import org.junit.Test;
 
-import static org.junit.Assert.assertEquals;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
 
 /**
  * Just check the Transaction.verify() method. Most methods that have complicated logic in Transaction are tested
@@ -89,4 +94,110 @@ public class TransactionTest {
         assertEquals(101, input.getScriptBytes().length);
         tx.verify();
     }
+
+    @Test
+    public void hashForSignatureManyInputs() throws Exception {
+        // Enough inputs to start hashing from several different checkpoints, and fewer outputs than inputs to cover
+        // SIGHASH_SINGLE both with and without a matching output.
+        tx.clearInputs();
+        for (int i = 0; i < SigHashCache.CHECKPOINT_INTERVAL * 2 + 5; i++)
+            tx.addInput(Sha256Hash.create(new byte[] {(byte) i}), i, new ScriptBuilder().data(new byte[] {(byte) i}).build());
+        for (int i = 1; i < 10; i++)
+            tx.addOutput(Coin.valueOf(i), ADDRESS);
+        byte[] connectedScript = ScriptBuilder.createOutputScript(ADDRESS).getProgram();
+        for (Transaction.SigHash mode : new Transaction.SigHash[] {Transaction.SigHash.ALL, Transaction.SigHash.NONE,
+                Transaction.SigHash.SINGLE}) {
+            for (boolean anyoneCanPay : new boolean[] {false, true}) {
+                byte type = (byte) ((mode.ordinal() + 1) | (anyoneCanPay ? Transaction.SIGHASH_ANYONECANPAY_VALUE : 0));
+                for (int i = 0; i < tx.getInputs().size(); i++)
+                    assertEquals(mode + " " + anyoneCanPay + " " + i, referenceHash(tx, i, connectedScript, type),
+                            tx.hashForSignature(i, connectedScript, mode, anyoneCanPay));
+            }
+        }
+        // Changing the transaction changes the hashes.
+        Sha256Hash before = tx.hashForSignature(3, connectedScript, Transaction.SigHash.ALL, false);
+        tx.addOutput(Coin.CENT, ADDRESS);
+        Sha256Hash after = tx.hashForSignature(3, connectedScript, Transaction.SigHash.ALL, false);
+        assertFalse(before.equals(after));
+        assertEquals(blankedHash(tx, 3, connectedScript), after);
+    }
+
+    @Test
+    public void signingKeepsSigHashCache() throws Exception {
+        tx.clearInputs();
+        for (int i = 0; i < 10; i++)
+            tx.addInput(Sha256Hash.create(new byte[] {(byte) i}), i, new Script(new byte[0]));
+        byte[] connectedScript = ScriptBuilder.createOutputScript(ADDRESS).getProgram();
+        tx.hashForSignature(0, connectedScript, Transaction.SigHash.ALL, false);
+        SigHashCache cache = tx.sigHashCache;
+        assertNotNull(cache);
+        // Hash then set each input's script, as signing does. Input scripts aren't part of any signature hash.
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            assertEquals(blankedHash(tx, i, connectedScript), tx.hashForSignature(i, connectedScript, Transaction.SigHash.ALL, false));
+            tx.getInput(i).setScriptSig(new ScriptBuilder().data(new byte[] {(byte) i}).build());
+        }
+        assertSame(cache, tx.sigHashCache);
+        // Whereas anything else they cover does count.
+        tx.getInput(0).setSequenceNumber(0);
+        assertNull(tx.sigHashCache);
+        assertEquals(blankedHash(tx, 1, connectedScript), tx.hashForSignature(1, connectedScript, Transaction.SigHash.ALL, false));
+    }
+
+    @Test
+    public void shuffleOutputsDropsCachedHashes() throws Exception {
+        for (int i = 1; i < 10; i++)
+            tx.addOutput(Coin.valueOf(i), ADDRESS);
+        byte[] connectedScript = ScriptBuilder.createOutputScript(ADDRESS).getProgram();
+        tx.hashForSignature(0, connectedScript, Transaction.SigHash.ALL, false);
+        tx.getHash();
+        tx.shuffleOutputs();
+        assertEquals(blankedHash(tx, 0, connectedScript), tx.hashForSignature(0, connectedScript, Transaction.SigHash.ALL, false));
+        assertEquals(new Transaction(PARAMS, tx.bitcoinSerialize()).getHash(), tx.getHash());
+    }
+
+    // Calculates a signature hash of any type the way the reference client does, by serializing a modified copy of the
+    // transaction.
+    private static Sha256Hash referenceHash(Transaction tx, int inputIndex, byte[] connectedScript, byte type)
+            throws Exception {
+        int mode = type & 0x1f;
+        boolean anyoneCanPay = (type & Transaction.SIGHASH_ANYONECANPAY_VALUE) != 0;
+        if (mode == Transaction.SigHash.SINGLE.ordinal() + 1 && inputIndex >= tx.getOutputs().size())
+            return new Sha256Hash("0100000000000000000000000000000000000000000000000000000000000000");
+        Transaction copy = new Transaction(PARAMS, tx.bitcoinSerialize());
+        for (int i = 0; i < copy.getInputs().size(); i++) {
+            TransactionInput input = copy.getInput(i);
+            input.setScriptBytes(i == inputIndex ? connectedScript : TransactionInput.EMPTY_ARRAY);
+            if (mode != Transaction.SigHash.ALL.ordinal() + 1 && i != inputIndex)
+                input.setSequenceNumber(0);
+        }
+        if (mode == Transaction.SigHash.NONE.ordinal() + 1) {
+            copy.clearOutputs();
+        } else if (mode == Transaction.SigHash.SINGLE.ordinal() + 1) {
+            List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(copy.getOutputs());
+            copy.clearOutputs();
+            for (int i = 0; i < inputIndex; i++)
+                copy.addOutput(new TransactionOutput(PARAMS, copy, Coin.NEGATIVE_SATOSHI, new byte[] {}));
+            copy.addOutput(outputs.get(inputIndex));
+        }
+        if (anyoneCanPay) {
+            TransactionInput input = copy.getInput(inputIndex);
+            copy.clearInputs();
+            copy.addInput(input);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        copy.bitcoinSerialize(bos);
+        Utils.uint32ToByteStreamLE(0x000000ff & type, bos);
+        return new Sha256Hash(Utils.doubleDigest(bos.toByteArray()));
+    }
+
+    // Calculates a SIGHASH_ALL signature hash by serializing a copy of the transaction with the scripts replaced.
+    private static Sha256Hash blankedHash(Transaction tx, int inputIndex, byte[] connectedScript) throws Exception {
+        Transaction copy = new Transaction(PARAMS, tx.bitcoinSerialize());
+        for (int i = 0; i < copy.getInputs().size(); i++)
+            copy.getInput(i).setScriptBytes(i == inputIndex ? connectedScript : TransactionInput.EMPTY_ARRAY);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        copy.bitcoinSerialize(bos);
+        Utils.uint32ToByteStreamLE(1, bos);
+        return new Sha256Hash(Utils.doubleDigest(bos.toByteArray()));
+    }
 }
@@ -18,7 +18,15 @@
 package org.bitcoinj.core;
 
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Test;
 
@@ -61,4 +69,54 @@ public class UtilsTest {
         assertEquals("2014-11-16T10:54:33Z", Utils.dateTimeFormat(1416135273781L));
         assertEquals("2014-11-16T10:54:33Z", Utils.dateTimeFormat(new Date(1416135273781L)));
     }
+
+    @Test
+    public void doubleDigestIntoBuffer() throws Exception {
+        byte[] input = "hello world".getBytes("UTF-8");
+        byte[] expected = Utils.doubleDigest(input);
+        assertEquals("bc62d4b80d9e36da29c16c5d4d9f11731f36052c72401a76c23c0fb5a9b74423", Utils.HEX.encode(expected));
+
+        byte[] out = new byte[40];
+        Utils.doubleDigest(input, 0, input.length, out, 8);
+        assertArrayEquals(expected, Arrays.copyOfRange(out, 8, 40));
+
+        ByteBuffer buf = ByteBuffer.wrap(input);
+        Utils.doubleDigest(buf, out, 0);
+        assertArrayEquals(expected, Arrays.copyOfRange(out, 0, 32));
+        assertFalse(buf.hasRemaining());
+
+        Utils.doubleDigestTwoBuffers(input, 0, 5, input, 5, input.length - 5, out, 0);
+        assertArrayEquals(expected, Arrays.copyOfRange(out, 0, 32));
+
+        assertEquals(Sha256Hash.createDouble(input), new Sha256Hash(expected));
+        assertEquals(Sha256Hash.createDoubleReversed(input, 0, input.length), new Sha256Hash(Utils.reverseBytes(expected)));
+    }
+
+    @Test
+    public void doubleDigestFromManyThreads() throws Exception {
+        final byte[] input = new byte[1000];
+        for (int i = 0; i < input.length; i++)
+            input[i] = (byte) i;
+        final byte[] expected = Utils.doubleDigest(input);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        for (int j = 0; j < 1000; j++) {
+                            if (!Arrays.equals(expected, Utils.doubleDigest(input)))
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -620,6 +620,71 @@ public class WalletTest extends TestWithWallet {
         assertEquals(ZERO.subtract(valueOf(0, 10)), send2.getValue(wallet));
     }
 
+    @Test
+    public void cachedBalanceFollowsKeysAndSpends() throws Exception {
+        // Pay to us and to a key we only import later.
+        ECKey otherKey = new ECKey();
+        Transaction tx = createFakeTx(params, COIN, myAddress);
+        tx.addOutput(new TransactionOutput(params, tx, valueOf(0, 5), otherKey.toAddress(params)));
+        sendMoneyToWallet(tx, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        wallet.importKey(otherKey);
+        assertEquals(valueOf(1, 5), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(valueOf(1, 5), wallet.getBalance());
+        assertEquals(2, wallet.calculateAllSpendCandidates(true).size());
+
+        // Spending one output leaves the transaction in the unspent pool but changes the balance.
+        Coin before = wallet.getBalance(Wallet.BalanceType.ESTIMATED);
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), valueOf(0, 5));
+        wallet.commitTx(send);
+        assertEquals(before.subtract(send.getValueSentFromMe(wallet)).add(send.getValueSentToMe(wallet)),
+                wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void snapshotReads() throws Exception {
+        Transaction tx1 = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.setSnapshotReads(true);
+        WalletSnapshot snapshot = wallet.getSnapshot();
+        assertEquals(COIN, snapshot.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertSame(snapshot, wallet.getSnapshot());
+        assertEquals(tx1, snapshot.getTransaction(tx1.getHash()));
+
+        // While another thread holds the wallet lock, reads answer from the last snapshot without waiting.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        writer.start();
+        locked.await();
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(1, wallet.getTransactions(true).size());
+        release.countDown();
+        writer.join();
+
+        // Once the wallet changes, the next read takes a new snapshot.
+        Transaction tx2 = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(valueOf(2, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertNotSame(snapshot, wallet.getSnapshot());
+        assertTrue(snapshot.getVersion() < wallet.getSnapshot().getVersion());
+        assertEquals(2, wallet.getRecentTransactions(0, false).size());
+        assertEquals(tx2, wallet.getTransaction(tx2.getHash()));
+        assertNull(snapshot.getTransaction(tx2.getHash()));
+    }
+
     @Test
     public void isConsistent_duplicates() throws Exception {
         // This test ensures that isConsistent catches duplicate transactions, eg, because we submitted the same block
@@ -1249,6 +1314,58 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.bitcoinSerialize()));
     }
 
+    @Test
+    public void bloomFilterIsExtendedIncrementally() throws Exception {
+        Address watchedAddress = new ECKey().toAddress(params);
+        wallet.addWatchedAddress(watchedAddress);
+        Transaction t1 = createFakeTx(params, CENT, watchedAddress);
+        wallet.receiveFromBlock(t1, createFakeBlock(blockStore, t1).storedBlock, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        int size = wallet.getBloomFilterElementCount();
+        BloomFilter filter = wallet.getBloomFilter(size + 10, 1e-12, 42);
+        TransactionOutPoint outPoint1 = new TransactionOutPoint(params, 0, t1);
+        assertTrue(filter.contains(outPoint1.bitcoinSerialize()));
+
+        // A new transaction is added to the filter built with the same parameters.
+        Transaction t2 = createFakeTx(params, CENT, watchedAddress);
+        wallet.receiveFromBlock(t2, createFakeBlock(blockStore, t2).storedBlock, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        assertEquals(size + 1, wallet.getBloomFilterElementCount());
+        filter = wallet.getBloomFilter(size + 10, 1e-12, 42);
+        TransactionOutPoint outPoint2 = new TransactionOutPoint(params, 0, t2);
+        assertTrue(filter.contains(outPoint1.bitcoinSerialize()));
+        assertTrue(filter.contains(outPoint2.bitcoinSerialize()));
+
+        // The result is the same as a filter built from scratch with other parameters and then the same ones again.
+        byte[] incremental = filter.bitcoinSerialize();
+        wallet.getBloomFilter(size + 20, 1e-12, 43);
+        assertArrayEquals(incremental, wallet.getBloomFilter(size + 10, 1e-12, 42).bitcoinSerialize());
+
+        // Unwatching the address drops its outputs.
+        wallet.removeWatchedAddress(watchedAddress);
+        assertEquals(size - 2, wallet.getBloomFilterElementCount());
+        filter = wallet.getBloomFilter(size + 10, 1e-12, 42);
+        assertFalse(filter.contains(outPoint1.bitcoinSerialize()));
+        assertFalse(filter.contains(outPoint2.bitcoinSerialize()));
+    }
+
+    @Test
+    public void bloomFilterPicksUpOutputsToNewlyDerivedKeys() throws Exception {
+        // A key far beyond the wallet's lookahead, derived from the same seed.
+        Wallet copy = Wallet.fromSeed(params, wallet.getKeyChainSeed());
+        DeterministicKey futureKey = null;
+        for (int i = 0; i < 300; i++)
+            futureKey = copy.freshReceiveKey();
+        Transaction t1 = createFakeTx(params, CENT, myAddress);
+        t1.addOutput(CENT, futureKey);
+        wallet.receiveFromBlock(t1, createFakeBlock(blockStore, t1).storedBlock, BlockChain.NewBlockType.BEST_CHAIN, 0);
+        TransactionOutPoint outPoint = new TransactionOutPoint(params, 2, t1);
+        assertFalse(wallet.getBloomFilter(1e-12).contains(outPoint.bitcoinSerialize()));
+
+        // Once the wallet derives the key the output is ours, and has to be in the filter.
+        for (int i = 0; i < 300; i++)
+            wallet.freshReceiveKey();
+        assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.bitcoinSerialize()));
+    }
+
     @Test
     public void getWatchedAddresses() throws Exception {
         Address watchedAddress = new ECKey().toAddress(params);
@@ -26,6 +26,10 @@ import org.bitcoinj.params.UnitTestParams;
 import org.junit.Test;
 import org.spongycastle.crypto.params.KeyParameter;
 
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import static org.bitcoinj.core.Utils.HEX;
 import static org.junit.Assert.*;
 
@@ -245,6 +249,31 @@ public class ChildKeyDerivationTest {
         assertEquals(DeterministicKey.deserialize(params, key4.serializePrivate(params)).getPath().size(), 1);
     }
 
+    @Test
+    public void bulkDerivationMatchesSequential() {
+        DeterministicKey key1 = HDKeyDerivation.createMasterPrivateKey("satoshi lives!".getBytes());
+        checkBulkDerivation(key1, 5, 100);
+        checkBulkDerivation(key1.getPubOnly(), 0, 70);
+        checkBulkDerivation(key1, ChildNumber.HARDENED_BIT, 40);
+        assertTrue(HDKeyDerivation.deriveChildKeys(key1, 0, 0).isEmpty());
+    }
+
+    private static void checkBulkDerivation(DeterministicKey parent, int childNumber, int count) {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        List<DeterministicKey> keys;
+        try {
+            keys = HDKeyDerivation.deriveChildKeys(parent, childNumber, count, executor);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(count, keys.size());
+        for (DeterministicKey key : keys) {
+            DeterministicKey expected = HDKeyDerivation.deriveThisOrNextChildKey(parent, childNumber);
+            assertEquals(expected, key);
+            childNumber = expected.getChildNumber().i() + 1;
+        }
+    }
+
     private static String hexEncodePub(DeterministicKey pubKey) {
         return HEX.encode(pubKey.getPubKey());
     }
@@ -29,16 +29,23 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
 import javax.net.SocketFactory;
+import java.io.ByteArrayOutputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.common.base.Preconditions.checkState;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(value = Parameterized.class)
 public class NetworkAbstractionTests {
@@ -49,7 +56,8 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3}, new Integer[]{4},
+                new Integer[]{5});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -60,12 +68,20 @@ public class NetworkAbstractionTests {
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.startAsync();
+        } else if (clientType == 4) {
+            channels = new NioClientManager(3);
+            channels.startAsync();
+        } else if (clientType == 5) {
+            BlockingClientManager manager = new BlockingClientManager();
+            manager.setThreadStackSize(128 * 1024);
+            channels = manager;
+            channels.startAsync();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufParser<Protos.TwoWayChannelMessage> parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4 || clientType == 5) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -659,4 +675,227 @@ public class NetworkAbstractionTests {
         server.stopAsync();
         server.awaitTerminated();
     }
+
+    @Test
+    public void testReadPaused() throws Exception {
+        final SettableFuture<MessageWriteTarget> serverTarget = SettableFuture.create();
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public StreamParser getNewParser(InetAddress inetAddress, int port) {
+                return new StreamParser() {
+                    private MessageWriteTarget target;
+                    @Override public void connectionClosed() {}
+                    @Override public void connectionOpened() { serverTarget.set(target); }
+                    @Override public void setWriteTarget(MessageWriteTarget writeTarget) { target = writeTarget; }
+                    @Override public int getMaxMessageSize() { return 65536; }
+                    @Override public int receiveBytes(ByteBuffer buff) { return 0; }
+                };
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAsync();
+        server.awaitRunning();
+
+        final AtomicInteger received = new AtomicInteger();
+        final SettableFuture<MessageWriteTarget> clientTarget = SettableFuture.create();
+        StreamParser clientParser = new StreamParser() {
+            private MessageWriteTarget target;
+            @Override public void connectionClosed() {}
+            @Override public void connectionOpened() { clientTarget.set(target); }
+            @Override public void setWriteTarget(MessageWriteTarget writeTarget) { target = writeTarget; }
+            @Override public int getMaxMessageSize() { return 65536; }
+
+            @Override
+            public int receiveBytes(ByteBuffer buff) {
+                int length = buff.remaining();
+                buff.position(buff.limit());
+                received.addAndGet(length);
+                return length;
+            }
+        };
+        InetSocketAddress addr = new InetSocketAddress("localhost", 4243);
+        if (clientType == 2)
+            new NioClient(addr, clientParser, 100);
+        else if (clientType == 3)
+            new BlockingClient(addr, clientParser, 100, SocketFactory.getDefault(), null);
+        else
+            channels.openConnection(addr, clientParser);
+        MessageWriteTarget client = clientTarget.get();
+        MessageWriteTarget serverSide = serverTarget.get();
+        assertTrue(client instanceof ReadPausable);
+
+        ((ReadPausable) client).setReadPaused(true);
+        // A blocking client may already be waiting in a read, which will still go through, but nothing after it.
+        serverSide.writeBytes(new byte[100]);
+        Thread.sleep(200);
+        serverSide.writeBytes(new byte[100]);
+        Thread.sleep(200);
+        assertTrue(received.get() <= 100);
+
+        ((ReadPausable) client).setReadPaused(false);
+        for (int i = 0; i < 50 && received.get() < 200; i++)
+            Thread.sleep(20);
+        assertEquals(200, received.get());
+
+        client.closeConnection();
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
+    @Test
+    public void testQueuedWrites() throws Exception {
+        // Messages are a length followed by that many copies of their number, so the receiver can tell they arrived
+        // whole. Every tenth one is urgent, and may overtake the others but never split one of them.
+        final int bulkCount = 100, urgentCount = 10, bulkSize = 20000, urgentSize = 10;
+        final int totalBytes = bulkCount * (4 + bulkSize) + urgentCount * (4 + urgentSize);
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final SettableFuture<Void> allReceived = SettableFuture.create();
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public StreamParser getNewParser(InetAddress inetAddress, int port) {
+                return new StreamParser() {
+                    @Override public void connectionClosed() {}
+                    @Override public void connectionOpened() {}
+                    @Override public void setWriteTarget(MessageWriteTarget writeTarget) {}
+                    @Override public int getMaxMessageSize() { return 65536; }
+
+                    @Override
+                    public int receiveBytes(ByteBuffer buff) throws Exception {
+                        int length = buff.remaining();
+                        byte[] bytes = new byte[length];
+                        buff.get(bytes);
+                        received.write(bytes);
+                        if (received.size() == totalBytes)
+                            allReceived.set(null);
+                        return length;
+                    }
+                };
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAsync();
+        server.awaitRunning();
+
+        ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        fail.set(true);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {}
+
+                    @Override
+                    public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {}
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+        MessageWriteTarget client = openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+        Thread.sleep(100);
+
+        int urgentSent = 0;
+        for (int i = 0; i < bulkCount; i++) {
+            ByteBuffer message = makeMessage(i, bulkSize);
+            client.writeBytes(message, false);
+            // The buffer is left as it was, so it can be written to other connections too.
+            assertEquals(0, message.position());
+            if (i % 10 == 9)
+                client.writeBytes(makeMessage(200 + urgentSent++, urgentSize), true);
+        }
+        allReceived.get();
+
+        ByteBuffer in = ByteBuffer.wrap(received.toByteArray());
+        int nextBulk = 0, nextUrgent = 200;
+        while (in.hasRemaining()) {
+            int length = in.getInt();
+            int number = in.get() & 0xff;
+            for (int i = 1; i < length; i++)
+                assertEquals(number, in.get() & 0xff);
+            // Each kind of message stays in the order it was written.
+            if (number >= 200)
+                assertEquals(nextUrgent++, number);
+            else
+                assertEquals(nextBulk++, number);
+        }
+        assertEquals(bulkCount, nextBulk);
+        assertEquals(200 + urgentCount, nextUrgent);
+        assertEquals(0, client.getBytesQueued());
+        assertEquals(0, client.getMessagesQueued());
+
+        client.closeConnection();
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
+    private static ByteBuffer makeMessage(int number, int length) {
+        ByteBuffer message = ByteBuffer.allocate(4 + length);
+        message.putInt(length);
+        for (int i = 0; i < length; i++)
+            message.put((byte) number);
+        message.flip();
+        return message.asReadOnlyBuffer();
+    }
+
+    @Test
+    public void testManySelectorThreads() throws Exception {
+        final int clients = 7;
+        final CountDownLatch serverConnectionsClosed = new CountDownLatch(clients);
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser<TwoWayChannelMessage> getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {}
+
+                    @Override
+                    public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                        serverConnectionsClosed.countDown();
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243), 3);
+        server.startAsync();
+        server.awaitRunning();
+
+        // Every client gets its own message echoed back, whichever of the server's threads it ended up on.
+        List<SettableFuture<Protos.TwoWayChannelMessage>> received = new ArrayList<SettableFuture<Protos.TwoWayChannelMessage>>();
+        List<ProtobufParser<Protos.TwoWayChannelMessage>> handlers = new ArrayList<ProtobufParser<Protos.TwoWayChannelMessage>>();
+        final CountDownLatch clientConnectionsOpen = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            final SettableFuture<Protos.TwoWayChannelMessage> messageReceived = SettableFuture.create();
+            ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                    new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                        @Override
+                        public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                            messageReceived.set(msg);
+                        }
+
+                        @Override
+                        public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                            clientConnectionsOpen.countDown();
+                        }
+
+                        @Override
+                        public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {}
+                    }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+            received.add(messageReceived);
+            handlers.add(clientHandler);
+        }
+        clientConnectionsOpen.await();
+        for (int i = 0; i < clients; i++) {
+            Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder()
+                    .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN)
+                    .setClientVersion(Protos.ClientVersion.newBuilder().setMajor(i)).build();
+            handlers.get(i).write(msg);
+            assertEquals(msg, received.get(i).get());
+        }
+
+        // Stopping the server closes the connections on all its threads.
+        server.stopAsync();
+        server.awaitTerminated();
+        serverConnectionsClosed.await();
+    }
 }
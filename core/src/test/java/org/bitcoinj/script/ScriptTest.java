@@ -398,6 +398,156 @@ public class ScriptTest {
         assertEquals(scriptAddress, p2shScript.getToAddress(params, true));
     }
 
+    @Test
+    public void signatureCache() throws Exception {
+        SignatureCache previous = Script.getSignatureCache();
+        SignatureCache cache = new SignatureCache(10);
+        Script.setSignatureCache(cache);
+        try {
+            ECKey key = new ECKey();
+            Transaction fundingTx = new Transaction(params);
+            fundingTx.addOutput(Coin.COIN, key);
+            Transaction spendTx = new Transaction(params);
+            spendTx.addOutput(Coin.COIN, new ECKey());
+            TransactionInput input = spendTx.addSignedInput(fundingTx.getOutput(0), key);
+            Script scriptPubKey = fundingTx.getOutput(0).getScriptPubKey();
+
+            input.getScriptSig().correctlySpends(spendTx, 0, scriptPubKey);
+            assertEquals(0, cache.getHits());
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.size());
+            input.getScriptSig().correctlySpends(spendTx, 0, scriptPubKey);
+            assertEquals(1, cache.getHits());
+            assertEquals(1, cache.getMisses());
+
+            // A signature that doesn't verify must not be served from the cache.
+            spendTx.getOutput(0).setValue(Coin.CENT);
+            try {
+                input.getScriptSig().correctlySpends(spendTx, 0, scriptPubKey);
+                fail();
+            } catch (ScriptException e) {
+                // Expected.
+            }
+            assertEquals(2, cache.getMisses());
+            assertEquals(1, cache.size());
+        } finally {
+            Script.setSignatureCache(previous);
+        }
+    }
+
+    // Returns null if the scriptSig spends the scriptPubKey, otherwise why not.
+    private static String verdict(Script scriptSig, Transaction tx, int index, Script scriptPubKey,
+                                  Set<VerifyFlag> verifyFlags, boolean fastPath) {
+        boolean previous = Script.isStandardScriptFastPath();
+        Script.setStandardScriptFastPath(fastPath);
+        try {
+            scriptSig.correctlySpends(tx, index, scriptPubKey, verifyFlags);
+            return null;
+        } catch (VerificationException e) {
+            return e.getMessage();
+        } finally {
+            Script.setStandardScriptFastPath(previous);
+        }
+    }
+
+    private static void assertSameVerdict(Script scriptSig, Transaction tx, int index, Script scriptPubKey,
+                                          Set<VerifyFlag> verifyFlags) {
+        assertEquals(scriptSig + " / " + scriptPubKey,
+                verdict(scriptSig, tx, index, scriptPubKey, verifyFlags, false),
+                verdict(scriptSig, tx, index, scriptPubKey, verifyFlags, true));
+    }
+
+    @Test
+    public void standardScriptFastPathMatchesInterpreterOnScripts() throws Exception {
+        for (String file : new String[] {"script_valid.json", "script_invalid.json"}) {
+            JsonNode json = new ObjectMapper().readTree(new InputStreamReader(getClass().getResourceAsStream(file),
+                    Charsets.UTF_8));
+            for (JsonNode test : json) {
+                Script scriptSig, scriptPubKey;
+                try {
+                    scriptSig = parseScriptString(test.get(0).asText());
+                    scriptPubKey = parseScriptString(test.get(1).asText());
+                } catch (VerificationException e) {
+                    continue; // Invalid because it doesn't parse, so never executed.
+                }
+                assertSameVerdict(scriptSig, new Transaction(params), 0, scriptPubKey,
+                        parseVerifyFlags(test.get(2).asText()));
+            }
+        }
+    }
+
+    @Test
+    public void standardScriptFastPathMatchesInterpreterOnTransactions() throws Exception {
+        for (String file : new String[] {"tx_valid.json", "tx_invalid.json"}) {
+            JsonNode json = new ObjectMapper().readTree(new InputStreamReader(getClass().getResourceAsStream(file),
+                    Charsets.UTF_8));
+            for (JsonNode test : json) {
+                if (test.isArray() && test.size() == 1 && test.get(0).isTextual())
+                    continue; // This is a comment.
+                Map<TransactionOutPoint, Script> scriptPubKeys = parseScriptPubKeys(test.get(0));
+                Transaction transaction = new Transaction(params, HEX.decode(test.get(1).asText().toLowerCase()));
+                Set<VerifyFlag> verifyFlags = parseVerifyFlags(test.get(2).asText());
+                for (int i = 0; i < transaction.getInputs().size(); i++) {
+                    TransactionInput input = transaction.getInputs().get(i);
+                    Script scriptPubKey = scriptPubKeys.get(input.getOutpoint());
+                    if (scriptPubKey != null)
+                        assertSameVerdict(input.getScriptSig(), transaction, i, scriptPubKey, verifyFlags);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void standardScriptFastPath() throws Exception {
+        ECKey key = new ECKey();
+        List<ECKey> keys = ImmutableList.of(new ECKey(), new ECKey(), new ECKey());
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(2, keys);
+        Transaction fundingTx = new Transaction(params);
+        fundingTx.addOutput(Coin.COIN, key.toAddress(params));
+        fundingTx.addOutput(Coin.COIN, key);
+        fundingTx.addOutput(Coin.COIN, ScriptBuilder.createP2SHOutputScript(redeemScript));
+
+        Transaction spendTx = new Transaction(params);
+        spendTx.addOutput(Coin.COIN, new ECKey());
+        spendTx.addSignedInput(fundingTx.getOutput(0), key);
+        spendTx.addSignedInput(fundingTx.getOutput(1), key);
+        TransactionInput multiSigInput = spendTx.addInput(fundingTx.getOutput(2));
+        Sha256Hash hash = spendTx.hashForSignature(2, redeemScript, SigHash.ALL, false);
+        List<TransactionSignature> sigs = ImmutableList.of(
+                new TransactionSignature(keys.get(0).sign(hash), SigHash.ALL, false),
+                new TransactionSignature(keys.get(2).sign(hash), SigHash.ALL, false));
+        // Round trip the scriptSig so that it looks as it would coming off the wire.
+        multiSigInput.setScriptSig(new Script(
+                ScriptBuilder.createP2SHMultiSigInputScript(sigs, redeemScript).getProgram()));
+
+        for (int i = 0; i < 3; i++) {
+            Script scriptSig = spendTx.getInput(i).getScriptSig();
+            Script scriptPubKey = fundingTx.getOutput(i).getScriptPubKey();
+            assertNull(verdict(scriptSig, spendTx, i, scriptPubKey, Script.ALL_VERIFY_FLAGS, true));
+            assertSameVerdict(scriptSig, spendTx, i, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        }
+
+        // Signatures in the wrong order fail CHECKMULTISIG.
+        Script reversed = new Script(ScriptBuilder.createP2SHMultiSigInputScript(Lists.reverse(sigs),
+                redeemScript).getProgram());
+        assertNotNull(verdict(reversed, spendTx, 2, fundingTx.getOutput(2).getScriptPubKey(),
+                Script.ALL_VERIFY_FLAGS, true));
+        assertSameVerdict(reversed, spendTx, 2, fundingTx.getOutput(2).getScriptPubKey(), Script.ALL_VERIFY_FLAGS);
+
+        // A key that doesn't match the address fails EQUALVERIFY.
+        assertSameVerdict(spendTx.getInput(0).getScriptSig(), spendTx, 0,
+                ScriptBuilder.createOutputScript(new ECKey().toAddress(params)), Script.ALL_VERIFY_FLAGS);
+
+        // None of the signatures are valid once the transaction has changed.
+        spendTx.getOutput(0).setValue(Coin.CENT);
+        for (int i = 0; i < 3; i++) {
+            Script scriptSig = spendTx.getInput(i).getScriptSig();
+            Script scriptPubKey = fundingTx.getOutput(i).getScriptPubKey();
+            assertNotNull(verdict(scriptSig, spendTx, i, scriptPubKey, Script.ALL_VERIFY_FLAGS, true));
+            assertSameVerdict(scriptSig, spendTx, i, scriptPubKey, Script.ALL_VERIFY_FLAGS);
+        }
+    }
+
     @Test(expected = ScriptException.class)
     public void getToAddressNoPubKey() throws Exception {
         ScriptBuilder.createOutputScript(new ECKey()).getToAddress(params, false);
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredTransactionOutput;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CompactOutputMapTest {
+    private static Sha256Hash hash(int i) {
+        return Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8), (byte) (i >> 16)});
+    }
+
+    private static StoredTransactionOutput output(int i) {
+        return new StoredTransactionOutput(hash(i), i % 3, Coin.valueOf(i), i, i % 2 == 0, new byte[i % 50]);
+    }
+
+    @Test
+    public void putGetRemove() throws Exception {
+        CompactOutputMap map = new CompactOutputMap();
+        StoredTransactionOutput out = new StoredTransactionOutput(hash(1), 7, Coin.COIN, 100, true, new byte[] {1, 2, 3});
+        map.put(out);
+        assertEquals(out, map.get(hash(1), 7));
+        StoredTransactionOutput copy = map.get(hash(1), 7);
+        assertEquals(Coin.COIN, copy.getValue());
+        assertEquals(100, copy.getHeight());
+        assertTrue(copy.isCoinbase());
+        assertArrayEquals(new byte[] {1, 2, 3}, copy.getScriptBytes());
+        assertNull(map.get(hash(1), 6));
+        assertTrue(map.remove(hash(1), 7));
+        assertFalse(map.remove(hash(1), 7));
+        assertNull(map.get(hash(1), 7));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void growsAndCompacts() throws Exception {
+        CompactOutputMap map = new CompactOutputMap();
+        final int count = 20000;
+        for (int i = 0; i < count; i++)
+            map.put(output(i));
+        // Remove most of them, leaving holes to be compacted away as more are added.
+        for (int i = 0; i < count; i++)
+            if (i % 4 != 0)
+                assertTrue(map.remove(hash(i), i % 3));
+        for (int i = count; i < 2 * count; i++)
+            map.put(output(i));
+        assertEquals(count / 4 + count, map.size());
+        for (int i = 0; i < 2 * count; i++) {
+            StoredTransactionOutput out = map.get(hash(i), i % 3);
+            if (i < count && i % 4 != 0) {
+                assertNull(out);
+            } else {
+                assertEquals(Coin.valueOf(i), out.getValue());
+                assertEquals(i % 50, out.getScriptBytes().length);
+            }
+        }
+    }
+}
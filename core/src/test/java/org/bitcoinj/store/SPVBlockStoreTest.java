@@ -24,8 +24,16 @@ import org.bitcoinj.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +66,76 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void concurrentGets() throws Exception {
+        final NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        final SPVBlockStore store = new SPVBlockStore(params, f);
+
+        Address to = new ECKey().toAddress(params);
+        final List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 3000; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            blocks.add(prev);
+        }
+        // Store the first half up front, the second half is written whilst the readers are running.
+        for (StoredBlock block : blocks.subList(0, 1500))
+            store.put(block);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int t = 0; t < 4; t++) {
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    for (StoredBlock block : blocks.subList(0, 1500)) {
+                        if (!block.equals(store.get(block.getHeader().getHash())))
+                            return false;
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (StoredBlock block : blocks.subList(1500, 3000))
+            store.put(block);
+        for (Future<Boolean> result : results)
+            assertTrue(result.get());
+        executor.shutdown();
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void indexSurvivesWrapAroundAndReopen() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 10);
+
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 25; i++) {
+            prev = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(prev);
+            blocks.add(prev);
+        }
+        store.setChainHead(prev);
+        store.close();
+
+        // A fresh store object has empty caches, so lookups have to go through the rebuilt index.
+        store = new SPVBlockStore(params, f, 10);
+        for (StoredBlock block : blocks.subList(0, 15))
+            assertNull(store.get(block.getHeader().getHash()));
+        for (StoredBlock block : blocks.subList(15, 25))
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(prev, store.getChainHead());
+        store.close();
+    }
 }
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClockCacheTest {
+    @Test
+    public void putAndGet() {
+        ClockCache<String, Integer> cache = new ClockCache<String, Integer>(2);
+        assertNull(cache.get("a"));
+        cache.put("a", 1);
+        cache.put("b", 2);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertEquals(Integer.valueOf(2), cache.get("b"));
+        cache.put("a", 3);
+        assertEquals(Integer.valueOf(3), cache.get("a"));
+        assertEquals(2, cache.size());
+        cache.remove("a");
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evictsUnreferencedEntries() {
+        ClockCache<String, Integer> cache = new ClockCache<String, Integer>(3);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        // Reading "a" and "c" gives them a second chance, so "b" is the one to go.
+        cache.get("a");
+        cache.get("c");
+        cache.put("d", 4);
+        assertEquals(3, cache.size());
+        assertTrue(cache.containsKey("a"));
+        assertFalse(cache.containsKey("b"));
+        assertTrue(cache.containsKey("c"));
+        assertTrue(cache.containsKey("d"));
+    }
+
+    @Test
+    public void neverExceedsCapacity() {
+        ClockCache<Integer, Integer> cache = new ClockCache<Integer, Integer>(10);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+            if (i % 3 == 0)
+                cache.get(i / 2);
+            assertTrue(cache.size() <= 10);
+        }
+        assertEquals(Integer.valueOf(999), cache.get(999));
+    }
+}
@@ -165,6 +165,28 @@ public class KeyChainGroupTest {
         assertNull(group.findKeyFromPubHash(d.getPubKeyHash()));
     }
 
+    @Test
+    public void findKeyFollowsChanges() throws Exception {
+        ECKey a = new ECKey();
+        assertNull(group.findKeyFromPubHash(a.getPubKeyHash()));
+        group.importKeys(a);
+        assertEquals(a, group.findKeyFromPubHash(a.getPubKeyHash()));
+        group.removeImportedKey(a);
+        assertNull(group.findKeyFromPubHash(a.getPubKeyHash()));
+        assertNull(group.findKeyFromPubKey(a.getPubKey()));
+
+        // Keys beyond the first lookahead zone are found once they have been derived.
+        ECKey b = null;
+        for (int i = 0; i < LOOKAHEAD_SIZE * 3; i++)
+            b = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertEquals(b, group.findKeyFromPubHash(b.getPubKeyHash()));
+
+        // After encryption the encrypted copies are returned.
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2);
+        group.encrypt(scrypt, scrypt.deriveKey("password"));
+        assertTrue(group.findKeyFromPubKey(b.getPubKey()).isEncrypted());
+    }
+
     @Test
     public void currentP2SHAddress() throws Exception {
         group = createMarriedKeyChainGroup();
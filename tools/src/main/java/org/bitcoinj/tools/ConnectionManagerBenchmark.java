@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.net.*;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens many connections to a local echo server with {@link NioClientManager}, {@link BlockingClientManager} and
+ * {@link BlockingClientManager} with small thread stacks, then sends a message down each one and waits for every echo.
+ * Prints how long connecting and the round trips took, and how many threads and how much heap the open connections
+ * used. Pass the number of peers as an argument to change it from 1000. Both ends of every connection are in this
+ * process, so the open file limit must allow more than twice that many sockets.
+ */
+public class ConnectionManagerBenchmark {
+    private static final int PAYLOAD_SIZE = 64;
+    private static final long SMALL_STACK_SIZE = 128 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 18333);
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Nullable
+            @Override
+            public StreamParser getNewParser(InetAddress inetAddress, int port) {
+                return new EchoParser();
+            }
+        }, address);
+        server.startAsync();
+        server.awaitRunning();
+
+        System.out.println("manager                 connect ms   echo ms   threads   heap MB");
+        try {
+            // Warm up the JIT on a few connections before measuring anything.
+            run(new NioClientManager(), address, 10);
+            run(newBlockingClientManager(0), address, 10);
+
+            print("NioClientManager", run(new NioClientManager(), address, peers));
+            print("BlockingClientManager", run(newBlockingClientManager(0), address, peers));
+            print("  with " + SMALL_STACK_SIZE / 1024 + "KB stacks",
+                    run(newBlockingClientManager(SMALL_STACK_SIZE), address, peers));
+        } finally {
+            server.stopAsync();
+            server.awaitTerminated();
+        }
+    }
+
+    private static BlockingClientManager newBlockingClientManager(long threadStackSize) {
+        BlockingClientManager manager = new BlockingClientManager();
+        // Lots of connects at once can back up the server's accept queue.
+        manager.setConnectTimeoutMillis(10000);
+        manager.setThreadStackSize(threadStackSize);
+        return manager;
+    }
+
+    private static void print(String name, long[] result) {
+        System.out.println(String.format("%-22s %11.1f %9.1f %9d %9.1f", name, result[0] / 1e6, result[1] / 1e6,
+                result[2], result[3] / (1024.0 * 1024.0)));
+    }
+
+    // Returns the nanoseconds taken to open every connection and to echo a message over each, and the number of
+    // threads and bytes of heap used once they were all open.
+    private static long[] run(ClientConnectionManager manager, InetSocketAddress address, int peers)
+            throws Exception {
+        manager.startAsync();
+        manager.awaitRunning();
+        long threadsBefore = Thread.activeCount();
+        long heapBefore = usedHeap();
+
+        CountDownLatch opened = new CountDownLatch(peers);
+        CountDownLatch echoed = new CountDownLatch(peers);
+        ClientParser[] parsers = new ClientParser[peers];
+        long start = System.nanoTime();
+        for (int i = 0; i < peers; i++) {
+            parsers[i] = new ClientParser(opened, echoed);
+            manager.openConnection(address, parsers[i]);
+        }
+        if (!opened.await(60, TimeUnit.SECONDS))
+            throw new IllegalStateException(opened.getCount() + " connections failed to open");
+        long connectTime = System.nanoTime() - start;
+        long threads = Thread.activeCount() - threadsBefore;
+        long heap = usedHeap() - heapBefore;
+
+        start = System.nanoTime();
+        for (ClientParser parser : parsers)
+            parser.writeTarget.writeBytes(new byte[PAYLOAD_SIZE]);
+        if (!echoed.await(60, TimeUnit.SECONDS))
+            throw new IllegalStateException(echoed.getCount() + " echoes never arrived");
+        long echoTime = System.nanoTime() - start;
+
+        manager.stopAsync();
+        manager.awaitTerminated();
+        return new long[] {connectTime, echoTime, threads, heap};
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static class EchoParser implements StreamParser {
+        private MessageWriteTarget writeTarget;
+
+        @Override public void connectionClosed() {}
+        @Override public void connectionOpened() {}
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) throws IOException {
+            byte[] bytes = new byte[buff.remaining()];
+            buff.get(bytes);
+            writeTarget.writeBytes(bytes);
+            return bytes.length;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return PAYLOAD_SIZE;
+        }
+    }
+
+    private static class ClientParser implements StreamParser {
+        private final CountDownLatch opened, echoed;
+        private volatile MessageWriteTarget writeTarget;
+        private int received;
+
+        ClientParser(CountDownLatch opened, CountDownLatch echoed) {
+            this.opened = opened;
+            this.echoed = echoed;
+        }
+
+        @Override public void connectionClosed() {}
+
+        @Override
+        public void connectionOpened() {
+            opened.countDown();
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            int read = buff.remaining();
+            buff.position(buff.limit());
+            received += read;
+            if (received >= PAYLOAD_SIZE && received - read < PAYLOAD_SIZE)
+                echoed.countDown();
+            return read;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return PAYLOAD_SIZE;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.crypto.TransactionSignature;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Measures how long it takes to check the scripts of pay to address, pay to pubkey and pay to script hash 2-of-3
+ * multisig spends, with standard scripts checked by template and with everything run through the interpreter.
+ * Signatures are faked, so that the time is that of evaluating the scripts and hashing the transaction rather than
+ * of ECDSA, which is the same either way. Pass the number of rounds as an argument to change it from 20.
+ */
+public class ScriptBenchmark {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+    private static final int INPUTS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        ECKey.FAKE_SIGNATURES = true;
+        Script.setSignatureCache(null);
+
+        ECKey key = new ECKey();
+        List<ECKey> keys = ImmutableList.of(new ECKey(), new ECKey(), new ECKey());
+        Script redeemScript = ScriptBuilder.createMultiSigOutputScript(2, keys);
+        TransactionSignature sig = TransactionSignature.dummy();
+
+        Script[] scriptPubKeys = {
+                ScriptBuilder.createOutputScript(key.toAddress(PARAMS)),
+                ScriptBuilder.createOutputScript(key),
+                ScriptBuilder.createP2SHOutputScript(redeemScript)
+        };
+        Script[] scriptSigs = {
+                ScriptBuilder.createInputScript(sig, key),
+                ScriptBuilder.createInputScript(sig),
+                ScriptBuilder.createP2SHMultiSigInputScript(ImmutableList.of(sig, sig), redeemScript)
+        };
+        String[] names = {"pay to address", "pay to pubkey", "P2SH 2-of-3"};
+
+        System.out.println("type              interpreter ms   template ms");
+        for (int type = 0; type < scriptPubKeys.length; type++) {
+            // Scripts come off the wire as bytes, so parse them as they would be.
+            Script scriptPubKey = new Script(scriptPubKeys[type].getProgram());
+            Transaction tx = makeTransaction(new Script(scriptSigs[type].getProgram()));
+            // Warm up the JIT before measuring anything.
+            run(tx, scriptPubKey, false, rounds);
+            run(tx, scriptPubKey, true, rounds);
+            long interpreted = run(tx, scriptPubKey, false, rounds);
+            long templated = run(tx, scriptPubKey, true, rounds);
+            System.out.println(String.format("%-16s %14.1f %13.1f", names[type], interpreted / 1e6, templated / 1e6));
+        }
+    }
+
+    private static Transaction makeTransaction(Script scriptSig) {
+        Transaction tx = new Transaction(PARAMS);
+        for (int i = 0; i < INPUTS; i++)
+            tx.addInput(Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8)}), 0, scriptSig);
+        tx.addOutput(Coin.COIN, new ECKey().toAddress(PARAMS));
+        return tx;
+    }
+
+    // Returns how many nanoseconds it took to check every input of the transaction the given number of times.
+    private static long run(Transaction tx, Script scriptPubKey, boolean fastPath, int rounds) {
+        Script.setStandardScriptFastPath(fastPath);
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++)
+            for (int i = 0; i < tx.getInputs().size(); i++)
+                tx.getInput(i).getScriptSig().correctlySpends(tx, i, scriptPubKey);
+        return System.nanoTime() - start;
+    }
+}
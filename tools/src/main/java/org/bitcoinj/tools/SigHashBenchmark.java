@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 The bitcoinj authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.tools;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+
+/**
+ * Measures how long it takes to calculate the signature hashes of every input of transactions with between 1 and 5000
+ * inputs, as happens when a sweep or consolidation transaction is signed or verified. Pass input counts as arguments
+ * to measure those instead.
+ */
+public class SigHashBenchmark {
+    private static final NetworkParameters PARAMS = MainNetParams.get();
+
+    public static void main(String[] args) throws Exception {
+        int[] inputCounts = {1, 10, 100, 500, 1000, 2000, 5000};
+        if (args.length > 0) {
+            inputCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                inputCounts[i] = Integer.parseInt(args[i]);
+        }
+        Address address = new ECKey().toAddress(PARAMS);
+        byte[] connectedScript = ScriptBuilder.createOutputScript(address).getProgram();
+        // A typical pay to address scriptSig: a signature and a public key.
+        Script scriptSig = new ScriptBuilder().data(new byte[72]).data(new byte[33]).build();
+
+        // Warm up the JIT before measuring anything.
+        for (int i = 0; i < 5; i++)
+            verify(makeTransaction(200, address, scriptSig), connectedScript);
+
+        System.out.println("inputs      verify ms        sign ms");
+        for (int inputs : inputCounts) {
+            Transaction tx = makeTransaction(inputs, address, scriptSig);
+            long start = System.nanoTime();
+            verify(tx, connectedScript);
+            long verifyTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            sign(tx, connectedScript, scriptSig);
+            long signTime = System.nanoTime() - start;
+            System.out.println(String.format("%6d %14.1f %14.1f", inputs, verifyTime / 1e6, signTime / 1e6));
+        }
+    }
+
+    private static Transaction makeTransaction(int inputs, Address address, Script scriptSig) {
+        Transaction tx = new Transaction(PARAMS);
+        for (int i = 0; i < inputs; i++)
+            tx.addInput(Sha256Hash.create(new byte[] {(byte) i, (byte) (i >> 8), (byte) (i >> 16)}), 0, scriptSig);
+        tx.addOutput(Coin.COIN, address);
+        return tx;
+    }
+
+    // Script checks hash every input of a transaction that doesn't change in between.
+    private static void verify(Transaction tx, byte[] connectedScript) {
+        for (int i = 0; i < tx.getInputs().size(); i++)
+            tx.hashForSignature(i, connectedScript, Transaction.SigHash.ALL, false);
+    }
+
+    // Signing sets each input's script after hashing it.
+    private static void sign(Transaction tx, byte[] connectedScript, Script scriptSig) {
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            tx.hashForSignature(i, connectedScript, Transaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(scriptSig);
+        }
+    }
+}